@@ -0,0 +1,108 @@
+import java.io.File;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import authenticate.Authenticator;
+import bench.Benchmark;
+import bench.Harness;
+import bench.IngestBenchmarks;
+import bench.PersistenceBenchmarks;
+import file.FileIO;
+import socket.FireSensorData;
+
+/*
+ * Every benchmark there is, run by bench.Harness(see there for the options);
+ * 		javac -d out $(find src -name '*.java') && java -cp out Benchmarks
+ * or just some of them, java -cp out Benchmarks readXmlData --forks 2
+ *
+ * Besides the ones in the bench package, the fan-out of the RMI server to its monitors is here,
+ * RmiServer being out of reach of packages.
+ */
+public class Benchmarks {
+
+	static final int[] MONITOR_COUNTS = { 1, 10, 100 };
+	static final int READINGS_PER_UPDATE = 16;
+
+	public static void main(String[] args) throws Exception {
+		ArrayList<Benchmark> benchmarks = new ArrayList<>();
+		benchmarks.addAll(IngestBenchmarks.all());
+		benchmarks.addAll(PersistenceBenchmarks.all());
+		for (int monitors: MONITOR_COUNTS) {
+			benchmarks.add(new FanOutBenchmark(monitors));
+		}
+
+		new Harness("Benchmarks", benchmarks).run(args);
+	}
+
+	/*
+	 * An update of readings sent to every monitor, until every one of them has it; so it goes through the monitors' feeds,
+	 * and their delivery threads, as it does for real. The monitors are right here, without RMI in between,
+	 * which leaves the server's part.
+	 */
+	static class FanOutBenchmark extends Benchmark {
+
+		private final int monitorCount;
+		private final AtomicLong delivered = new AtomicLong();
+		private RmiServer server;
+		private List<SensorReading> update;
+		private long sent = 0;
+
+		FanOutBenchmark(int monitorCount) {
+			super("RmiServer.notifyMonitors[" + monitorCount + " monitors]");
+			this.monitorCount = monitorCount;
+		}
+
+		public void setUp() throws Exception {
+			// the fork has a directory of its own, the key file and the sensor count(as the socket server would) go there.
+			new Authenticator().setRmiServerAuthentication("bench");
+			new FileIO().writeToFile("0", new File("./s_count.txt"), false);
+			server = new RmiServer();
+			server.setMonitorFeedPolicy(1024, MonitorFeed.OverflowPolicy.DROP_NEWEST, Long.MAX_VALUE);
+
+			for (int i = 0; i < monitorCount; i++) {
+				server.addMonitor(new StubMonitor(delivered), "bench");
+			}
+
+			update = new ArrayList<>();
+			for (int i = 0; i < READINGS_PER_UPDATE; i++) {
+				update.add(new SensorReading(new FireSensorData("1-" + i, 30, 80, 3, 300, System.currentTimeMillis(), i)));
+			}
+		}
+
+		public Object operation() {
+			server.notifyMonitors(update);
+
+			sent += monitorCount;
+			while (delivered.get() < sent) {
+				Thread.onSpinWait();
+			}
+			return update;
+		}
+
+		public void tearDown() throws Exception {
+			UnicastRemoteObject.unexportObject(server, true);
+		}
+	}
+
+	static class StubMonitor implements FireAlarmMonitor {
+
+		private final AtomicLong delivered;
+
+		StubMonitor(AtomicLong delivered) {
+			this.delivered = delivered;
+		}
+
+		public void onData(String sensorData) throws RemoteException {}
+
+		public void onSensorChnange(int newSensorCount) throws RemoteException {}
+
+		public void onMonitorChange(int newMonitorCount) throws RemoteException {}
+
+		public void onReadings(List<SensorReading> readings) throws RemoteException {
+			delivered.incrementAndGet();
+		}
+	}
+}
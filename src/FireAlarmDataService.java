@@ -1,11 +1,23 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
+
+import history.Rollup;
+import history.Rollups;
+import metrics.MetricValue;
 
 public interface FireAlarmDataService extends Remote {
 	
 	public int getSensorCount() throws RemoteException;
 	public int getMonitorCount() throws RemoteException;
 	public String getAllReadings() throws RemoteException;
-	public void addMonitor(FireAlarmMonitor monitor, String key) throws RemoteException;
+	public ReadingPage getReadings(String cursor, int pageSize, String sensorIdPrefix, long from, long to) throws RemoteException;
+	public ReadingPage getHistory(String cursor, int pageSize, String sensorId, long from, long to) throws RemoteException;
+	public List<Rollup> getSensorRollups(Rollups.Window window) throws RemoteException;
+	public List<Rollup> getFloorRollups(Rollups.Window window) throws RemoteException;
+	// returns a session token the monitor can give instead of the key the next time, null if the key is wrong.
+	public String addMonitor(FireAlarmMonitor monitor, String key) throws RemoteException;
 	public void removeMonitor(FireAlarmMonitor monitor) throws RemoteException;
+	// counters, gauges and latencies of the server, by name.
+	public List<MetricValue> getMetrics() throws RemoteException;
 }
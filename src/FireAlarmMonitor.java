@@ -1,9 +1,31 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 public interface FireAlarmMonitor extends Remote {
 	
 	public void onData(String sensorData) throws RemoteException;
 	public void onSensorChnange(int newSensorCount) throws RemoteException;
 	public void onMonitorChange(int newMonitorCount) throws RemoteException;
+	
+	/*
+	 * Used instead of onData when the RMI server batches readings(see RmiServer --batch),
+	 * the latest reading of each sensor that reported within the batch window, in one call.
+	 * Monitors that only want text can leave it, it hands the readings to onData as lines.
+	 */
+	public default void onReadings(List<SensorReading> readings) throws RemoteException {
+		StringBuilder data = new StringBuilder();
+		for (SensorReading reading: readings) {
+			data.append(reading);
+		}
+		
+		onData(data.toString());
+	}
+	
+	/*
+	 * A dangerous reading, sent as soon as the server has it, ahead of anything else waiting for this monitor.
+	 */
+	public default void onAlarm(SensorReading alarm) throws RemoteException {
+		onData(alarm.toString());
+	}
 }
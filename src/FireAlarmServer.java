@@ -0,0 +1,117 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.util.ArrayList;
+import java.util.Scanner;
+
+import authenticate.Authenticator;
+import bus.ReadingBus;
+import history.ReadingHistory;
+import socket.SocketServer;
+
+
+/*
+ * Runs the socket server and the RMI server together in one JVM.
+ *
+ * Readings are handed from one to the other through a ReadingBus in memory, instead of the socket server,
+ * rewriting data.txt and current.txt for every reading and the RMI server parsing them again.
+ *
+ * Arguments are the socket server's ingest model(see SocketServer.serve), optionally followed by --files,
+ * to keep writing data.txt, current.txt and s_count.txt as a record of the readings,
+ * --batch <millis> to send readings to the monitors in batches(see RmiServer),
+ * --history <readings> for how many readings of each sensor the RMI server keeps for getHistory,
+ * and/or --wal <always|never|millis> to keep a write-ahead log of the readings(see SocketServer.openReadingLog),
+ * snapshotted every --snapshot <seconds>(60 by default, 0 never) so a restart gets the sensors and the history back quickly,
+ * and --rules <file> for rules to test the readings against(see SocketServer.loadRules).
+ */
+public class FireAlarmServer {
+
+	// readings waiting for the RMI server, more than this and the oldest ones are dropped.
+	private static final int BUS_CAPACITY = 10000;
+
+	public static void main(String [] args) throws IOException {
+
+		boolean persistToFiles = false;
+		long batchWindow = 0;
+		int historyRetention = ReadingHistory.DEFAULT_READINGS_PER_SENSOR;
+		String walSync = null;
+		int snapshotSeconds = SocketServer.DEFAULT_SNAPSHOT_SECONDS;
+		String rulesFile = null;
+		ArrayList<String> ingestArgs = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--files")) {
+				persistToFiles = true;
+			}
+			else if (args[i].equals("--batch") && i + 1 < args.length) {
+				batchWindow = Long.parseLong(args[++i]);
+			}
+			else if (args[i].equals("--history") && i + 1 < args.length) {
+				historyRetention = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("--wal") && i + 1 < args.length) {
+				walSync = args[++i];
+			}
+			else if (args[i].equals("--snapshot") && i + 1 < args.length) {
+				snapshotSeconds = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("--rules") && i + 1 < args.length) {
+				rulesFile = args[++i];
+			}
+			else {
+				ingestArgs.add(args[i]);
+			}
+		}
+
+		// get the keys for authenticating the sensors and the monitors.
+		Scanner scanner = new Scanner(System.in);
+
+		System.out.println("Enter master authentication key(Use this key to authenticate each sensor).");
+		System.out.print("Key:");
+		String sensorKey = scanner.nextLine();
+
+		System.out.println("Enter master authentication key(Use this key to authenticate each monitor).");
+		System.out.print("Key:");
+		String monitorKey = scanner.nextLine();
+		scanner.close();
+
+		Authenticator authenticator = new Authenticator();
+		authenticator.setSocketServerAuthentication(sensorKey);
+		authenticator.setRmiServerAuthentication(monitorKey);
+
+		System.out.println("Authentication keys set, use the same keys when starting sensors and monitors.");
+
+		// wire the two servers together.
+		ReadingBus bus = new ReadingBus();
+		SocketServer.setReadingBus(bus);
+		SocketServer.setPersistToFiles(persistToFiles);
+		if (rulesFile != null) {
+			SocketServer.loadRules(new File(rulesFile));
+		}
+
+		try {
+			RmiServer rmiServer = new RmiServer(bus.subscribe("rmi-server", BUS_CAPACITY));
+			rmiServer.setBatchWindow(batchWindow);
+			rmiServer.setHistoryRetention(historyRetention);
+
+			// the sensors and the history are back before the first monitor can ask for them.
+			SocketServer.setReadingHistory(rmiServer.getReadingHistory());
+			if (walSync != null) {
+				SocketServer.openReadingLog(walSync, snapshotSeconds);
+			}
+
+			// register the RMI server with the rmiregistry.
+			Naming.rebind("rmi://localhost/FireAlarmService", rmiServer);
+
+			Thread t = new Thread(rmiServer);
+			t.start();
+
+			System.out.println("Fire Alarm RMI server is up and running");
+		}
+		catch (MalformedURLException e) {
+			e.printStackTrace();
+		}
+
+		SocketServer.serve(ingestArgs.toArray(new String[0]));
+	}
+}
@@ -0,0 +1,376 @@
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import metrics.LatencyHistogram;
+import sensor.Randoms;
+import sensor.SocketSensor;
+
+/*
+ * Load test of the servers running on this machine; a fleet of simulated sensors from this one process,
+ * each a SocketSensor of its own reporting at a fixed interval, and a monitor to see how long the readings take to get to it.
+ *
+ * Latencies are taken from when a reading was due to be sent, not from when it was sent, so a generator,
+ * (or a server) that falls behind shows up in them instead of quietly sending less;
+ * 		send lag		until the reading was written to the socket, this is our side of the connection only;
+ * 						a server that doesn't keep up fills its socket's buffer and makes us wait, but so does a generator
+ * 						that's short of threads. What the server does with a reading is in its own metrics(see MetricsRegistry).
+ * 		delivery		until the monitor got it, in the routine readings(onData, or onReadings with --batch).
+ * 		alarm delivery	until the monitor got it through onAlarm.
+ * Readings are matched to when they were due by their sensor and sequence number, which the binary frames carry;
+ * text, which has no sequence, goes by the sensor's latest reading.
+ *
+ * Options;
+ * 		--sensors <n>		sensors in the fleet, 1000 by default.
+ * 		--interval <ms>		between the readings of a sensor, 1000 by default.
+ * 		--duration <s>		how long to run, 60 by default.
+ * 		--profile <name>	steady(default), the sensors' readings spread evenly over the interval.
+ * 							burst, every sensor reports at the same moment.
+ * 							fire, steady, until a fire breaks out on a floor and spreads to the floors next to it,
+ * 							the temperature, smoke and CO2 of the sensors there rising from then on.
+ * 		--floors <n>		sensors are spread over this many floors, 23 by default; ids are floor-sensor.
+ * 		--fire-floor <n>	where the fire starts, the middle floor by default,
+ * 		--fire-start <s>	this long into the run, 10 by default,
+ * 		--spread <s>		taking this long to reach the next floor, 10 by default.
+ * 		--threads <n>		sending the readings, one per processor by default.
+ * 		--port <n>			of the socket server, 9001 by default.
+ * 		--reconnect			every sensor disconnects after each reading and connects again(with its session token),
+ * 							for the next one, so sensors come and go all the time.
+ * The keys are asked for as the sensors and monitors ask for them, a blank monitor key runs without a monitor.
+ *
+ * Every sensor is a connection of its own; a few thousand of them may need a higher limit on open files(ulimit -n).
+ *
+ * At the end the sensors disconnect, and we check with the RMI server that none of them are still listed(getReadings),
+ * and that every reading got to the monitor one way or another; both are printed if they didn't.
+ */
+public class FleetLoadGenerator {
+
+	enum Profile { STEADY, BURST, FIRE }
+
+	private static final String HOST = "localhost";
+	private static final long PROGRESS_MILLIS = 5000;
+	private static final long DRAIN_MILLIS = 3000;		// for the last readings to get to the monitor.
+	private static final int SEQUENCE_SLOTS = 64;		// readings of a sensor we can still match, a power of 2.
+
+	private final LatencyHistogram sendLag = new LatencyHistogram("send lag");
+	private final LatencyHistogram deliveryLatency = new LatencyHistogram("delivery");
+	private final LatencyHistogram alarmLatency = new LatencyHistogram("alarm delivery");
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong unmatched = new AtomicLong();
+
+	private int sensorCount = 1000;
+	private long intervalMillis = 1000;
+	private long durationSeconds = 60;
+	private Profile profile = Profile.STEADY;
+	private int floors = 23;
+	private int fireFloor = -1;
+	private long fireStartSeconds = 10;
+	private long spreadSeconds = 10;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int port = 9001;
+	private boolean reconnect = false;
+
+	private final HashMap<String, SimulatedSensor> sensorsById = new HashMap<>();	// filled before anything is sent.
+	private long startNanos;
+
+
+	public static void main(String[] args) throws Exception {
+		FleetLoadGenerator generator = new FleetLoadGenerator();
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--sensors") && i + 1 < args.length) {
+				generator.sensorCount = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("--interval") && i + 1 < args.length) {
+				generator.intervalMillis = Long.parseLong(args[++i]);
+			}
+			else if (args[i].equals("--duration") && i + 1 < args.length) {
+				generator.durationSeconds = Long.parseLong(args[++i]);
+			}
+			else if (args[i].equals("--profile") && i + 1 < args.length) {
+				generator.profile = Profile.valueOf(args[++i].toUpperCase());
+			}
+			else if (args[i].equals("--floors") && i + 1 < args.length) {
+				generator.floors = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("--fire-floor") && i + 1 < args.length) {
+				generator.fireFloor = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("--fire-start") && i + 1 < args.length) {
+				generator.fireStartSeconds = Long.parseLong(args[++i]);
+			}
+			else if (args[i].equals("--spread") && i + 1 < args.length) {
+				generator.spreadSeconds = Long.parseLong(args[++i]);
+			}
+			else if (args[i].equals("--threads") && i + 1 < args.length) {
+				generator.threads = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("--port") && i + 1 < args.length) {
+				generator.port = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("--reconnect")) {
+				generator.reconnect = true;
+			}
+		}
+		if (generator.fireFloor < 0) {
+			generator.fireFloor = (generator.floors + 1) / 2;
+		}
+
+		Scanner scanner = new Scanner(System.in);
+		System.out.print("Authentication key(sensors):");
+		String sensorKey = scanner.nextLine();
+		System.out.print("Authentication key(monitor, blank for none):");
+		String monitorKey = scanner.nextLine();
+		scanner.close();
+
+		generator.run(sensorKey, monitorKey);
+		System.exit(0);
+	}
+
+	private void run(String sensorKey, String monitorKey) throws Exception {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads);
+
+		// connecting takes a round trip and a key check each, so they go in parallel.
+		System.out.println("Connecting " + sensorCount + " sensors to " + HOST + ":" + port + "...");
+		ArrayList<SimulatedSensor> sensors = new ArrayList<>();
+		ArrayList<Future<?>> connections = new ArrayList<>();
+		for (int i = 0; i < sensorCount; i++) {
+			SimulatedSensor sensor = new SimulatedSensor(i);
+			sensors.add(sensor);
+			sensorsById.put(sensor.sensorId, sensor);
+			connections.add(executor.submit(() -> sensor.connect(sensorKey)));
+		}
+		int connected = 0;
+		for (Future<?> connection: connections) {
+			try {
+				connection.get();
+				connected++;
+			}
+			catch (ExecutionException e) {
+				System.err.println(e.getCause().getMessage());
+			}
+		}
+		if (connected < sensorCount) {
+			System.err.println("Only " + connected + " of " + sensorCount + " sensors connected, giving up.");
+			return;
+		}
+
+		FireAlarmDataService server = null;
+		LoadMonitor monitor = null;
+		if (!monitorKey.isEmpty()) {
+			server = (FireAlarmDataService) Naming.lookup("//" + HOST + "/FireAlarmService");
+			monitor = new LoadMonitor();
+			if (server.addMonitor(monitor, monitorKey) == null) {
+				System.err.println("The RMI server didn't take the monitor key, running without a monitor.");
+				UnicastRemoteObject.unexportObject(monitor, true);
+				server = null;
+				monitor = null;
+			}
+		}
+
+		System.out.println("Sending, " + profile.name().toLowerCase() + ", " + (sensorCount * 1000L / intervalMillis) + " readings/s for " + durationSeconds + "s.");
+		startNanos = System.nanoTime();
+		long intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+		for (SimulatedSensor sensor: sensors) {
+			// a burst has everyone at once, otherwise they're spread over the interval.
+			long phaseNanos = (profile == Profile.BURST) ? 0 : intervalNanos * sensor.index / sensorCount;
+			executor.scheduleAtFixedRate(() -> sensor.report(phaseNanos, intervalNanos), phaseNanos, intervalNanos, TimeUnit.NANOSECONDS);
+		}
+
+		long lastSent = 0;
+		long endMillis = System.currentTimeMillis() + durationSeconds * 1000;
+		while (System.currentTimeMillis() < endMillis) {
+			Thread.sleep(Math.min(PROGRESS_MILLIS, Math.max(1, endMillis - System.currentTimeMillis())));
+
+			long sentNow = sent.get();
+			System.out.println(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos) + "s: " + sentNow + " sent(" + (sentNow - lastSent) * 1000 / PROGRESS_MILLIS +
+					"/s), " + deliveryLatency.getCount() + " delivered, " + alarmLatency.getCount() + " alarms delivered.");
+			lastSent = sentNow;
+		}
+
+		executor.shutdownNow();
+		executor.awaitTermination(5, TimeUnit.SECONDS);
+		for (SimulatedSensor sensor: sensors) {
+			sensor.socket.disconnectFromServer();
+		}
+		int stillListed = 0;
+		if (monitor != null) {
+			Thread.sleep(DRAIN_MILLIS);
+			stillListed = server.getReadings(null, 1, null, Long.MIN_VALUE, Long.MAX_VALUE).getSnapshotSize();
+			server.removeMonitor(monitor);
+		}
+
+		System.out.println();
+		System.out.println(sent.get() + " readings sent by " + sensorCount + " sensors in " + durationSeconds + "s.");
+		System.out.println(sendLag);
+		if (monitor != null) {
+			System.out.println(deliveryLatency);
+			System.out.println(alarmLatency);
+			
+			// an alarm only gets to the monitor through onAlarm, not with the routine readings.
+			// An RMI server reading data.txt only ever sees the latest reading of a sensor, so some go missing there anyway.
+			long missing = sent.get() - deliveryLatency.getCount() - alarmLatency.getCount();
+			if (missing > 0) {
+				System.out.println(missing + " readings sent never got to the monitor.");
+			}
+			if (unmatched.get() > 0) {
+				System.out.println(unmatched.get() + " readings the monitor got weren't ours, or were too old to match.");
+			}
+			if (stillListed > 0) {
+				System.out.println(stillListed + " sensors are still listed by the RMI server after every sensor disconnected.");
+			}
+		}
+	}
+
+	/*
+	 * A sensor of the fleet, reporting on one of the executor's threads at a time.
+	 */
+	private class SimulatedSensor {
+
+		private final int index;
+		private final String sensorId;
+		private final int floor;
+		private final SocketSensor socket = new SocketSensor();
+		private final Randoms random = new Randoms();
+		private final int battery;
+
+		// when each of the last readings was due(System.nanoTime()), by sequence number, for the monitor to look up.
+		private final AtomicLongArray dueNanos = new AtomicLongArray(SEQUENCE_SLOTS);
+		private volatile long sequence = 0;		// of the last reading sent, the same as the SocketSensor's.
+		private long reports = 0;
+		private String key;
+		private boolean connected = false;
+
+		SimulatedSensor(int index) {
+			this.index = index;
+			this.floor = 1 + index % floors;
+			this.sensorId = floor + "-" + (1 + index / floors);
+			this.battery = random.getRandomInt(40, 100);
+		}
+
+		void connect(String key) {
+			this.key = key;
+			if (!socket.connectToServer(HOST, port)) {
+				throw new IllegalStateException(sensorId + " couldn't connect.");
+			}
+
+			String serverResponse = socket.authenticate(key);
+			if (serverResponse == null || !serverResponse.startsWith("Authenticated")) {
+				throw new IllegalStateException(sensorId + " wasn't authenticated; " + serverResponse);
+			}
+			socket.negotiateWireProtocol(serverResponse);
+			connected = true;
+		}
+
+		void report(long phaseNanos, long intervalNanos) {
+			long due = startNanos + phaseNanos + reports++ * intervalNanos;
+			if (!connected) {
+				try {
+					connect(key);
+				}
+				catch (IllegalStateException e) {
+					System.err.println(e.getMessage());
+					return;
+				}
+			}
+
+			long next = sequence + 1;
+			dueNanos.set((int) (next & (SEQUENCE_SLOTS - 1)), due);
+			sequence = next;
+
+			double seconds = burningFor();
+			if (seconds < 0) {
+				socket.writeReading(sensorId, random.getRandomDouble(20.0, 30.0), battery, random.getRandomInt(1, 3), 300);
+			}
+			else {
+				// a couple of degrees a second, smoke and CO2 not far behind.
+				socket.writeReading(sensorId, Math.min(600, 25 + 2 * seconds), battery, (int) Math.min(10, 1 + seconds / 5), Math.min(5000, 400 + 50 * seconds));
+			}
+
+			sendLag.record(System.nanoTime() - due);
+			sent.incrementAndGet();
+
+			if (reconnect) {
+				socket.disconnectFromServer();
+				connected = false;
+			}
+		}
+
+		// seconds the fire has been on this sensor's floor, negative if it's not there(yet).
+		private double burningFor() {
+			if (profile != Profile.FIRE) {
+				return -1;
+			}
+
+			double sinceStart = (System.nanoTime() - startNanos) / 1e9;
+			return sinceStart - fireStartSeconds - Math.abs(floor - fireFloor) * spreadSeconds;
+		}
+
+		// when the reading was due; the latest reading's time if we can't tell which one it was.
+		long dueNanos(long readingSequence) {
+			long latest = sequence;
+			if (readingSequence <= 0 || readingSequence > latest || latest - readingSequence >= SEQUENCE_SLOTS) {
+				return dueNanos.get((int) (latest & (SEQUENCE_SLOTS - 1)));
+			}
+
+			return dueNanos.get((int) (readingSequence & (SEQUENCE_SLOTS - 1)));
+		}
+	}
+
+	/*
+	 * Times what the RMI server sends it against when the readings were due.
+	 */
+	private class LoadMonitor extends UnicastRemoteObject implements FireAlarmMonitor {
+
+		private static final long serialVersionUID = 1L;
+
+		LoadMonitor() throws RemoteException {}
+
+		public void onData(String sensorData) throws RemoteException {
+			long now = System.nanoTime();
+
+			// a line per reading, "id :   Temps: ..."
+			for (String line: sensorData.split("\n")) {
+				int end = line.indexOf(" :   Temps:");
+				if (end > 0) {
+					record(deliveryLatency, line.substring(0, end), 0, now);
+				}
+			}
+		}
+
+		public void onReadings(List<SensorReading> readings) throws RemoteException {
+			long now = System.nanoTime();
+			for (SensorReading reading: readings) {
+				record(deliveryLatency, reading.getSensorId(), reading.getSequence(), now);
+			}
+		}
+
+		public void onAlarm(SensorReading alarm) throws RemoteException {
+			record(alarmLatency, alarm.getSensorId(), alarm.getSequence(), System.nanoTime());
+		}
+
+		public void onSensorChnange(int newSensorCount) throws RemoteException {}
+
+		public void onMonitorChange(int newMonitorCount) throws RemoteException {}
+
+		private void record(LatencyHistogram histogram, String sensorId, long sequence, long now) {
+			SimulatedSensor sensor = sensorsById.get(sensorId);
+			if (sensor == null || sensor.sequence == 0) {
+				unmatched.incrementAndGet();
+				return;
+			}
+
+			histogram.record(now - sensor.dueNanos(sequence));
+		}
+	}
+}
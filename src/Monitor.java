@@ -26,13 +26,19 @@ public class Monitor extends UnicastRemoteObject implements FireAlarmMonitor {
 	JFrame frame = new JFrame();
 	JLabel statsLbl = new JLabel();
 	JTextArea dataTxtArea = new JTextArea(10, 80);
-	JButton refreshBtn = new JButton("Get History of Readings");
+	JButton refreshBtn = new JButton(CURRENT_READINGS);
 
 	// Monitor properties.
 	int currentMonitorCount = 0;
 	int currentSensorCount = 0;
 	
 	static FireAlarmDataService server;
+	static final int READINGS_PAGE_SIZE = 100;
+	static final String CURRENT_READINGS = "Get Current Readings";
+	static final String MORE_READINGS = "More Current Readings";
+	
+	// where the next page of the current readings starts, null to start again(only the swing thread touches it).
+	String readingsCursor;
 	
 	public Monitor() throws RemoteException {
 		
@@ -131,13 +137,25 @@ public class Monitor extends UnicastRemoteObject implements FireAlarmMonitor {
 				@Override
 				public void actionPerformed(ActionEvent e) {
 					
+					// the latest reading of each sensor, a page per click, so no single call carries every sensor there is.
 					try {
-						monitor.dataTxtArea.append(server.getAllReadings());
+						ReadingPage page = server.getReadings(monitor.readingsCursor, READINGS_PAGE_SIZE, null, Long.MIN_VALUE, Long.MAX_VALUE);
+						for (SensorReading reading: page.getReadings()) {
+							monitor.dataTxtArea.append(reading.toString());
+						}
+						monitor.readingsCursor = page.getNextCursor();
+					}
+					catch (IllegalStateException e1) {
+						// the server let go of the readings we were paging through, we start over.
+						monitor.readingsCursor = null;
+						monitor.dataTxtArea.append("The readings have changed since, click again for the latest.\n");
 					}
 					catch (RemoteException e1) {
 						e1.printStackTrace();
 					}
 					
+					monitor.refreshBtn.setText((monitor.readingsCursor == null) ? CURRENT_READINGS : MORE_READINGS);
+					
 				}
 			});
 		} 
@@ -0,0 +1,315 @@
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import metrics.Counter;
+import metrics.LatencyHistogram;
+import metrics.MetricsRegistry;
+import metrics.MonitorCallbackEvent;
+import metrics.ReadingEvent;
+
+
+/*
+ * Everything the RMI server sends to one monitor goes through its feed.
+ *
+ * Each feed has a bounded queue of its own, and a shared pool of delivery threads makes the remote calls,
+ * so the RMI server never waits for a monitor and a slow or dead monitor only holds up its own updates.
+ * A feed is handled by one delivery thread at a time, so a monitor still gets its updates in order.
+ *
+ * When a monitor's queue is full, the overflow policy decides what gives;
+ * 		DROP_OLDEST		the oldest readings make room for the new ones.
+ * 		DROP_NEWEST		the new readings are thrown away.
+ * 		COALESCE		the new readings are added on to the last queued update, so nothing is lost,
+ * 						the monitor just gets them in fewer calls.
+ * Alarms(sendAlarm) have a queue of their own that is never dropped from, and go out before anything else.
+ * Counts are never queued, a newer count replaces one the monitor hasn't been sent yet.
+ * Batches of readings(sendReadings) are queued the same way as text; coalescing them keeps the latest,
+ * reading of each sensor.
+ *
+ * A monitor whose call fails, or whose oldest queued update is older than the lag limit, is evicted;
+ * the listener given to the feed is told so, and the feed accepts nothing after that.
+ */
+public class MonitorFeed {
+
+	public enum OverflowPolicy { DROP_OLDEST, DROP_NEWEST, COALESCE }
+
+	// how long alarms take from the socket server reading them to the monitor's onAlarm returning.
+	public static final LatencyHistogram alarmLatency = MetricsRegistry.latency("alarms.latency");
+
+	// see MetricsRegistry; the calls to a monitor that deliver what it had waiting, updates dropped for any monitor.
+	private static final LatencyHistogram deliveryTime = MetricsRegistry.latency("monitors.delivery");
+	private static final Counter droppedUpdates = MetricsRegistry.counter("monitors.updates.dropped");
+	private static final Counter evictions = MetricsRegistry.counter("monitors.evicted");
+
+	private static final ExecutorService deliveryPool = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), new DeliveryThreadFactory());
+
+	private final FireAlarmMonitor monitor;
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final long maxLagMillis;
+	private final Consumer<MonitorFeed> onEvicted;
+
+	// guarded by this.
+	private final ArrayDeque<SensorReading> pendingAlarms = new ArrayDeque<>();
+	private final ArrayDeque<Object> pendingData = new ArrayDeque<>();		// text for onData, or a List<SensorReading> for onReadings.
+	private final ArrayDeque<Long> pendingSince = new ArrayDeque<>();	// when each of pendingData was queued.
+	private Integer pendingSensorCount;
+	private Integer pendingMonitorCount;
+	private boolean scheduled = false;		// a delivery thread is on this feed.
+	private boolean evicted = false;
+	private long dropped = 0;
+
+
+	public MonitorFeed(FireAlarmMonitor monitor, int capacity, OverflowPolicy policy, long maxLagMillis, Consumer<MonitorFeed> onEvicted) {
+		this.monitor = monitor;
+		this.capacity = capacity;
+		this.policy = policy;
+		this.maxLagMillis = maxLagMillis;
+		this.onEvicted = onEvicted;
+	}
+
+	public FireAlarmMonitor getMonitor() {
+		return monitor;
+	}
+
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	public synchronized int getDepth() {
+		return pendingData.size();
+	}
+
+	/*
+	 * Following five never block.
+	 */
+	public synchronized void sendAlarm(SensorReading alarm) {
+		if (!evicted) {
+			pendingAlarms.addLast(alarm);
+			schedule();
+		}
+	}
+	
+	public void sendData(String data) {
+		queue(data);
+	}
+	
+	public void sendReadings(List<SensorReading> readings) {
+		queue(readings);
+	}
+	
+	private void queue(Object data) {
+		boolean lagging;
+
+		synchronized (this) {
+			if (evicted) {
+				return;
+			}
+
+			long now = System.currentTimeMillis();
+			lagging = !pendingSince.isEmpty() && now - pendingSince.peekFirst() > maxLagMillis;
+
+			if (pendingData.size() < capacity) {
+				pendingData.addLast(data);
+				pendingSince.addLast(now);
+			}
+			else {
+				switch (policy) {
+				case DROP_OLDEST:	pendingData.pollFirst();
+									pendingSince.pollFirst();
+									pendingData.addLast(data);
+									pendingSince.addLast(now);
+									dropped++;
+									droppedUpdates.increment();
+									break;
+
+				case DROP_NEWEST:	dropped++;
+									droppedUpdates.increment();
+									break;
+
+				case COALESCE:		pendingData.addLast(coalesce(pendingData.pollLast(), data));
+									break;
+				}
+			}
+
+			schedule();
+		}
+
+		if (lagging) {
+			evict();
+		}
+	}
+
+	public synchronized void sendSensorCount(int count) {
+		if (!evicted) {
+			pendingSensorCount = count;
+			schedule();
+		}
+	}
+
+	public synchronized void sendMonitorCount(int count) {
+		if (!evicted) {
+			pendingMonitorCount = count;
+			schedule();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object coalesce(Object queued, Object data) {
+		if (queued instanceof String && data instanceof String) {
+			return (String) queued + data;
+		}
+		if (queued instanceof List && data instanceof List) {
+			// latest reading of each sensor.
+			LinkedHashMap<String, SensorReading> latest = new LinkedHashMap<>();
+			for (SensorReading reading: (List<SensorReading>) queued) {
+				latest.put(reading.getSensorId(), reading);
+			}
+			for (SensorReading reading: (List<SensorReading>) data) {
+				latest.put(reading.getSensorId(), reading);
+			}
+			return new ArrayList<>(latest.values());
+		}
+		
+		// doesn't happen unless the server switches between text and batches, the newer one wins.
+		return data;
+	}
+	
+	// must be called while holding the lock.
+	private void schedule() {
+		if (!scheduled) {
+			scheduled = true;
+			deliveryPool.execute(this::deliver);
+		}
+	}
+
+	/*
+	 * Runs on a delivery thread, until the queue is empty.
+	 */
+	private void deliver() {
+		while (true) {
+			SensorReading alarm = null;
+			Object data = null;
+			Integer sensorCount = null;
+			Integer monitorCount = null;
+
+			synchronized (this) {
+				if (evicted) {
+					scheduled = false;
+					return;
+				}
+
+				// alarms first, one at a time, so a new alarm never waits for more than one call.
+				alarm = pendingAlarms.pollFirst();
+				if (alarm == null) {
+					data = pendingData.pollFirst();
+					pendingSince.pollFirst();
+					sensorCount = pendingSensorCount;
+					monitorCount = pendingMonitorCount;
+					pendingSensorCount = null;
+					pendingMonitorCount = null;
+
+					if (data == null && sensorCount == null && monitorCount == null) {
+						scheduled = false;
+						return;
+					}
+				}
+			}
+
+			// remote calls, outside the lock so new updates can be queued meanwhile.
+			long start = System.nanoTime();
+			try {
+				if (alarm != null) {
+					MonitorCallbackEvent event = new MonitorCallbackEvent("onAlarm", 1);
+					event.begin();
+					monitor.onAlarm(alarm);
+					if (alarm.getReceivedNanos() != 0) {
+						alarmLatency.record(System.nanoTime() - alarm.getReceivedNanos());
+					}
+					event.commit(alarm.getSensorId(), alarm.getSequence());
+				}
+				if (data instanceof String) {
+					monitor.onData((String) data);
+				}
+				else if (data != null) {
+					List<SensorReading> readings = readingList(data);
+					List<MonitorCallbackEvent> events = ReadingEvent.beginEach(() -> new MonitorCallbackEvent("onReadings", readings.size()), readings.size());
+					monitor.onReadings(readings);
+					if (events != null) {
+						for (int i = 0; i < readings.size(); i++) {
+							events.get(i).commit(readings.get(i).getSensorId(), readings.get(i).getSequence());
+						}
+					}
+				}
+				if (sensorCount != null) {
+					monitor.onSensorChnange(sensorCount);
+				}
+				if (monitorCount != null) {
+					monitor.onMonitorChange(monitorCount);
+				}
+				deliveryTime.record(System.nanoTime() - start);
+			}
+			catch (RemoteException | RuntimeException e) {
+				// monitor is gone or broken, no point in trying again.
+				synchronized (this) {
+					scheduled = false;
+				}
+				evict();
+				return;
+			}
+		}
+	}
+
+
+	@SuppressWarnings("unchecked")
+	private static List<SensorReading> readingList(Object data) {
+		return (List<SensorReading>) data;
+	}
+	
+	/*
+	 * Stops the feed and lets the listener know, only the first time.
+	 */
+	public void evict() {
+		synchronized (this) {
+			if (evicted) {
+				return;
+			}
+			evicted = true;
+			pendingAlarms.clear();
+			pendingData.clear();
+			pendingSince.clear();
+		}
+
+		evictions.increment();
+		onEvicted.accept(this);
+	}
+
+	/*
+	 * Same as evict, without telling the listener; the monitor left on its own.
+	 */
+	public synchronized void close() {
+		evicted = true;
+		pendingAlarms.clear();
+		pendingData.clear();
+		pendingSince.clear();
+	}
+
+
+	private static class DeliveryThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable task) {
+			Thread t = new Thread(task, "monitor-delivery-" + count.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
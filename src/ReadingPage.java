@@ -0,0 +1,50 @@
+import java.io.Serializable;
+import java.util.List;
+
+
+/*
+ * One page of getReadings.
+ *
+ * Pass the next cursor back to getReadings for the page after this one, it's null on the last page.
+ * Every page of a query comes from the same snapshot(see getSnapshotVersion), so a sensor never shows up twice,
+ * or goes missing, because readings came in while the monitor was paging through.
+ * Pages of getHistory don't need a snapshot, a sensor's history is only ever added to; their version is 0,
+ * and their size is the readings kept for the sensor.
+ */
+public class ReadingPage implements Serializable {
+
+	private static final long serialVersionUID = 4519672310562254871L;
+
+	private final List<SensorReading> readings;
+	private final String nextCursor;
+	private final long snapshotVersion;
+	private final int snapshotSize;		// readings in the whole snapshot, before filtering.
+
+
+	public ReadingPage(List<SensorReading> readings, String nextCursor, long snapshotVersion, int snapshotSize) {
+		this.readings = readings;
+		this.nextCursor = nextCursor;
+		this.snapshotVersion = snapshotVersion;
+		this.snapshotSize = snapshotSize;
+	}
+
+	public List<SensorReading> getReadings() {
+		return readings;
+	}
+
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	public boolean isLastPage() {
+		return nextCursor == null;
+	}
+
+	public long getSnapshotVersion() {
+		return snapshotVersion;
+	}
+
+	public int getSnapshotSize() {
+		return snapshotSize;
+	}
+}
@@ -0,0 +1,168 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import socket.FireSensorData;
+
+
+/*
+ * Pages through the latest reading of each sensor for getReadings, the same way whatever comes in meanwhile.
+ *
+ * The first page of a query takes a snapshot of the readings, sorted by sensor id, and the cursor it hands back,
+ * "<version>:<position>", points into that snapshot; so every later page of the query reads the same snapshot.
+ * A new snapshot is only taken when something changed since the last one(the RMI server calls changed()),
+ * so monitors asking again and again share one, instead of each of them reading current.txt again.
+ *
+ * We keep the last KEPT_SNAPSHOTS snapshots, each for SNAPSHOT_LIFETIME_MILLIS after it was last used.
+ * A cursor to a snapshot that's gone gets an IllegalStateException, the monitor has to start over.
+ */
+class ReadingSnapshots {
+
+	public static final int MAX_PAGE_SIZE = 500;		// keeps a single call small, however many sensors there are.
+
+	private static final int KEPT_SNAPSHOTS = 8;
+	private static final long SNAPSHOT_LIFETIME_MILLIS = 5 * 60 * 1000;
+
+	private final Supplier<Collection<FireSensorData>> source;		// latest reading of each sensor.
+	private final AtomicLong changes = new AtomicLong();
+
+	// guarded by this.
+	private final LinkedHashMap<Long, Snapshot> snapshots = new LinkedHashMap<>();		// oldest first.
+	private long nextVersion = 1;
+
+
+	public ReadingSnapshots(Supplier<Collection<FireSensorData>> source) {
+		this.source = source;
+	}
+
+	/*
+	 * A reading came in or a sensor left, the next query gets a new snapshot.
+	 */
+	public void changed() {
+		changes.incrementAndGet();
+	}
+
+	/*
+	 * The readings after the cursor(from the start of a new snapshot if there's none) whose sensor id starts with,
+	 * the given prefix(null for any) and that were taken between from and to(inclusive), up to pageSize of them.
+	 */
+	public ReadingPage page(String cursor, int pageSize, String sensorIdPrefix, long from, long to) {
+		pageSize = Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+
+		Snapshot snapshot;
+		int position;
+		if (cursor == null || cursor.isEmpty()) {
+			snapshot = latestSnapshot();
+			position = 0;
+		}
+		else {
+			int colon = cursor.indexOf(':');
+			try {
+				snapshot = snapshot(Long.parseLong(cursor.substring(0, colon)));
+				position = Integer.parseInt(cursor.substring(colon + 1));
+			}
+			catch (NumberFormatException | IndexOutOfBoundsException e) {
+				throw new IllegalArgumentException("Not a cursor given by getReadings: " + cursor);
+			}
+			if (snapshot == null) {
+				throw new IllegalStateException("Snapshot of the cursor has expired, start again without a cursor.");
+			}
+		}
+
+		SensorReading[] readings = snapshot.readings;
+		ArrayList<SensorReading> page = new ArrayList<>(Math.min(pageSize, readings.length));
+
+		while (position < readings.length && page.size() < pageSize) {
+			if (matches(readings[position], sensorIdPrefix, from, to)) {
+				page.add(readings[position]);
+			}
+			position++;
+		}
+		// so the last page says it is the last, instead of a page that comes back empty after it.
+		while (position < readings.length && !matches(readings[position], sensorIdPrefix, from, to)) {
+			position++;
+		}
+
+		String nextCursor = (position < readings.length) ? snapshot.version + ":" + position : null;
+
+		return new ReadingPage(page, nextCursor, snapshot.version, readings.length);
+	}
+
+	private static boolean matches(SensorReading reading, String sensorIdPrefix, long from, long to) {
+		return (sensorIdPrefix == null || reading.getSensorId().startsWith(sensorIdPrefix)) &&
+			   reading.getTimestamp() >= from && reading.getTimestamp() <= to;
+	}
+
+	/*
+	 * Newest snapshot if nothing changed since it was taken, a new one otherwise.
+	 */
+	private synchronized Snapshot latestSnapshot() {
+		long now = System.currentTimeMillis();
+		expire(now);
+
+		// before reading the source, so a change while we read it gets the next query a new snapshot.
+		long changesNow = changes.get();
+
+		Snapshot newest = null;
+		for (Snapshot snapshot: snapshots.values()) {
+			newest = snapshot;
+		}
+		if (newest != null && newest.changes == changesNow) {
+			newest.lastUsed = now;
+			return newest;
+		}
+
+		TreeMap<String, SensorReading> sorted = new TreeMap<>();
+		for (FireSensorData fsd: source.get()) {
+			sorted.put(fsd.getSensorId(), new SensorReading(fsd));
+		}
+
+		Snapshot snapshot = new Snapshot(nextVersion++, changesNow, sorted.values().toArray(new SensorReading[0]), now);
+		snapshots.put(snapshot.version, snapshot);
+
+		if (snapshots.size() > KEPT_SNAPSHOTS) {
+			Iterator<Snapshot> oldest = snapshots.values().iterator();
+			oldest.next();
+			oldest.remove();
+		}
+
+		return snapshot;
+	}
+
+	private synchronized Snapshot snapshot(long version) {
+		long now = System.currentTimeMillis();
+		expire(now);
+
+		Snapshot snapshot = snapshots.get(version);
+		if (snapshot != null) {
+			snapshot.lastUsed = now;
+		}
+
+		return snapshot;
+	}
+
+	// must be called while holding the lock.
+	private void expire(long now) {
+		snapshots.values().removeIf(snapshot -> now - snapshot.lastUsed > SNAPSHOT_LIFETIME_MILLIS);
+	}
+
+
+	private static class Snapshot {
+
+		final long version;
+		final long changes;		// changes counted when it was taken.
+		final SensorReading[] readings;
+		long lastUsed;
+
+		Snapshot(long version, long changes, SensorReading[] readings, long lastUsed) {
+			this.version = version;
+			this.changes = changes;
+			this.readings = readings;
+			this.lastUsed = lastUsed;
+		}
+	}
+}
@@ -1,29 +1,156 @@
 import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.xml.stream.XMLStreamException;
 
 import authenticate.Authenticator;
+import bus.ReadingBus;
 import file.FileIO;
+import file.MappedReadingRing;
+import history.ReadingHistory;
+import history.Rollup;
+import history.Rollups;
+import metrics.LatencyHistogram;
+import metrics.MetricValue;
+import metrics.MetricsRegistry;
+import metrics.ReadingPickupEvent;
+import socket.FireSensorData;
+import socket.SocketServer;
 
 
 @SuppressWarnings("serial")
 public class RmiServer extends UnicastRemoteObject implements FireAlarmDataService, Runnable {
 
-	private static ArrayList<FireAlarmMonitor> monitors = new ArrayList<>();	// TODO any operation on this must be always synchronized.
+	private static ArrayList<MonitorFeed> monitors = new ArrayList<>();	// TODO any operation on this must be always synchronized.
+	private static HashMap<MonitorFeed, String> monitorSessions = new HashMap<>();	// closed when the monitor goes(see Authenticator), guarded by monitors.
+	
+	// how long handing something to every monitor's feed takes(the calls themselves are in MonitorFeed's metrics).
+	private static final LatencyHistogram fanOutTime = MetricsRegistry.latency("monitors.fanout");
+	
+	static {
+		MetricsRegistry.gauge("monitors.connected", () -> {
+			synchronized (monitors) {
+				return monitors.size();
+			}
+		});
+		MetricsRegistry.gauge("monitors.queue.depth", () -> {
+			long depth = 0;
+			synchronized (monitors) {
+				for (MonitorFeed feed: monitors) {
+					depth += feed.getDepth();
+				}
+			}
+			return depth;
+		});
+	}
 	private FileIO fileManager = new FileIO();
 	private File monitorCountFile = new File("./m_count.txt");
 	private File sensorCountFile = new File("./s_count.txt");
 	
+	// set when the socket server runs in the same JVM(see FireAlarmServer),
+	// in which case readings come through the bus instead of data.txt.
+	private ReadingBus.Subscription readings;
+	
+	// set when the socket server hands readings over through the memory mapped ring instead.
+	private MappedReadingRing ring;
+	private static final int RING_BATCH_SIZE = 256;
+	private final HashMap<String, FireSensorData> latestFromRing = new HashMap<>();	// for getReadings, guarded by itself.
+	
+	// what getReadings and getAllReadings page through.
+	private final ReadingSnapshots snapshots = new ReadingSnapshots(this::currentReadings);
+	
+	// per sensor and per floor, when the socket server isn't here to keep them(see rollups()).
+	private final Rollups rollups = new Rollups();
+	
+	// every reading we passed on, for getHistory.
+	private ReadingHistory history = new ReadingHistory(ReadingHistory.DEFAULT_READINGS_PER_SENSOR);
+	
+	// the dispatcher sleeps until there's something new, but never longer than this.
+	private long dispatchTickMillis = 1000;
+	private int lastSensorCount = Integer.MIN_VALUE;	// last count sent to the monitors, only the dispatcher touches it.
+	
+	// how each monitor's feed deals with a monitor that can't keep up(see MonitorFeed).
+	private int monitorQueueCapacity = 100;
+	private MonitorFeed.OverflowPolicy monitorOverflowPolicy = MonitorFeed.OverflowPolicy.COALESCE;
+	private long monitorMaxLagMillis = 10000;
+	
+	// with a batch window, readings are held back for that long after the first one arrives and then sent,
+	// the latest of each sensor, in one onReadings call per monitor. 0 sends them as text right away.
+	private long batchWindowMillis = 0;
+	private final LinkedHashMap<String, SensorReading> pendingBatch = new LinkedHashMap<>();	// guarded by itself.
+	private boolean batchScheduled = false;
+	private static final ScheduledExecutorService dispatchTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+		Thread t = new Thread(task, "rmi-dispatch-timer");
+		t.setDaemon(true);
+		return t;
+	});
+	
+	static {
+		// a monitor that hangs in the middle of a call would keep a delivery thread forever otherwise.
+		if (System.getProperty("sun.rmi.transport.tcp.responseTimeout") == null) {
+			System.setProperty("sun.rmi.transport.tcp.responseTimeout", "30000");
+		}
+	}
+	
 	
 	// only reason we declare this constructor is because the remote object should be able to,
 	// throw a RemoteException upon creation if need be.
 	public RmiServer() throws RemoteException {}
 	
+	public RmiServer(ReadingBus.Subscription readings) throws RemoteException {
+		this.readings = readings;
+		
+		MetricsRegistry.gauge("bus.queue.depth", readings::getDepth);
+		MetricsRegistry.gauge("bus.dropped", readings::getDropped);
+	}
+	
+	public RmiServer(MappedReadingRing ring) throws RemoteException {
+		this.ring = ring;
+		
+		MetricsRegistry.gauge("ring.lost", ring::getLost);
+	}
+	
+	public void setDispatchTick(long millis) {
+		this.dispatchTickMillis = millis;
+	}
+	
+	public void setBatchWindow(long millis) {
+		this.batchWindowMillis = millis;
+	}
+	
+	public void setHistoryRetention(int readingsPerSensor) {
+		this.history = new ReadingHistory(readingsPerSensor);
+	}
+	
+	public ReadingHistory getReadingHistory() {
+		return history;
+	}
+	
+	public void setMonitorFeedPolicy(int queueCapacity, MonitorFeed.OverflowPolicy overflowPolicy, long maxLagMillis) {
+		this.monitorQueueCapacity = queueCapacity;
+		this.monitorOverflowPolicy = overflowPolicy;
+		this.monitorMaxLagMillis = maxLagMillis;
+	}
+	
 	/*
 	 * Socket server writes its sensor count to a file so the RMI server can read it.
 	 * 
@@ -32,6 +159,14 @@ public class RmiServer extends UnicastRemoteObject implements FireAlarmDataServi
 	 */
 	public int getSensorCount() throws RemoteException {
 
+		// no need for the file if the socket server is right here.
+		if (readings != null) {
+			return SocketServer.getSensorCount();
+		}
+		if (ring != null) {
+			return ring.getSensorCount();
+		}
+		
 		int count;
 		
 		try {
@@ -66,23 +201,31 @@ public class RmiServer extends UnicastRemoteObject implements FireAlarmDataServi
 	 * all the other connected monitors about the new monitor count.
 	 * 
 	 * Additionally we ask for a key to authenticate the monitor.
-	 * This key should be as same as the one we gave when the RMI server was started.
+	 * This key should be as same as the one we gave when the RMI server was started,
+	 * or the session token the monitor got back the last time it was added(see Authenticator).
 	 * 
 	 * (non-Javadoc)
 	 * @see FireAlarmDataService#addMonitor(IListener)
 	 */
-	public void addMonitor(FireAlarmMonitor monitor, String key) throws RemoteException {
+	public String addMonitor(FireAlarmMonitor monitor, String key) throws RemoteException {
 		
 		Authenticator authenticator = new Authenticator();
+		String session = authenticator.openMonitorSession(key);
 		
 		// we add the monitor only if the key is correct.
-		if (authenticator.authenticateMonitor(key)) {
+		if (session != null) {
+			MonitorFeed feed = new MonitorFeed(monitor, monitorQueueCapacity, monitorOverflowPolicy, monitorMaxLagMillis, this::evictMonitor);
+			
 			synchronized (monitors) {
-				monitors.add(monitor);
+				monitors.add(feed);
+				monitorSessions.put(feed, session);
 				
 				// since a monitor is added, we need to let all connected monitors(included this one that we just added) know.
 				updateMonitorCount();
 				notifyMonitors(Integer.toString(getMonitorCount()), "monitor_count");
+				
+				// the others already have the sensor count, it's only sent again when it changes.
+				feed.sendSensorCount(getSensorCount());
 			}
 		}
 		else {
@@ -91,7 +234,7 @@ public class RmiServer extends UnicastRemoteObject implements FireAlarmDataServi
 			monitor.onData("Invalid key; make sure you provide the same key as the one given for the RMI server.");
 		}
 		
-		
+		return session;
 	}
 	
 	/*
@@ -103,7 +246,14 @@ public class RmiServer extends UnicastRemoteObject implements FireAlarmDataServi
 	 */
 	public void removeMonitor(FireAlarmMonitor monitor) throws RemoteException {
 		synchronized (monitors) {
-			monitors.remove(monitor);
+			for (MonitorFeed feed: monitors) {
+				if (feed.getMonitor().equals(monitor)) {
+					feed.close();
+					monitors.remove(feed);
+					new Authenticator().closeMonitorSession(monitorSessions.remove(feed));
+					break;
+				}
+			}
 	
 			// since a monitor is removed, we need to let other monitors know.
 			updateMonitorCount();
@@ -111,6 +261,27 @@ public class RmiServer extends UnicastRemoteObject implements FireAlarmDataServi
 		}
 	}
 	
+	/*
+	 * A monitor that stopped answering or fell too far behind, its feed has already given up on it.
+	 */
+	private void evictMonitor(MonitorFeed feed) {
+		synchronized (monitors) {
+			if (!monitors.remove(feed)) {
+				return;
+			}
+			new Authenticator().closeMonitorSession(monitorSessions.remove(feed));
+			System.out.println("Evicted a monitor that failed or fell behind, " + feed.getDropped() + " updates were dropped for it.");
+			
+			updateMonitorCount();
+			try {
+				notifyMonitors(Integer.toString(getMonitorCount()), "monitor_count");
+			}
+			catch (RemoteException e) {
+				// notifyMonitors only queues, nothing remote happens here.
+			}
+		}
+	}
+	
 	public void login(String key) throws RemoteException {
 		
 	}
@@ -122,59 +293,491 @@ public class RmiServer extends UnicastRemoteObject implements FireAlarmDataServi
 	 * 		Sensor count
 	 * 
 	 * Therefore, depending on data type we need to call the relevant method of the monitor.
+	 * 
+	 * The calls themselves are made by each monitor's feed on a delivery thread, so this never waits for a monitor.
 	 */
 	public void notifyMonitors(String data, String dataType) throws RemoteException {
 		
-		// if we don't synchronize the monitors array list, we will get a concurrent modification exception,
-		// when this method is going through the monitors(iterating) while a new monitor joins.
+		// we go through a copy of the monitors list, a feed may evict its monitor(and remove it from the list),
+		// while we are going through it.
+		ArrayList<MonitorFeed> feeds;
 		synchronized (monitors) {
-			for(FireAlarmMonitor monitor: monitors) {
-				switch (dataType) {
-				case "data":	monitor.onData(data);
-							    break;
-							    
-				case "monitor_count":	monitor.onMonitorChange(Integer.parseInt(data));
-										break;
-										
-				case "sensor_count":	monitor.onSensorChnange(Integer.parseInt(data));
-										break;
-					
-				}
+			feeds = new ArrayList<>(monitors);
+		}
+		
+		long start = System.nanoTime();
+		for(MonitorFeed feed: feeds) {
+			switch (dataType) {
+			case "data":	feed.sendData(data);
+						    break;
+						    
+			case "monitor_count":	feed.sendMonitorCount(Integer.parseInt(data));
+									break;
+									
+			case "sensor_count":	feed.sendSensorCount(Integer.parseInt(data));
+									break;
+				
 			}
 		}
+		fanOutTime.record(System.nanoTime() - start);
+	}
+	
+	/*
+	 * Structured version of notifyMonitors for readings, they go out through onReadings.
+	 */
+	public void notifyMonitors(List<SensorReading> readings) {
+		ArrayList<MonitorFeed> feeds;
+		synchronized (monitors) {
+			feeds = new ArrayList<>(monitors);
+		}
+		
+		long start = System.nanoTime();
+		for (MonitorFeed feed: feeds) {
+			feed.sendReadings(readings);
+		}
+		fanOutTime.record(System.nanoTime() - start);
 	}
 	
 	
+	/*
+	 * Latest reading of every connected sensor, all of it in one go.
+	 * getReadings is the better way for anything but a handful of sensors, this is what it does for every page.
+	 * 
+	 * (non-Javadoc)
+	 * @see FireAlarmDataService#getAllReadings()
+	 */
 	public String getAllReadings() throws RemoteException {
-		String data = fileManager.readXmlData(new File("./current.txt"));
-
-		return data;
+		StringBuilder data = new StringBuilder();
+		
+		String cursor = null;
+		do {
+			ReadingPage page = snapshots.page(cursor, ReadingSnapshots.MAX_PAGE_SIZE, null, Long.MIN_VALUE, Long.MAX_VALUE);
+			for (SensorReading reading: page.getReadings()) {
+				data.append(reading);
+			}
+			cursor = page.getNextCursor();
+		} while (cursor != null);
+		
+		return data.toString();
+	}
+	
+	/*
+	 * A page of the latest readings, see ReadingSnapshots.
+	 * 
+	 * (non-Javadoc)
+	 * @see FireAlarmDataService#getReadings(String, int, String, long, long)
+	 */
+	public ReadingPage getReadings(String cursor, int pageSize, String sensorIdPrefix, long from, long to) throws RemoteException {
+		return snapshots.page(cursor, pageSize, sensorIdPrefix, from, to);
+	}
+	
+	/*
+	 * A page of the readings of one sensor, taken between from and to(millis, inclusive), oldest first.
+	 * The cursor is where the sensor's history carries on, so it stays good however many readings come in meanwhile.
+	 * 
+	 * (non-Javadoc)
+	 * @see FireAlarmDataService#getHistory(String, int, String, long, long)
+	 */
+	public ReadingPage getHistory(String cursor, int pageSize, String sensorId, long from, long to) throws RemoteException {
+		long index;
+		try {
+			index = (cursor == null || cursor.isEmpty()) ? 0 : Long.parseLong(cursor);
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Not a cursor given by getHistory: " + cursor);
+		}
+		
+		ArrayList<SensorReading> page = new ArrayList<>();
+		long next = history.scan(sensorId, from, to, index, Math.max(1, Math.min(pageSize, ReadingSnapshots.MAX_PAGE_SIZE)),
+				(id, i, timestamp, temperature, battery, smoke, co2, unreported, alarm) -> {
+			FireSensorData fsd = new FireSensorData(id, temperature, battery, smoke, co2, timestamp, 0);
+			if (unreported) {
+				fsd.markUnreported();
+			}
+			fsd.setAlarm(alarm);
+			page.add(new SensorReading(fsd));
+		});
+		
+		return new ReadingPage(page, (next < 0) ? null : Long.toString(next), 0, (int) history.getReadingCount(sensorId));
+	}
+	
+	/*
+	 * Min, max and mean of each sensor's(or floor's) readings over the window, see Rollups.
+	 * 
+	 * (non-Javadoc)
+	 * @see FireAlarmDataService#getSensorRollups(Rollups.Window)
+	 */
+	public List<Rollup> getSensorRollups(Rollups.Window window) throws RemoteException {
+		return rollups().getSensorRollups(window);
+	}
+	
+	public List<Rollup> getFloorRollups(Rollups.Window window) throws RemoteException {
+		return rollups().getFloorRollups(window);
+	}
+	
+	/*
+	 * Every metric of this JVM as it is now, the same ones JMX has(see MetricsRegistry);
+	 * the socket server's as well, if it's right here.
+	 * 
+	 * (non-Javadoc)
+	 * @see FireAlarmDataService#getMetrics()
+	 */
+	public List<MetricValue> getMetrics() throws RemoteException {
+		return MetricsRegistry.snapshot();
+	}
+	
+	// the socket server keeps them as it takes readings in, if it's right here.
+	private Rollups rollups() {
+		return (readings != null) ? SocketServer.getRollups() : rollups;
+	}
+	
+	/*
+	 * Latest reading of each sensor, from wherever the socket server hands them over.
+	 */
+	private Collection<FireSensorData> currentReadings() {
+		// the socket server is right here, its hash map has them all.
+		if (readings != null) {
+			return SocketServer.snapshotSensorData().values();
+		}
+		if (ring != null) {
+			synchronized (latestFromRing) {
+				return new ArrayList<>(latestFromRing.values());
+			}
+		}
+		
+		HashMap<String, FireSensorData> latest = new HashMap<>();
+		try {
+			fileManager.readLatestReadings(new File("./current.txt"), latest);
+		}
+		catch (IOException | XMLStreamException | RuntimeException e) {
+			// the socket server may be halfway through writing the file, we go with what we got.
+		}
+		
+		return latest.values();
 	}
 	
 	public void updateMonitorCount() {
 		synchronized (monitors) {
-			fileManager.writeToFile(Integer.toString(monitors.size()), monitorCountFile, false);
+			if (ring != null) {
+				ring.setMonitorCount(monitors.size());
+			}
+			else {
+				fileManager.writeToFile(Integer.toString(monitors.size()), monitorCountFile, false);
+			}
 		}
 	}
 	
 	
 	public void run() {
+		
+		// how fast alarms reach the monitors, every minute there have been any.
+		long[] alarmsReported = { 0 };
+		dispatchTimer.scheduleAtFixedRate(() -> {
+			if (MonitorFeed.alarmLatency.getCount() != alarmsReported[0]) {
+				alarmsReported[0] = MonitorFeed.alarmLatency.getCount();
+				System.out.println(MonitorFeed.alarmLatency);
+			}
+		}, 1, 1, TimeUnit.MINUTES);
+		
+		if (readings != null) {
+			Thread alarms = new Thread(this::dispatchAlarmsFromBus, "alarm-dispatcher");
+			alarms.setDaemon(true);
+			alarms.start();
+			
+			dispatchFromBus();
+			return;
+		}
+		if (ring != null) {
+			dispatchFromRing();
+			return;
+		}
 
+		dispatchFromFiles();
+	}
+	
+	/*
+	 * Reads data.txt and s_count.txt whenever the socket server changes them, which the file system tells us about.
+	 * In case it doesn't(some file systems can't), we look anyway once every tick.
+	 */
+	private void dispatchFromFiles() {
+		File dataFile = new File("./data.txt");
+		WatchService watcher = null;
+		
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+			dataFile.getAbsoluteFile().getParentFile().toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		}
+		catch (IOException e) {
+			System.err.println("Can't watch for file changes, reading the files every " + dispatchTickMillis + "ms instead.");
+		}
+		
+		ArrayList<FireSensorData> batch = new ArrayList<>();
+		
 		while(true) {
-			String data;
 			try {
 				// current readings.
-				if ((data = fileManager.readXmlData(new File("./data.txt"))) != null) {
-					notifyMonitors(data, "data");
+				readNewReadings(dataFile, batch);
+				if (!batch.isEmpty()) {
+					deliver(batch);
 				}
-				this.notifyMonitors(Integer.toString(getSensorCount()), "sensor_count");
+				notifySensorCountIfChanged();
+			}
+			catch (RemoteException e) {
+				// carry on, and wait for the next change.
 			}
+			finally {
+				// delivered or not, they're never sent again.
+				batch.clear();
+			}
+			
+			try {
+				if (watcher == null) {
+					Thread.sleep(dispatchTickMillis);
+				}
+				else {
+					// any change in the directory, we find out what's new by reading.
+					WatchKey key = watcher.poll(dispatchTickMillis, TimeUnit.MILLISECONDS);
+					if (key != null) {
+						key.pollEvents();
+						key.reset();
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+	
+	private void readNewReadings(File dataFile, List<FireSensorData> readings) {
+		try {
+			fileManager.readNewReadings(dataFile, readings);
+		}
+		catch (IOException | XMLStreamException | RuntimeException e) {
+			// the socket server may be halfway through writing the file, we'll read it next time.
+		}
+	}
+	
+	/*
+	 * Monitors only hear about the sensor count when it changes.
+	 */
+	private void notifySensorCountIfChanged() throws RemoteException {
+		int sensorCount = getSensorCount();
+		
+		// -1 means s_count.txt was caught halfway through being written, the real count comes next time.
+		if (sensorCount >= 0 && sensorCount != lastSensorCount) {
+			lastSensorCount = sensorCount;
+			snapshots.changed();		// a sensor may have left.
+			this.notifyMonitors(Integer.toString(sensorCount), "sensor_count");
+		}
+	}
+	
+	/*
+	 * Waits for readings from the socket server in the same JVM and passes them on to the monitors.
+	 * Whatever piled up while the monitors were being notified goes out together in the next call.
+	 */
+	private void dispatchFromBus() {
+		ArrayList<FireSensorData> batch = new ArrayList<>();
 		
+		while (true) {
+			try {
+				// a sensor can leave without sending anything, so we check the count every tick as well.
+				FireSensorData reading = readings.poll(dispatchTickMillis, TimeUnit.MILLISECONDS);
+				if (reading == null) {
+					notifySensorCountIfChanged();
+					continue;
+				}
+				
+				batch.add(reading);
+				readings.drainTo(batch);
+				
+				deliver(batch);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
 			catch (RemoteException e) {
 				continue;
 			}
+			finally {
+				batch.clear();
+			}
+		}
+	}
+	
+	/*
+	 * Alarms have a queue of their own on the bus, and a thread of their own here.
+	 */
+	private void dispatchAlarmsFromBus() {
+		while (true) {
+			try {
+				FireSensorData alarm = readings.takeAlarm();
+				pickedUp(alarm);
+				history.append(alarm);
+				deliverAlarm(alarm);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+	
+	/*
+	 * Tails the reading ring the socket server writes to, starting after the last reading we acknowledged.
+	 * The ring can't wake us up, so we spin for a moment when it's empty and then back off, up to a millisecond.
+	 */
+	private void dispatchFromRing() {
+		ArrayList<FireSensorData> batch = new ArrayList<>();
+		int idle = 0;
+		
+		while (true) {
+			if (ring.poll(batch, RING_BATCH_SIZE) == 0) {
+				idle++;
+				if (idle < 100) {
+					Thread.onSpinWait();
+				}
+				else {
+					LockSupport.parkNanos(Math.min(1000000, 1000L << Math.min(idle - 100, 10)));
+					
+					try {
+						notifySensorCountIfChanged();
+					}
+					catch (RemoteException e) {
+						// try again next time.
+					}
+				}
+				continue;
+			}
+			idle = 0;
+			
+			synchronized (latestFromRing) {
+				for (FireSensorData fsd: batch) {
+					latestFromRing.put(fsd.getSensorId(), fsd);
+				}
+			}
+			
+			try {
+				deliver(batch);
+			}
+			catch (RemoteException e) {
+				// same as the other loops, carry on with the next readings.
+			}
+			finally {
+				ring.acknowledge();
+				batch.clear();
+			}
+		}
+	}
+	
+	/*
+	 * Readings that came in together go out to the monitors in one call, followed by the sensor count if it changed.
+	 */
+	private void deliver(List<FireSensorData> batch) throws RemoteException {
+		snapshots.changed();
+		for (FireSensorData fsd: batch) {
+			pickedUp(fsd);
+			history.append(fsd);
+			if (readings == null) {
+				rollups.record(fsd);
+			}
 		}
 		
+		// alarms in with the routine readings(from the ring) go out first, on their own.
+		ArrayList<FireSensorData> routine = null;
+		for (int i = 0; i < batch.size(); i++) {
+			FireSensorData fsd = batch.get(i);
+			
+			if (fsd.isAlarm()) {
+				deliverAlarm(fsd);
+				if (routine == null) {
+					routine = new ArrayList<>(batch.subList(0, i));
+				}
+			}
+			else if (routine != null) {
+				routine.add(fsd);
+			}
+		}
+		if (routine != null) {
+			batch = routine;
+			if (batch.isEmpty()) {
+				notifySensorCountIfChanged();
+				return;
+			}
+		}
+		
+		if (batchWindowMillis > 0) {
+			addToBatch(batch);
+			notifySensorCountIfChanged();
+			return;
+		}
+		
+		StringBuilder data = new StringBuilder();
+		for (FireSensorData fsd: batch) {
+			data.append(fsd.getReadingString());
+		}
+		
+		notifyMonitors(data.toString(), "data");
+		notifySensorCountIfChanged();
+	}
+	
+	/*
+	 * For the flight recorder, see metrics.ReadingEvent.
+	 */
+	private void pickedUp(FireSensorData fsd) {
+		String source = (readings != null) ? "bus" : (ring != null) ? "ring" : "files";
+		long queued = (fsd.getReceivedNanos() != 0) ? System.nanoTime() - fsd.getReceivedNanos() : Long.MIN_VALUE;
+		new ReadingPickupEvent(source, queued).commit(fsd.getSensorId(), fsd.getSequence());
+	}
+	
+	/*
+	 * Skips batching and every queue of routine readings, each monitor gets it through onAlarm,
+	 * before anything else that is waiting for it.
+	 */
+	private void deliverAlarm(FireSensorData alarm) {
+		snapshots.changed();
+		
+		SensorReading reading = new SensorReading(alarm);
+		
+		ArrayList<MonitorFeed> feeds;
+		synchronized (monitors) {
+			feeds = new ArrayList<>(monitors);
+		}
+		
+		long start = System.nanoTime();
+		for (MonitorFeed feed: feeds) {
+			feed.sendAlarm(reading);
+		}
+		fanOutTime.record(System.nanoTime() - start);
+	}
+	
+	/*
+	 * The first reading of a batch starts the window, whatever comes in before it closes replaces,
+	 * an earlier reading of the same sensor. So a storm of readings costs each monitor one call per window.
+	 */
+	private void addToBatch(List<FireSensorData> readings) {
+		synchronized (pendingBatch) {
+			for (FireSensorData fsd: readings) {
+				// remove first, so the batch is in the order the sensors last reported.
+				pendingBatch.remove(fsd.getSensorId());
+				pendingBatch.put(fsd.getSensorId(), new SensorReading(fsd));
+			}
+			
+			if (!batchScheduled) {
+				batchScheduled = true;
+				dispatchTimer.schedule(this::sendBatch, batchWindowMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+	
+	private void sendBatch() {
+		ArrayList<SensorReading> readings;
+		synchronized (pendingBatch) {
+			readings = new ArrayList<>(pendingBatch.values());
+			pendingBatch.clear();
+			batchScheduled = false;
+		}
+		
+		notifyMonitors(readings);
 	}
 	
 	public static void main(String [] args) throws RemoteException, IOException {
@@ -196,7 +799,41 @@ public class RmiServer extends UnicastRemoteObject implements FireAlarmDataServi
 			System.out.println("Fire Alarm RMI server is up and running");
 			
 			// register ourself with the rmiregistry.
-			RmiServer rmiServer = new RmiServer();
+			// with --ring, readings come from the socket server through the memory mapped ring instead of data.txt.
+			RmiServer rmiServer;
+			List<String> arguments = Arrays.asList(args);
+			if (arguments.contains("--ring")) {
+				rmiServer = new RmiServer(MappedReadingRing.open(MappedReadingRing.DEFAULT_FILE, MappedReadingRing.DEFAULT_CAPACITY));
+			}
+			else {
+				rmiServer = new RmiServer();
+			}
+			
+			// --tick <millis>, the longest the dispatcher waits before looking for changes on its own.
+			String tick = argumentValue(arguments, "--tick");
+			if (tick != null) {
+				rmiServer.setDispatchTick(Long.parseLong(tick));
+			}
+			
+			// --batch <millis>, send readings in batches(see FireAlarmMonitor.onReadings) instead of as text.
+			String batchWindow = argumentValue(arguments, "--batch");
+			if (batchWindow != null) {
+				rmiServer.setBatchWindow(Long.parseLong(batchWindow));
+			}
+			
+			// --history <readings>, how many readings of each sensor getHistory goes back.
+			String historyRetention = argumentValue(arguments, "--history");
+			if (historyRetention != null) {
+				rmiServer.setHistoryRetention(Integer.parseInt(historyRetention));
+			}
+			
+			// --monitor-queue <updates> --monitor-policy <drop_oldest|drop_newest|coalesce> --monitor-lag <millis>
+			String queue = argumentValue(arguments, "--monitor-queue");
+			String policy = argumentValue(arguments, "--monitor-policy");
+			String lag = argumentValue(arguments, "--monitor-lag");
+			rmiServer.setMonitorFeedPolicy((queue != null) ? Integer.parseInt(queue) : 100,
+					(policy != null) ? MonitorFeed.OverflowPolicy.valueOf(policy.toUpperCase()) : MonitorFeed.OverflowPolicy.COALESCE,
+					(lag != null) ? Long.parseLong(lag) : 10000);
 			String registration = "rmi://localhost/FireAlarmService";
 			
 			Naming.rebind(registration, rmiServer);
@@ -207,5 +844,11 @@ public class RmiServer extends UnicastRemoteObject implements FireAlarmDataServi
 			e.printStackTrace();
 		}
 	}
+	
+	// the value after the given option, null if the option isn't there.
+	private static String argumentValue(List<String> arguments, String option) {
+		int i = arguments.indexOf(option);
+		return (i >= 0 && i + 1 < arguments.size()) ? arguments.get(i + 1) : null;
+	}
  
 }
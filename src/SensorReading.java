@@ -0,0 +1,116 @@
+import java.io.Serializable;
+
+import socket.FireSensorData;
+import socket.SensorError;
+
+
+/*
+ * One reading as the monitors get it through onReadings, the values as they are instead of a line of text.
+ * Errors come as their codes(see SensorError), the messages are only put together if the monitor asks for them.
+ */
+public class SensorReading implements Serializable {
+
+	private static final long serialVersionUID = -1196825034371586940L;
+
+	private final String sensorId;
+	private final double temperature;
+	private final int batteryPercentage;
+	private final int smokeLevel;
+	private final double co2Level;
+	private final long timestamp;		// millis, when the reading was taken.
+	private final long sequence;		// numbers the readings of a sensor.
+	private final int errorCodes;		// see SensorError, unreported is one of them.
+	private final boolean alarm;		// see FireSensorData.classifyAlarm.
+	private final String ruleAlerts;	// configured rules that fired for it, see FireSensorData.getRuleAlerts.
+	
+	// when the server got the reading(System.nanoTime()), for measuring how long it took to reach the monitor.
+	private final transient long receivedNanos;
+
+
+	public SensorReading(FireSensorData fsd) {
+		this.sensorId = fsd.getSensorId();
+		this.temperature = fsd.getTemperature();
+		this.batteryPercentage = fsd.getBatteryPercentage();
+		this.smokeLevel = fsd.getSmokeLevel();
+		this.co2Level = fsd.getCo2Level();
+		this.timestamp = fsd.getTimestamp();
+		this.sequence = fsd.getSequence();
+		this.errorCodes = fsd.getErrorCodes();
+		this.alarm = fsd.isAlarm();
+		this.ruleAlerts = fsd.getRuleAlerts();
+		this.receivedNanos = fsd.getReceivedNanos();
+	}
+
+	public String getSensorId() {
+		return sensorId;
+	}
+
+	public double getTemperature() {
+		return temperature;
+	}
+
+	public int getBatteryPercentage() {
+		return batteryPercentage;
+	}
+
+	public int getSmokeLevel() {
+		return smokeLevel;
+	}
+
+	public double getCo2Level() {
+		return co2Level;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	// the sensor missed its hourly report, this is its last reading.
+	public boolean isUnreported() {
+		return SensorError.UNREPORTED.isIn(errorCodes);
+	}
+
+	public int getErrorCodes() {
+		return errorCodes;
+	}
+
+	/*
+	 * Same as FireSensorData.getSensorErrors, empty strings for no error.
+	 */
+	public String[] getErrors() {
+		return SensorError.messages(errorCodes, sensorId, temperature, smokeLevel, co2Level);
+	}
+
+	public boolean isAlarm() {
+		return alarm;
+	}
+
+	public String getRuleAlerts() {
+		return ruleAlerts;
+	}
+
+	long getReceivedNanos() {
+		return receivedNanos;
+	}
+
+	/*
+	 * Same line onData gets for this reading.
+	 */
+	public String toString() {
+		String errorText = "";
+		for (String error: getErrors()) {
+			errorText += error;
+		}
+
+		return this.sensorId + " :   " +
+			   "Temps: " + this.temperature + "   " +
+			   "Battery: " + this.batteryPercentage + "   " +
+			   "Smoke: " + this.smokeLevel + "   " +
+			   "CO2: " + this.co2Level + "   " +
+			   errorText + this.ruleAlerts + "\n";
+	}
+}
@@ -1,61 +1,314 @@
 package authenticate;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 
 import file.FileIO;
+import metrics.Counter;
+import metrics.MetricsRegistry;
 
 /*
  * This class will server as a helper class to authenticate sensors, monitors with their,
  * respective servers.
- * 
- * Since we are using text files to store the keys set by the servers, we have to store the hash code,
- * of the keys instead of the keys themselves.
+ *
+ * Since we are using text files to store the keys set by the servers, we store a salted PBKDF2 hash,
+ * of the keys instead of the keys themselves;
+ * 		pbkdf2-sha256:<iterations>:<salt>:<hash>	(salt and hash in base64)
+ * A file with just a number is the String.hashCode of the key, as the servers used to write it, we still take those.
+ *
+ * The files are read once and again only when they change(we look at most once a second), not for every sensor
+ * that connects, and the hash is compared in constant time.
+ *
+ * Hashing the key is slow on purpose, so whoever authenticates with the key gets a session token back;
+ * a sensor or monitor that comes back within SESSION_LIFETIME_MILLIS of leaving gives the token instead of the key,
+ * which is a lookup. A token is good for one time, coming back with it gets a new one.
+ * The servers close the session when the sensor or monitor leaves(closeSensorSession, closeMonitorSession),
+ * that's when the lifetime starts, so it doesn't matter how long it was connected.
+ * Tokens go when the key changes, and with the server, they're only kept in memory.
  */
 public class Authenticator {
-	
+
+	public static final String SESSION_PREFIX = "session:";
+	public static final long SESSION_LIFETIME_MILLIS = 10 * 60 * 1000;
+
+	private static final String PBKDF2_PREFIX = "pbkdf2-sha256:";
+	private static final int PBKDF2_ITERATIONS = 10000;
+	private static final int SALT_BYTES = 16;
+	private static final int HASH_BITS = 256;
+	private static final int TOKEN_BYTES = 32;
+	private static final long RELOAD_CHECK_MILLIS = 1000;
+
+	private static final SecureRandom random = new SecureRandom();
+
+	// one per file, shared by every Authenticator so what we read from a file is read once;
+	// only loaded by the servers, the sensors just look for their tokens(see sessionIn).
+	private static class KeyFiles {
+		static final KeyFile socketKeys = new KeyFile(new File("./sockAuthen.txt"), "sensors");
+		static final KeyFile rmiKeys = new KeyFile(new File("./rmiAuthen.txt"), "monitors");
+	}
+
 	// Authenticator properties.
 	private FileIO fileManager = new FileIO();
-	private File socketAuthenFile = new File("./sockAuthen.txt");
-	private File rmiAuthenFile = new File("./rmiAuthen.txt");
 
-	
+
 	/*
 	 * Implementation.
 	 */
 	public void setSocketServerAuthentication(String key) throws IOException {
 		// we should always overwrite the file so that there will only be one master key stored in the file.
-		fileManager.writeToFile(Integer.toString(key.hashCode()), socketAuthenFile, false);
+		fileManager.writeToFile(hash(key), KeyFiles.socketKeys.file, false);
+		KeyFiles.socketKeys.reload();
 	}
-	
+
 	public void setRmiServerAuthentication(String key) throws IOException {
 		// we should always overwrite the file so that there will only be one master key stored in the file.
-		fileManager.writeToFile(Integer.toString(key.hashCode()), rmiAuthenFile, false);
+		fileManager.writeToFile(hash(key), KeyFiles.rmiKeys.file, false);
+		KeyFiles.rmiKeys.reload();
 	}
-	
+
+	// the key only, no session comes of it.
 	public boolean authenticateSensor(String input) {
-		boolean result = false;
-		
-		// get the hash code of the master key.
-		String masterKeyHash = fileManager.readFile(socketAuthenFile);
-			
-		if (masterKeyHash != null) {
-			result = Integer.parseInt(masterKeyHash) == input.hashCode();
-		}
-		
-		return result;
-	}
-	
+		return KeyFiles.socketKeys.check(input);
+	}
+
 	public boolean authenticateMonitor(String input) {
-		boolean result = false;
-		
-		// get the hash code of the master key.
-		String masterKeyHash = fileManager.readFile(rmiAuthenFile);
-			
-		if (masterKeyHash != null) {
-			result = Integer.parseInt(masterKeyHash) == input.hashCode();
+		return KeyFiles.rmiKeys.check(input);
+	}
+
+	/*
+	 * Same as authenticateSensor, but returns the session token the sensor can use the next time instead of the key,
+	 * or null if the key(or the token) is wrong.
+	 * The session stays open until closeSensorSession, whoever opens one has to close it.
+	 */
+	public String openSensorSession(String input) {
+		return KeyFiles.socketKeys.openSession(input);
+	}
+
+	public String openMonitorSession(String input) {
+		return KeyFiles.rmiKeys.openSession(input);
+	}
+
+	/*
+	 * The sensor(or monitor) is gone, the token is good for SESSION_LIFETIME_MILLIS from now.
+	 * Nothing happens for a null token, or one of a key that has changed since.
+	 */
+	public void closeSensorSession(String session) {
+		KeyFiles.socketKeys.closeSession(session);
+	}
+
+	public void closeMonitorSession(String session) {
+		KeyFiles.rmiKeys.closeSession(session);
+	}
+
+	/*
+	 * Servers add the token to their reply to the sensor's key, in brackets; null if there's none in the reply.
+	 */
+	public static String sessionIn(String serverResponse) {
+		int start = (serverResponse == null) ? -1 : serverResponse.indexOf("[" + SESSION_PREFIX);
+		if (start < 0) {
+			return null;
+		}
+
+		int end = serverResponse.indexOf(']', start);
+		return (end < 0) ? null : serverResponse.substring(start + 1, end);
+	}
+
+	private static String hash(String key) {
+		byte[] salt = new byte[SALT_BYTES];
+		random.nextBytes(salt);
+
+		Base64.Encoder base64 = Base64.getEncoder();
+		return PBKDF2_PREFIX + PBKDF2_ITERATIONS + ":" + base64.encodeToString(salt) + ":" + base64.encodeToString(pbkdf2(key, salt, PBKDF2_ITERATIONS));
+	}
+
+	private static byte[] pbkdf2(String key, byte[] salt, int iterations) {
+		PBEKeySpec spec = new PBEKeySpec(key.toCharArray(), salt, iterations, HASH_BITS);
+		try {
+			return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+		}
+		catch (GeneralSecurityException e) {
+			// every JRE has it.
+			throw new IllegalStateException(e);
+		}
+		finally {
+			spec.clearPassword();
+		}
+	}
+
+	private static byte[] sha256(String text) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+	/*
+	 * A key file as we last read it, and the sessions opened with its key.
+	 */
+	private static class KeyFile {
+
+		private final File file;
+		private final Counter failures;		// see MetricsRegistry.
+		private final Counter resumed;
+		private volatile Key key;				// null if there's no file, or nothing we understand in it.
+		private volatile long nextCheck = 0;
+		private long lastModified = 0;			// guarded by this.
+		private long length = -1;
+
+		KeyFile(File file, String who) {
+			this.file = file;
+			this.failures = MetricsRegistry.counter(who + ".authentication.failures");
+			this.resumed = MetricsRegistry.counter(who + ".authentication.resumed");
+		}
+
+		boolean check(String input) {
+			Key current = getKey();
+			if (current == null || input == null || !current.matches(input)) {
+				failures.increment();
+				return false;
+			}
+			return true;
+		}
+
+		String openSession(String input) {
+			Key current = getKey();
+			if (current == null || input == null) {
+				failures.increment();
+				return null;
+			}
+
+			// a token if it's one of ours, the key otherwise(which could start with the prefix as well).
+			if (input.startsWith(SESSION_PREFIX) && current.resume(input)) {
+				resumed.increment();
+				return current.newSession();
+			}
+			if (!current.matches(input)) {
+				failures.increment();
+				return null;
+			}
+			return current.newSession();
+		}
+
+		void closeSession(String session) {
+			Key current = key;
+			if (current != null && session != null) {
+				current.close(session);
+			}
+		}
+
+		private Key getKey() {
+			long now = System.currentTimeMillis();
+			if (now >= nextCheck) {
+				synchronized (this) {
+					if (now >= nextCheck) {
+						if (file.lastModified() != lastModified || file.length() != length) {
+							reload();
+						}
+						nextCheck = now + RELOAD_CHECK_MILLIS;
+					}
+				}
+			}
+
+			return key;
+		}
+
+		synchronized void reload() {
+			lastModified = file.lastModified();
+			length = file.length();
+
+			String text = file.exists() ? new FileIO().readFile(file).trim() : "";
+			if (key == null || !key.text.equals(text)) {
+				// a new key, the sessions of the old one go with it.
+				key = Key.parse(text);
+			}
 		}
-		
-		return result;
 	}
 
+	private static class Key {
+
+		private static final Long OPEN = Long.MAX_VALUE;
+
+		private final String text;		// as it is in the file.
+		private final byte[] salt;
+		private final int iterations;
+		private final byte[] hash;		// or the String.hashCode of the key, if there's no salt.
+
+		// sessions by the SHA-256 of the token, so looking one up doesn't tell how much of a token is right;
+		// when each expires, OPEN until it's closed.
+		private final ConcurrentHashMap<String, Long> sessions = new ConcurrentHashMap<>();
+		private volatile long nextSweep = 0;
+
+		private Key(String text, byte[] salt, int iterations, byte[] hash) {
+			this.text = text;
+			this.salt = salt;
+			this.iterations = iterations;
+			this.hash = hash;
+		}
+
+		// null for an empty file or one we don't understand.
+		static Key parse(String text) {
+			try {
+				if (text.startsWith(PBKDF2_PREFIX)) {
+					String[] fields = text.substring(PBKDF2_PREFIX.length()).split(":");
+					Base64.Decoder base64 = Base64.getDecoder();
+					return new Key(text, base64.decode(fields[1]), Integer.parseInt(fields[0]), base64.decode(fields[2]));
+				}
+
+				int legacyHash = Integer.parseInt(text);
+				return new Key(text, null, 0, Integer.toString(legacyHash).getBytes(StandardCharsets.US_ASCII));
+			}
+			catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+				return null;
+			}
+		}
+
+		boolean matches(String input) {
+			byte[] inputHash = (salt == null) ? Integer.toString(input.hashCode()).getBytes(StandardCharsets.US_ASCII) : pbkdf2(input, salt, iterations);
+			return MessageDigest.isEqual(inputHash, hash);
+		}
+
+		String newSession() {
+			byte[] bytes = new byte[TOKEN_BYTES];
+			random.nextBytes(bytes);
+			String token = SESSION_PREFIX + Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+
+			long now = System.currentTimeMillis();
+			sessions.put(digest(token), OPEN);
+
+			// the tokens nobody came back with.
+			if (now >= nextSweep) {
+				nextSweep = now + SESSION_LIFETIME_MILLIS;
+				sessions.values().removeIf(expiry -> expiry < now);
+			}
+
+			return token;
+		}
+
+		// only an open session, a token that was already closed(or used) keeps what it has.
+		void close(String token) {
+			sessions.replace(digest(token), OPEN, System.currentTimeMillis() + SESSION_LIFETIME_MILLIS);
+		}
+
+		// true if the token is one of ours that hasn't expired, it's used up either way.
+		boolean resume(String token) {
+			Long expiry = sessions.remove(digest(token));
+			return expiry != null && expiry >= System.currentTimeMillis();
+		}
+
+		private static String digest(String token) {
+			return Base64.getEncoder().encodeToString(sha256(token));
+		}
+	}
 }
@@ -0,0 +1,28 @@
+package bench;
+
+/*
+ * A benchmark for the Harness; set up once, then its operation over and over for as long as an iteration takes,
+ * and torn down at the end. Each benchmark runs in a JVM of its own, in an empty working directory,
+ * so whatever files it makes are its own.
+ */
+public abstract class Benchmark {
+
+	private final String name;
+
+	protected Benchmark(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setUp() throws Exception {}
+
+	/*
+	 * One operation. Whatever it returns is kept around for a while, so the JIT can't throw the work away.
+	 */
+	public abstract Object operation() throws Exception;
+
+	public void tearDown() throws Exception {}
+}
@@ -0,0 +1,299 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/*
+ * Runs benchmarks the way JMH would, without needing JMH;
+ * 		every benchmark runs in a fresh JVM(a fork), in an empty temporary directory, as many forks as asked for.
+ * 		a few warmup iterations first, for the JIT, then the measured ones, each a fixed amount of time.
+ * 		operations are timed in batches, big enough that reading the clock doesn't count for much.
+ * 		whatever an operation returns is kept, so the work can't be optimized away.
+ * Every measured iteration gives the throughput, and how much was allocated per operation,
+ * by all the threads of the fork(so work handed off to other threads counts as well);
+ * the results are the mean of all the measured iterations of all the forks, give or take(+-) their standard deviation.
+ *
+ * Options, after an optional regular expression a benchmark's name has to contain to run;
+ * 		--warmup <n>		warmup iterations, 5 by default.
+ * 		--iterations <n>	measured iterations, 5 by default.
+ * 		--time <ms>			length of an iteration, 1000 by default.
+ * 		--forks <n>			JVMs per benchmark, 1 by default.
+ * 		--list				just the names.
+ * --child <name> is how a fork is told which benchmark to run, it reports each measured iteration as a line of its own.
+ */
+public class Harness {
+
+	private static final String ITERATION_RESULT = "@iteration ";
+	private static final long MIN_BATCH_NANOS = 10000;		// a batch takes at least this long, reading the clock takes ~20ns.
+	private static final int SINK_SIZE = 1024;				// results kept, a power of 2.
+	private static final String[] FORK_JVM_OPTIONS = { "-Xms1g", "-Xmx1g" };
+
+	private final String mainClass;
+	private final List<Benchmark> benchmarks;
+
+	private int warmupIterations = 5;
+	private int measuredIterations = 5;
+	private long iterationMillis = 1000;
+	private int forks = 1;
+
+	private final Object[] sink = new Object[SINK_SIZE];
+
+
+	/*
+	 * mainClass is what a fork runs, with the same benchmarks, it passes its arguments to run.
+	 */
+	public Harness(String mainClass, List<Benchmark> benchmarks) {
+		this.mainClass = mainClass;
+		this.benchmarks = benchmarks;
+	}
+
+	public void run(String[] args) throws Exception {
+		Pattern filter = null;
+		String child = null;
+		boolean list = false;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--warmup") && i + 1 < args.length) {
+				warmupIterations = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("--iterations") && i + 1 < args.length) {
+				measuredIterations = Math.max(1, Integer.parseInt(args[++i]));
+			}
+			else if (args[i].equals("--time") && i + 1 < args.length) {
+				iterationMillis = Long.parseLong(args[++i]);
+			}
+			else if (args[i].equals("--forks") && i + 1 < args.length) {
+				forks = Math.max(1, Integer.parseInt(args[++i]));
+			}
+			else if (args[i].equals("--child") && i + 1 < args.length) {
+				child = args[++i];
+			}
+			else if (args[i].equals("--list")) {
+				list = true;
+			}
+			else {
+				filter = Pattern.compile(args[i]);
+			}
+		}
+
+		if (child != null) {
+			runChild(child);
+			System.exit(0);		// whatever threads the benchmark left behind.
+		}
+
+		ArrayList<Benchmark> selected = new ArrayList<>();
+		for (Benchmark benchmark: benchmarks) {
+			if (filter == null || filter.matcher(benchmark.getName()).find()) {
+				selected.add(benchmark);
+			}
+		}
+
+		if (list) {
+			selected.forEach(benchmark -> System.out.println(benchmark.getName()));
+			return;
+		}
+
+		ArrayList<String> results = new ArrayList<>();
+		for (Benchmark benchmark: selected) {
+			results.add(runForks(benchmark.getName()));
+		}
+
+		System.out.println();
+		System.out.println(String.format("%-48s %14s %12s %12s %10s", "Benchmark", "ops/s", "+- sd", "B/op", "MB/s"));
+		results.forEach(System.out::println);
+	}
+
+	/*
+	 * The forks of a benchmark, one after the other; returns its line of the results.
+	 */
+	private String runForks(String name) throws IOException, InterruptedException {
+		ArrayList<double[]> iterations = new ArrayList<>();
+
+		for (int fork = 1; fork <= forks; fork++) {
+			System.out.println("# " + name + ", fork " + fork + " of " + forks);
+
+			Path directory = Files.createTempDirectory("bench");
+			try {
+				ArrayList<String> command = new ArrayList<>();
+				command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+				command.addAll(Arrays.asList(FORK_JVM_OPTIONS));
+				command.add("-cp");
+				command.add(absoluteClassPath());
+				command.add(mainClass);
+				command.addAll(Arrays.asList("--child", name, "--warmup", Integer.toString(warmupIterations),
+						"--iterations", Integer.toString(measuredIterations), "--time", Long.toString(iterationMillis)));
+
+				Process process = new ProcessBuilder(command).directory(directory.toFile()).redirectErrorStream(true).start();
+				try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+					String line;
+					while ((line = output.readLine()) != null) {
+						if (line.startsWith(ITERATION_RESULT)) {
+							String[] fields = line.substring(ITERATION_RESULT.length()).split(" ");
+							iterations.add(new double[] { Double.parseDouble(fields[0]), Double.parseDouble(fields[1]) });
+						}
+						else {
+							System.out.println("  " + line);
+						}
+					}
+				}
+
+				if (process.waitFor() != 0) {
+					return String.format("%-48s %14s", name, "failed");
+				}
+			}
+			finally {
+				deleteAll(directory);
+			}
+		}
+
+		double[] opsPerSecond = new double[iterations.size()];
+		double[] bytesPerOperation = new double[iterations.size()];
+		for (int i = 0; i < iterations.size(); i++) {
+			opsPerSecond[i] = iterations.get(i)[0];
+			bytesPerOperation[i] = iterations.get(i)[1];
+		}
+
+		double throughput = mean(opsPerSecond);
+		double allocation = mean(bytesPerOperation);
+		return String.format("%-48s %14.1f %12.1f %12.1f %10.1f", name, throughput, standardDeviation(opsPerSecond, throughput),
+				allocation, allocation * throughput / (1024 * 1024));
+	}
+
+	private void runChild(String name) throws Exception {
+		Benchmark benchmark = null;
+		for (Benchmark candidate: benchmarks) {
+			if (candidate.getName().equals(name)) {
+				benchmark = candidate;
+			}
+		}
+		if (benchmark == null) {
+			throw new IllegalArgumentException("No benchmark called " + name);
+		}
+
+		benchmark.setUp();
+		try {
+			int batch = batchSize(benchmark);
+
+			for (int i = 1; i <= warmupIterations; i++) {
+				double[] result = iteration(benchmark, batch);
+				System.out.println(String.format("warmup %d: %.1f ops/s, %.1f B/op", i, result[0], result[1]));
+			}
+
+			for (int i = 1; i <= measuredIterations; i++) {
+				double[] result = iteration(benchmark, batch);
+				System.out.println(String.format("iteration %d: %.1f ops/s, %.1f B/op", i, result[0], result[1]));
+				System.out.println(ITERATION_RESULT + result[0] + " " + result[1]);
+			}
+		}
+		finally {
+			benchmark.tearDown();
+		}
+	}
+
+	// operations per batch, doubled until a batch takes long enough.
+	private int batchSize(Benchmark benchmark) throws Exception {
+		int batch = 1;
+		while (batch < (1 << 24)) {
+			long start = System.nanoTime();
+			for (int i = 0; i < batch; i++) {
+				sink[i & (SINK_SIZE - 1)] = benchmark.operation();
+			}
+			if (System.nanoTime() - start >= MIN_BATCH_NANOS) {
+				break;
+			}
+			batch *= 2;
+		}
+
+		return batch;
+	}
+
+	// operations per second and bytes allocated per operation.
+	private double[] iteration(Benchmark benchmark, int batch) throws Exception {
+		long allocatedBefore = allocatedBytes();
+		long operations = 0;
+		long start = System.nanoTime();
+		long end = start + iterationMillis * 1000000;
+		long now;
+
+		do {
+			for (int i = 0; i < batch; i++) {
+				sink[(int) (operations++ & (SINK_SIZE - 1))] = benchmark.operation();
+			}
+			now = System.nanoTime();
+		} while (now < end);
+
+		long allocated = allocatedBytes() - allocatedBefore;
+		return new double[] { operations * 1e9 / (now - start), (allocatedBefore < 0) ? Double.NaN : (double) allocated / operations };
+	}
+
+	// by all the live threads, -1 if the JVM can't tell.
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		if (!allocations.isThreadAllocatedMemorySupported() || !allocations.isThreadAllocatedMemoryEnabled()) {
+			return -1;
+		}
+
+		long total = 0;
+		for (long bytes: allocations.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+			if (bytes > 0) {
+				total += bytes;
+			}
+		}
+		return total;
+	}
+
+	private static String absoluteClassPath() {
+		StringBuilder classPath = new StringBuilder();
+		for (String entry: System.getProperty("java.class.path").split(File.pathSeparator)) {
+			if (classPath.length() > 0) {
+				classPath.append(File.pathSeparator);
+			}
+			classPath.append(new File(entry).getAbsolutePath());
+		}
+
+		return classPath.toString();
+	}
+
+	private static double mean(double[] values) {
+		double sum = 0;
+		for (double value: values) {
+			sum += value;
+		}
+		return sum / values.length;
+	}
+
+	private static double standardDeviation(double[] values, double mean) {
+		if (values.length < 2) {
+			return 0;
+		}
+
+		double squares = 0;
+		for (double value: values) {
+			squares += (value - mean) * (value - mean);
+		}
+		return Math.sqrt(squares / (values.length - 1));
+	}
+
+	private static void deleteAll(Path directory) throws IOException {
+		try (Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+}
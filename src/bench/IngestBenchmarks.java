@@ -0,0 +1,151 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import socket.FireSensorData;
+import socket.SensorFrameCodec;
+
+/*
+ * What the socket server does with every reading; decoding it off the wire, turning the hash map an older sensor
+ * sends into a FireSensorData, and checking it.
+ *
+ * Readings are made up from a fixed seed, so every run gets the same ones, with a fair share of errors among them.
+ */
+public class IngestBenchmarks {
+
+	static final int READINGS = 4096;		// a power of 2, operations go round them.
+
+	public static List<Benchmark> all() {
+		ArrayList<Benchmark> benchmarks = new ArrayList<>();
+
+		benchmarks.add(new Benchmark("FireSensorData.new(HashMap)") {
+			private List<HashMap<String, String>> maps;
+			private int next = 0;
+
+			public void setUp() {
+				maps = readingMaps();
+			}
+
+			public Object operation() {
+				return new FireSensorData(maps.get(next++ & (READINGS - 1)));
+			}
+		});
+
+		benchmarks.add(new Benchmark("FireSensorData.validateAllParameters") {
+			private FireSensorData[] readings;
+			private int next = 0;
+
+			public void setUp() {
+				readings = readings();
+			}
+
+			public Object operation() {
+				FireSensorData fsd = readings[next++ & (READINGS - 1)];
+				fsd.validateAllParameters();
+				return fsd;
+			}
+		});
+
+		benchmarks.add(new Benchmark("FireSensorData.getSensorErrors") {
+			private FireSensorData[] readings;
+			private int next = 0;
+
+			public void setUp() {
+				readings = readings();
+			}
+
+			public Object operation() {
+				return readings[next++ & (READINGS - 1)].getSensorErrors();
+			}
+		});
+
+		// what an older sensor sends, hash maps written one after the other to the same ObjectOutputStream.
+		benchmarks.add(new Benchmark("decode.ObjectInputStream(HashMap)") {
+			private byte[] stream;
+			private ObjectInputStream in;
+			private int read = READINGS;
+
+			public void setUp() throws IOException {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+					for (HashMap<String, String> map: readingMaps()) {
+						out.writeObject(map);
+					}
+				}
+				stream = bytes.toByteArray();
+			}
+
+			@SuppressWarnings("unchecked")
+			public Object operation() throws Exception {
+				if (read == READINGS) {
+					in = new ObjectInputStream(new ByteArrayInputStream(stream));
+					read = 0;
+				}
+				read++;
+
+				return new FireSensorData((HashMap<String, String>) in.readObject());
+			}
+		});
+
+		benchmarks.add(new Benchmark("decode.SensorFrameCodec") {
+			private final SensorFrameCodec codec = new SensorFrameCodec();
+			private ByteBuffer frames;
+
+			public void setUp() {
+				FireSensorData[] readings = readings();
+				frames = ByteBuffer.allocate(READINGS * SensorFrameCodec.frameSize(8));
+				for (FireSensorData fsd: readings) {
+					frames.put(SensorFrameCodec.encode(fsd.getSensorId(), fsd.getTemperature(), fsd.getBatteryPercentage(),
+							fsd.getSmokeLevel(), fsd.getCo2Level(), fsd.getTimestamp(), fsd.getSequence()));
+				}
+				frames.flip();
+			}
+
+			public Object operation() throws Exception {
+				if (!frames.hasRemaining()) {
+					frames.rewind();
+				}
+				return codec.decode(frames);
+			}
+		});
+
+		return benchmarks;
+	}
+
+	static List<HashMap<String, String>> readingMaps() {
+		Random random = new Random(42);
+		ArrayList<HashMap<String, String>> maps = new ArrayList<>(READINGS);
+
+		for (int i = 0; i < READINGS; i++) {
+			HashMap<String, String> data = new HashMap<>();
+			data.put("sensorId", (1 + random.nextInt(23)) + "-" + (1 + random.nextInt(13)));
+			data.put("temperature", Double.toString(20 + random.nextInt(700) / 10.0));
+			data.put("battery", Integer.toString(random.nextInt(101)));
+			data.put("co2", Double.toString(250 + random.nextInt(150)));
+			data.put("smoke", Integer.toString(random.nextInt(11)));
+			maps.add(data);
+		}
+
+		return maps;
+	}
+
+	static FireSensorData[] readings() {
+		List<HashMap<String, String>> maps = readingMaps();
+		FireSensorData[] readings = new FireSensorData[READINGS];
+		for (int i = 0; i < READINGS; i++) {
+			readings[i] = new FireSensorData(maps.get(i));
+			readings[i].setSequence(i);
+		}
+
+		return readings;
+	}
+}
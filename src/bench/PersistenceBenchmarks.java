@@ -0,0 +1,69 @@
+package bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import file.FileIO;
+import socket.FireSensorData;
+
+/*
+ * The xml files the socket server and the RMI server hand readings over with, when they run apart(--files),
+ * written and read for fleets of 10, 1k and 10k sensors.
+ */
+public class PersistenceBenchmarks {
+
+	static final int[] FLEET_SIZES = { 10, 1000, 10000 };
+
+	public static List<Benchmark> all() {
+		ArrayList<Benchmark> benchmarks = new ArrayList<>();
+
+		for (int sensors: FLEET_SIZES) {
+			benchmarks.add(new Benchmark("FileIO.writeSensorDataToXml[" + sensors + "]") {
+				private final FileIO fileManager = new FileIO();
+				private final File file = new File("./current.txt");
+				private HashMap<String, FireSensorData> fleet;
+
+				public void setUp() {
+					fleet = fleet(sensors);
+				}
+
+				public Object operation() throws Exception {
+					fileManager.writeSensorDataToXml(fleet, true, file);
+					return file;
+				}
+			});
+
+			benchmarks.add(new Benchmark("FileIO.readXmlData[" + sensors + "]") {
+				private final FileIO fileManager = new FileIO();
+				private final File file = new File("./current.txt");
+
+				public void setUp() throws Exception {
+					fileManager.writeSensorDataToXml(fleet(sensors), true, file);
+				}
+
+				public Object operation() {
+					return fileManager.readXmlData(file);
+				}
+			});
+		}
+
+		return benchmarks;
+	}
+
+	// a reading of each sensor, ids as the sensors make them up, floor-sensor.
+	static HashMap<String, FireSensorData> fleet(int sensors) {
+		FireSensorData[] readings = IngestBenchmarks.readings();
+		HashMap<String, FireSensorData> fleet = new HashMap<>();
+
+		for (int i = 0; i < sensors; i++) {
+			FireSensorData fsd = readings[i % readings.length];
+			String sensorId = (1 + i / 100) + "-" + (1 + i % 100);
+			fleet.put(sensorId, new FireSensorData(sensorId, fsd.getTemperature(), fsd.getBatteryPercentage(), fsd.getSmokeLevel(),
+					fsd.getCo2Level(), fsd.getTimestamp(), i));
+		}
+
+		return fleet;
+	}
+}
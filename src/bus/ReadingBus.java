@@ -0,0 +1,108 @@
+package bus;
+
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import socket.FireSensorData;
+
+/*
+ * Hands readings from the socket server to the RMI server when both run in the same JVM,
+ * instead of going through data.txt and current.txt.
+ *
+ * Every subscriber gets its own bounded queue, so a slow subscriber can never hold up the socket server.
+ * If a subscriber falls behind far enough for its queue to fill up, its oldest reading is dropped to make room,
+ * since the latest reading of a sensor is the one that matters the most.
+ *
+ * Alarms(see FireSensorData.classifyAlarm) go into a separate queue of each subscription,
+ * so they never wait behind routine readings.
+ */
+public class ReadingBus {
+
+	private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+
+	public Subscription subscribe(String name, int capacity) {
+		Subscription subscription = new Subscription(name, capacity);
+		subscriptions.add(subscription);
+
+		return subscription;
+	}
+
+	public void unsubscribe(Subscription subscription) {
+		subscriptions.remove(subscription);
+	}
+
+	/*
+	 * Never blocks, whatever the subscribers are doing.
+	 */
+	public void publish(FireSensorData reading) {
+		for (Subscription subscription: subscriptions) {
+			subscription.offer(subscription.queue, reading);
+		}
+	}
+
+	public void publishAlarm(FireSensorData alarm) {
+		for (Subscription subscription: subscriptions) {
+			subscription.offer(subscription.alarms, alarm);
+		}
+	}
+
+
+	public static class Subscription {
+
+		private final String name;
+		private final ArrayBlockingQueue<FireSensorData> queue;
+		private final ArrayBlockingQueue<FireSensorData> alarms;
+		private final AtomicLong dropped = new AtomicLong();
+
+		private Subscription(String name, int capacity) {
+			this.name = name;
+			this.queue = new ArrayBlockingQueue<>(capacity);
+			this.alarms = new ArrayBlockingQueue<>(capacity);
+		}
+
+		private void offer(ArrayBlockingQueue<FireSensorData> queue, FireSensorData reading) {
+			while (!queue.offer(reading)) {
+				// full, make room by dropping the oldest reading.
+				if (queue.poll() != null) {
+					dropped.incrementAndGet();
+				}
+			}
+		}
+
+		// waits until there is a reading.
+		public FireSensorData take() throws InterruptedException {
+			return queue.take();
+		}
+
+		// waits up to the given time, null if nothing arrived.
+		public FireSensorData poll(long timeout, TimeUnit unit) throws InterruptedException {
+			return queue.poll(timeout, unit);
+		}
+
+		// waits until there is an alarm.
+		public FireSensorData takeAlarm() throws InterruptedException {
+			return alarms.take();
+		}
+
+		// moves every reading that is already waiting into the collection, without waiting for more.
+		public int drainTo(Collection<FireSensorData> readings) {
+			return queue.drainTo(readings);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getDepth() {
+			return queue.size();
+		}
+
+		public long getDropped() {
+			return dropped.get();
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package file;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import socket.FireSensorData;
+
+/*
+ * Keeps current.txt(the latest reading of every connected sensor) up to date by appending,
+ * instead of building a document of every sensor and writing the whole file again for each reading.
+ *
+ * The file stays a valid document the RMI server can parse;
+ * 		<sensors new_data="yes">
+ * 			<sensor id="23-13">...</sensor>		a reading, a later one for the same id replaces it.
+ * 			<removed id="23-13"></removed>	the sensor disconnected.
+ * 		</sensors>
+ * New records are written over the closing tag, followed by the closing tag again, so an update costs,
+ * as much as the records written and nothing more, however many sensors there are.
+ * The closing tag goes in a write of its own once the records are in, so a reader that catches the file halfway,
+ * finds whole records with the closing tag(or a record) missing at the end, and goes with the records before it,
+ * (see FileIO.readLatestReadings). A crash halfway doesn't matter, the file is started over when the server starts.
+ *
+ * Once the old records outnumber the live ones by enough, the file is compacted; written again with,
+ * only the latest reading of each sensor, into a temporary file that then replaces current.txt in one go.
+ * Since that takes more appends than there are sensors, it stays constant time per update on average.
+ */
+public class CurrentReadingsLog {
+
+	private static final byte[] HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><sensors new_data=\"yes\">".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] FOOTER = "</sensors>".getBytes(StandardCharsets.UTF_8);
+
+	// compact once the file has this many more records than sensors, on top of twice the sensors.
+	private static final int COMPACT_SLACK = 1024;
+
+	private final File file;
+	private final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+	private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+	private final HashMap<String, FireSensorData> live = new HashMap<>();	// latest reading of each sensor, for compacting.
+	private FileChannel channel;
+	private long records = 0;	// records in the file, live or not.
+
+
+	/*
+	 * Starts current.txt over, no sensors are connected yet.
+	 */
+	public CurrentReadingsLog(File file) throws IOException {
+		this.file = file;
+		compact();
+	}
+
+	/*
+	 * Records the given readings and removals, both may be empty.
+	 */
+	public void append(Collection<FireSensorData> readings, Collection<String> removedSensors) throws IOException {
+		if (readings.isEmpty() && removedSensors.isEmpty()) {
+			return;
+		}
+
+		recordBuffer.reset();
+		try {
+			XMLStreamWriter xml = outputFactory.createXMLStreamWriter(recordBuffer, "UTF-8");
+
+			for (String sensorId: removedSensors) {
+				if (live.remove(sensorId) != null) {
+					xml.writeStartElement("removed");
+					xml.writeAttribute("id", sensorId);
+					xml.writeEndElement();
+					records++;
+				}
+			}
+			for (FireSensorData fsd: readings) {
+				live.put(fsd.getSensorId(), fsd);
+				writeSensor(xml, fsd);
+				records++;
+			}
+
+			xml.flush();
+			xml.close();
+		}
+		catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+		ByteBuffer bytes = ByteBuffer.wrap(recordBuffer.toByteArray());
+
+		if (records > 2L * live.size() + COMPACT_SLACK) {
+			try {
+				compact();
+				return;
+			}
+			catch (IOException e) {
+				// the old file is still in place, the records go on the end of it and we try again next time.
+				System.err.println("current.txt not compacted; " + e.getMessage());
+			}
+		}
+
+		// over the closing tag, and the closing tag again after the new records.
+		long position = channel.size() - FOOTER.length;
+		while (bytes.hasRemaining()) {
+			position += channel.write(bytes, position);
+		}
+		ByteBuffer footer = ByteBuffer.wrap(FOOTER);
+		while (footer.hasRemaining()) {
+			position += channel.write(footer, position);
+		}
+	}
+
+	/*
+	 * Same elements the DOM writer in FileIO produces, so readers can't tell the difference.
+	 */
+	private void writeSensor(XMLStreamWriter xml, FireSensorData fsd) throws XMLStreamException {
+		xml.writeStartElement("sensor");
+		xml.writeAttribute("id", fsd.getSensorId());
+
+		HashMap<String, String> dataHashMap = fsd.getParamHashMap();
+		for (String param: dataHashMap.keySet()) {
+			xml.writeStartElement(param);
+			xml.writeCharacters(dataHashMap.get(param));
+			xml.writeEndElement();
+		}
+
+		// the error codes, the reader puts the messages together if it wants them(see FileIO.readSensor).
+		xml.writeEmptyElement("errors");
+		xml.writeAttribute("codes", Integer.toString(fsd.getErrorCodes()));
+
+		xml.writeEndElement();
+	}
+
+	/*
+	 * Writes the latest reading of each sensor to a new file and puts it in place of the old one.
+	 */
+	private void compact() throws IOException {
+		File compacted = new File(file.getPath() + ".tmp");
+
+		try (FileChannel out = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			recordBuffer.reset();
+			recordBuffer.write(HEADER);
+
+			XMLStreamWriter xml = outputFactory.createXMLStreamWriter(recordBuffer, "UTF-8");
+			for (FireSensorData fsd: live.values()) {
+				writeSensor(xml, fsd);
+			}
+			xml.flush();
+			xml.close();
+			recordBuffer.write(FOOTER);
+
+			ByteBuffer bytes = ByteBuffer.wrap(recordBuffer.toByteArray());
+			while (bytes.hasRemaining()) {
+				out.write(bytes);
+			}
+		}
+		catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+
+		// readers either see the old file or the new one, never half of one.
+		// The old file stays open until the new one is in place, if we can't move it appends carry on with the old one.
+		FileIO.moveOver(compacted, file);
+		FileChannel reopened = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if (channel != null) {
+			channel.close();
+		}
+		channel = reopened;
+		records = live.size();
+	}
+}
@@ -1,15 +1,30 @@
 package file;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
@@ -18,16 +33,16 @@ import javax.xml.transform.stream.StreamResult;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 import socket.FireSensorData;
+import socket.SensorError;
 
 public class FileIO {
 
 	private FileWriter writer;
 	private BufferedReader reader;
+	private XMLInputFactory inputFactory = XMLInputFactory.newInstance();
 	
 	/* 
 	 * Standard file manipulation.
@@ -76,7 +91,7 @@ public class FileIO {
 	 * 
 	 * But, we need to able to provide the data of all the sensors if the RMI server requires so. 
 	 */
-	public void writeSensorDataToXml(HashMap<String, FireSensorData> sensorAndData, boolean coverFullHashMap, File dataFile) throws ParserConfigurationException  {
+	public void writeSensorDataToXml(HashMap<String, FireSensorData> sensorAndData, boolean coverFullHashMap, File dataFile) throws ParserConfigurationException, IOException  {
 		// we use data.txt file to write/append new data,
 		// and current.txt file to write all the data of all the sensors.
 		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
@@ -85,19 +100,25 @@ public class FileIO {
 		Element root;
 	
 		
+		// every fresh file gets a new generation, so the RMI server knows its read position(see readNewReadings),
+		// belongs to an older file.
+		long generation = System.currentTimeMillis();
+		
 		if (dataFile.exists()) {
-			// RMI server will set new_data attribute of the root element to "no" after reading.
-			// and to tell the RMI server that it should read data, Socket server(here) will set it to "yes".
+			// RMI server notes how many readings it read in data.txt.pos, instead of setting new_data to "no".
 			try {
 				document = builder.parse(dataFile);
 				root = document.getDocumentElement();
 				
-				// if we are to cover all the sensors, we might as well overwrite the existing file anyways.
-				if (root.getAttribute("new_data").equals("no")) {
-					// we can safely overwrite the file.
+				long fileGeneration = parseGeneration(root.getAttribute("generation"));
+				long[] position = readPosition(dataFile);
+				
+				// once the RMI server read everything in the file, we can safely overwrite the file.
+				if (coverFullHashMap || (position[0] == fileGeneration && position[1] >= root.getElementsByTagName("sensor").getLength())) {
 					document = builder.newDocument();
 					root = document.createElement("sensors");
 					root.setAttribute("new_data", "yes");
+					root.setAttribute("generation", Long.toString(Math.max(generation, fileGeneration + 1)));
 					document.appendChild(root);
 				}
 			} catch (SAXException | IOException e) {
@@ -106,6 +127,7 @@ public class FileIO {
 				document = builder.newDocument();
 				root = document.createElement("sensors");
 				root.setAttribute("new_data", "yes");
+				root.setAttribute("generation", Long.toString(generation));
 				document.appendChild(root);
 			}
 		}
@@ -114,6 +136,7 @@ public class FileIO {
 			document = builder.newDocument();
 			root = document.createElement("sensors");
 			root.setAttribute("new_data", "yes");
+			root.setAttribute("generation", Long.toString(generation));
 			document.appendChild(root);
 		}
 		
@@ -144,21 +167,12 @@ public class FileIO {
 				}
 				
 				// errors.
-				// All the errors tags(i.e: 4, one for each param) must be there,
-				// even if there is no error for that param.
-				// Otherwise down the line if we get a new error, XML Parser wont let us,
-				// add the error due to HIERARCHY_REQUEST_ERR.
+				// the error codes(see SensorError) instead of the messages, which the reader puts together,
+				// if it wants them; <errors codes="6"/>
 				Element errors = document.createElement("errors");
+				errors.setAttribute("codes", Integer.toString(fsd.getErrorCodes()));
 				sensor.appendChild(errors);
 				
-				// error of each parameter of fire sensor is a child of errors.
-				fsd.validateAllParameters();
-				for (String error: fsd.getSensorErrors()) {
-					Element errorElement = document.createElement("error");
-					errorElement.appendChild(document.createTextNode(error));
-					errors.appendChild(errorElement);
-				}
-				
 				// usually we indicate that this specific data has already been written to a file,
 				// so that it won't be written again unless it has been updated.
 				// but covering the full hashmap is not our standard way and most of the time, we use,
@@ -170,79 +184,346 @@ public class FileIO {
 		}
 		
 		// write the data to .xml file.
+		// into a file next to it first, the RMI server reads the old file or the new one, never half of one.
+		File temporaryFile = new File(dataFile.getPath() + ".tmp");
 		try {
 			TransformerFactory transformerFactory = TransformerFactory.newInstance();
 			Transformer transformer = transformerFactory.newTransformer();
 			DOMSource source = new DOMSource(document);
-			StreamResult target = new StreamResult(dataFile);
+			StreamResult target = new StreamResult(temporaryFile);
 			
 			transformer.transform(source, target);
 		} catch (TransformerException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
-		}		
+			return;
+		}
+		
+		moveOver(temporaryFile, dataFile);
 	}
 	
+	// replaces the file with the temporary one in one go, where the file system can.
+	static void moveOver(File temporaryFile, File file) throws IOException {
+		try {
+			Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e) {
+			Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	/*
+	 * Reads the readings in one of the socket server's xml files, one line per reading.
+	 * 
+	 * current.txt gives the latest reading of every connected sensor, as many times as it is asked.
+	 * data.txt gives every reading we haven't read before; instead of rewriting the file to mark it as read,
+	 * we note how many readings we have read in a file next to it(see readPositionFile), which the,
+	 * socket server looks at before it starts a fresh data.txt.
+	 * 
+	 * Both are read with StAX, one record at a time, so there's never a whole document in memory.
+	 */
 	public String readXmlData(File dataFile) {
-		String data = "";
-		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-		DocumentBuilder builder;
+		StringBuilder data = new StringBuilder();
+		
 		try {
-			builder = factory.newDocumentBuilder();
-			Document document;
-			Element root;
-			
-			if (dataFile.exists()) {
-				document = builder.parse(dataFile);
-				document.getDocumentElement().normalize();
-				root = document.getDocumentElement();
+			if (dataFile.getPath().equals("./current.txt")) {
+				readLatestReadings(dataFile, data);
+			}
+			else {
+				readNewReadings(dataFile, data);
+			}
+		}
+		catch (IOException | XMLStreamException e) {
+			// the socket server may be halfway through writing the file, we'll read it next time.
+		}
+		
+		return data.toString();
+	}
+	
+	/*
+	 * current.txt is appended to(see CurrentReadingsLog), so a sensor can be there more than once,
+	 * the last reading is the one that counts, unless the sensor was removed after it.
+	 * A file caught halfway through an append still gives what comes before where it was cut off, and then throws.
+	 */
+	public void readLatestReadings(File dataFile, StringBuilder out) throws IOException, XMLStreamException {
+		LinkedHashMap<String, String> sensorLines = new LinkedHashMap<>();
+		
+		try {
+			readLatestRecords(dataFile, sensorLines, this::readSensorLine);
+		}
+		finally {
+			for (String sensorLine: sensorLines.values()) {
+				out.append(sensorLine);
+			}
+		}
+	}
+	
+	/*
+	 * Same, as FireSensorData keyed by sensor id instead of text.
+	 */
+	public void readLatestReadings(File dataFile, Map<String, FireSensorData> out) throws IOException, XMLStreamException {
+		LinkedHashMap<String, FireSensorData> latest = new LinkedHashMap<>();
+		try {
+			readLatestRecords(dataFile, latest, this::readSensorData);
+		}
+		finally {
+			out.putAll(latest);
+		}
+	}
+	
+	// turns the sensor element the reader is on into something, and leaves the reader on its end tag.
+	private interface RecordReader<T> {
+		T read(XMLStreamReader xml) throws XMLStreamException;
+	}
+	
+	private <T> void readLatestRecords(File dataFile, LinkedHashMap<String, T> latest, RecordReader<T> recordReader) throws IOException, XMLStreamException {
+		if (!dataFile.exists()) {
+			return;
+		}
+		
+		try (InputStream in = new BufferedInputStream(new FileInputStream(dataFile))) {
+			XMLStreamReader xml = inputFactory.createXMLStreamReader(in);
+			try {
+				xml.nextTag();		// sensors
 				
-				if (root.getAttribute("new_data").equals("yes") || dataFile.getPath().equals("./current.txt")) {
+				while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+					String sensorId = xml.getAttributeValue(null, "id");
 					
-					// this way no matter how much we read the current.txt file, its new_data attribute will stay "yes",
-					// which will lead the xml writing method in socket server to keep appending new readings; which is,
-					// what we expect since current.txt is supposed to keep every reading that came to the socket server.
-					if (!dataFile.getPath().equals("./current.txt")) {
-						root.setAttribute("new_data", "no");
+					if (xml.getLocalName().equals("sensor")) {
+						// remove first, so the sensor moves to where it last reported.
+						T record = recordReader.read(xml);
+						latest.remove(sensorId);
+						latest.put(sensorId, record);
 					}
-					
-					NodeList nodes = document.getElementsByTagName("sensor");
-					for (int i = 0; i < nodes.getLength(); i++) {
-						// to access the inner elements of a node, we need to cast the node,
-						// to Element first.
-						Element sensor = (Element)nodes.item(i);
-						
-						// check if the element is really an element.
-						if (sensor.getNodeType() == Node.ELEMENT_NODE) {
-							data += sensor.getAttribute("id") + " : ";		//sensorId
-							
-							// print the other child elements.
-							NodeList childNodes = sensor.getChildNodes();
-							
-							for (int j = 0; j < childNodes.getLength(); j++) {
-								Element childElement = (Element)childNodes.item(j);
-								data += "  " + childElement.getTextContent() + "   ";
-							}
-							//notifyMonitors("\n");
-							data += "\n";
-						}
+					else {
+						// removed.
+						skipElement(xml);
+						latest.remove(sensorId);
 					}
-					
-					
-					// update the xml file so that the Socket server knows we read the file.
-					TransformerFactory transformerFactory = TransformerFactory.newInstance();
-					Transformer transformer = transformerFactory.newTransformer();
-					StreamResult target = new StreamResult(dataFile);
-					transformer.transform(new DOMSource(document), target);
 				}
 			}
+			finally {
+				xml.close();
+			}
+		}
+	}
+	
+	/*
+	 * Appends the readings in data.txt that come after the ones we read last time, and records how far we got.
+	 * Nothing is appended unless the whole file was read and the position recorded, so if it throws,
+	 * the same readings are there to read the next time, and only then.
+	 */
+	public void readNewReadings(File dataFile, StringBuilder out) throws IOException, XMLStreamException {
+		for (String line: readNewRecords(dataFile, this::readSensorLine)) {
+			out.append(line);
+		}
+	}
+	
+	/*
+	 * Same, as FireSensorData instead of text.
+	 */
+	public void readNewReadings(File dataFile, List<FireSensorData> out) throws IOException, XMLStreamException {
+		out.addAll(readNewRecords(dataFile, this::readSensorData));
+	}
+	
+	private <T> List<T> readNewRecords(File dataFile, RecordReader<T> recordReader) throws IOException, XMLStreamException {
+		ArrayList<T> records = new ArrayList<>();
+		if (!dataFile.exists()) {
+			return records;
+		}
+		
+		long generation;
+		int alreadyRead;
+		int read = 0;
+		
+		try (InputStream in = new BufferedInputStream(new FileInputStream(dataFile))) {
+			XMLStreamReader xml = inputFactory.createXMLStreamReader(in);
+			try {
+				xml.nextTag();		// sensors
+				generation = parseGeneration(xml.getAttributeValue(null, "generation"));
 				
+				// readings of the same generation we have already read, -1 when we have not read this file at all.
+				long[] position = readPosition(dataFile);
+				alreadyRead = (position[0] == generation) ? (int) position[1] : -1;
 				
-		} 
-		catch (ParserConfigurationException | IOException | SAXException | TransformerException e) {
-			//
+				while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+					if (read++ < alreadyRead) {
+						skipElement(xml);
+					}
+					else {
+						records.add(recordReader.read(xml));
+					}
+				}
+			}
+			finally {
+				xml.close();
+			}
+		}
+		
+		// nothing new, no need to touch the file.
+		if (read != alreadyRead) {
+			writePosition(dataFile, generation, read);
+		}
+		return records;
+	}
+	
+	private String readSensorLine(XMLStreamReader xml) throws XMLStreamException {
+		StringBuilder line = new StringBuilder();
+		readSensor(xml, line);
+		return line.toString();
+	}
+	
+	/*
+	 * One line for the sensor element the reader is on, leaves the reader on its end tag.
+	 * <sensor id="23-13"><temperature>43.4</temperature>...<errors codes="4"/></sensor>
+	 * becomes "23-13 :   43.4   ...   ..   \n", the text of each child of the sensor in turn,
+	 * and the messages of the error codes(see SensorError) for the errors.
+	 * Files from before the codes have the messages themselves, <errors><error>..</error>..</errors>.
+	 */
+	private void readSensor(XMLStreamReader xml, StringBuilder out) throws XMLStreamException {
+		String sensorId = xml.getAttributeValue(null, "id");
+		out.append(sensorId).append(" : ");		//sensorId
+		HashMap<String, String> params = new HashMap<>();
+		
+		while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			out.append("  ");
+			
+			String param = xml.getLocalName();
+			String codes = param.equals("errors") ? xml.getAttributeValue(null, "codes") : null;
+			if (codes != null) {
+				skipElement(xml);
+				try {
+					for (String error: SensorError.messages(Integer.parseInt(codes), sensorId, Double.parseDouble(params.get("temperature")),
+							Integer.parseInt(params.get("smoke")), Double.parseDouble(params.get("co2")))) {
+						out.append(error);
+					}
+				}
+				catch (RuntimeException e) {
+					// the parameters are missing or not numbers, nothing we can say about them.
+				}
+			}
+			else {
+				int start = out.length();
+				appendText(xml, out);
+				params.put(param, out.substring(start));
+			}
+			
+			out.append("   ");
 		}
+		out.append("\n");
+	}
+	
+	/*
+	 * The sensor element the reader is on as FireSensorData, leaves the reader on its end tag.
+	 * Files don't keep the time of a reading, so it gets the time we read it.
+	 */
+	private FireSensorData readSensorData(XMLStreamReader xml) throws XMLStreamException {
+		HashMap<String, String> params = new HashMap<>();
+		params.put("sensorId", xml.getAttributeValue(null, "id"));
+		boolean unreported = false;
 		
-		return data;
+		while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			String param = xml.getLocalName();
+			
+			if (param.equals("errors")) {
+				// only the unreported error, the rest we work out again.
+				String codes = xml.getAttributeValue(null, "codes");
+				if (codes != null) {
+					unreported = SensorError.UNREPORTED.isIn(Integer.parseInt(codes));
+					skipElement(xml);
+				}
+				// before the codes, the first error is the unreported one(see FireSensorData.getSensorErrors).
+				else if (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+					StringBuilder unreportedError = new StringBuilder();
+					appendText(xml, unreportedError);
+					unreported = unreportedError.length() > 0;
+					
+					skipElement(xml);	// rest of the errors.
+				}
+			}
+			else {
+				StringBuilder value = new StringBuilder();
+				appendText(xml, value);
+				params.put(param, value.toString());
+			}
+		}
+		
+		FireSensorData fsd = new FireSensorData(params);
+		if (unreported) {
+			fsd.markUnreported();
+		}
+		
+		return fsd;
+	}
+	
+	// all the text inside the element the reader is on(like getTextContent), leaves the reader on its end tag.
+	private void appendText(XMLStreamReader xml, StringBuilder out) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			switch (xml.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					depth++;
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					depth--;
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+					out.append(xml.getTextCharacters(), xml.getTextStart(), xml.getTextLength());
+					break;
+			}
+		}
+	}
+	
+	private void skipElement(XMLStreamReader xml) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = xml.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			}
+			else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+	
+	/*
+	 * data.txt.pos holds "<generation> <readings read>", written by the RMI server only.
+	 */
+	public static File readPositionFile(File dataFile) {
+		return new File(dataFile.getPath() + ".pos");
+	}
+	
+	private static void writePosition(File dataFile, long generation, int read) throws IOException {
+		File positionFile = readPositionFile(dataFile);
+		File temporaryFile = new File(positionFile.getPath() + ".tmp");
+		
+		Files.write(temporaryFile.toPath(), (generation + " " + read).getBytes(StandardCharsets.US_ASCII));
+		moveOver(temporaryFile, positionFile);
+	}
+	
+	public long[] readPosition(File dataFile) {
+		File positionFile = readPositionFile(dataFile);
+		if (!positionFile.exists()) {
+			return new long[] { -1, 0 };
+		}
+		
+		try (BufferedReader in = new BufferedReader(new FileReader(positionFile))) {
+			String[] position = in.readLine().trim().split(" ");
+			return new long[] { Long.parseLong(position[0]), Long.parseLong(position[1]) };
+		}
+		catch (IOException | RuntimeException e) {
+			return new long[] { -1, 0 };
+		}
+	}
+	
+	private static long parseGeneration(String generation) {
+		try {
+			return (generation == null) ? 0 : Long.parseLong(generation);
+		}
+		catch (NumberFormatException e) {
+			return 0;
+		}
 	}
 }
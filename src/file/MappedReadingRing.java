@@ -0,0 +1,288 @@
+package file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import socket.FireSensorData;
+import socket.SensorFrameCodec;
+
+/*
+ * Hands readings from the socket server to the RMI server when they run as separate processes,
+ * through a memory mapped file both of them map, instead of data.txt being rewritten and parsed again.
+ *
+ * The file is a ring of fixed size slots with a single producer(the socket server) and a single consumer,
+ * (the RMI server). Every reading gets the next sequence number, and lives in slot (sequence % capacity).
+ * The consumer keeps its position in the header, so a restarted RMI server carries on from the last reading,
+ * it acknowledged; nothing is read twice and nothing is skipped.
+ * The sensor and monitor counts(s_count.txt and m_count.txt) live in the header as well.
+ *
+ * Layout(big endian);
+ * 		header, HEADER_SIZE bytes
+ * 			0	magic			4 bytes
+ * 			4	version			4 bytes
+ * 			8	capacity		4 bytes, number of slots.
+ * 			12	slot size		4 bytes
+ * 			64	produced		8 bytes, sequence of the last published reading.
+ * 			72	consumed		8 bytes, sequence of the last reading the consumer acknowledged.
+ * 			80	sensor count	4 bytes
+ * 			84	monitor count	4 bytes
+ * 		slots, SLOT_SIZE bytes each
+ * 			0	stamp			8 bytes, sequence of the reading in the slot, negative while it is being written.
+ * 			8	length			2 bytes, length of the frame.
+ * 			10	flags			2 bytes, see UNREPORTED_FLAG and ALARM_FLAG.
+ * 			12	frame			a reading encoded by SensorFrameCodec.
+ *
+ * A slot is written like a seqlock; the consumer copies the frame out and checks the stamp again afterwards,
+ * so it never uses a slot that the producer was overwriting at the same time.
+ * If the consumer is gone for so long that the ring fills up, the producer stops waiting for it and,
+ * overwrites the oldest readings; the consumer notices and skips ahead, counting what it lost.
+ */
+public class MappedReadingRing {
+
+	public static final File DEFAULT_FILE = new File("./ring.dat");
+	public static final int DEFAULT_CAPACITY = 4096;
+	public static final int UNREPORTED_FLAG = 1;
+	public static final int ALARM_FLAG = 2;
+
+	private static final int MAGIC = 0x46415242;	// "FARB"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 128;
+	private static final int SLOT_SIZE = 128;
+	private static final int SLOT_HEADER_SIZE = 12;
+	private static final int MAX_FRAME_SIZE = SLOT_SIZE - SLOT_HEADER_SIZE;
+
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 4;
+	private static final int CAPACITY_OFFSET = 8;
+	private static final int SLOT_SIZE_OFFSET = 12;
+	private static final int PRODUCED_OFFSET = 64;
+	private static final int CONSUMED_OFFSET = 72;
+	private static final int SENSOR_COUNT_OFFSET = 80;
+	private static final int MONITOR_COUNT_OFFSET = 84;
+
+	// how long the producer waits for a full ring to drain before it overwrites the oldest reading.
+	private static final long FULL_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+	// gives us acquire/release semantics on the mapped memory, which the other process sees as well.
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+
+	// producer side.
+	private final ReentrantLock producerLock = new ReentrantLock();	// every sensor handler of the socket server publishes.
+	private long stalledConsumer = -1;								// consumer position we gave up waiting on.
+
+	// consumer side.
+	private final SensorFrameCodec codec = new SensorFrameCodec();
+	private final ByteBuffer slotCopy = ByteBuffer.allocate(MAX_FRAME_SIZE);
+	private long consumed;
+	private long lost = 0;
+
+
+	private MappedReadingRing(MappedByteBuffer buffer, int capacity) {
+		this.buffer = buffer;
+		this.capacity = capacity;
+		this.consumed = (long) LONGS.getAcquire(buffer, CONSUMED_OFFSET);
+	}
+
+	/*
+	 * Maps the ring in the given file, creating it if it isn't there yet.
+	 * An existing ring keeps its own capacity, whatever capacity is asked for.
+	 */
+	public static MappedReadingRing open(File file, int capacity) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			if (channel.size() >= HEADER_SIZE) {
+				MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+
+				if (header.getInt(MAGIC_OFFSET) == MAGIC && header.getInt(VERSION_OFFSET) == VERSION && header.getInt(SLOT_SIZE_OFFSET) == SLOT_SIZE) {
+					int existingCapacity = header.getInt(CAPACITY_OFFSET);
+					return new MappedReadingRing(channel.map(FileChannel.MapMode.READ_WRITE, 0, size(existingCapacity)), existingCapacity);
+				}
+			}
+
+			// new ring, or something we don't understand; start over with empty slots.
+			channel.truncate(0);
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size(capacity));
+
+			buffer.putInt(VERSION_OFFSET, VERSION);
+			buffer.putInt(CAPACITY_OFFSET, capacity);
+			buffer.putInt(SLOT_SIZE_OFFSET, SLOT_SIZE);
+			INTS.setRelease(buffer, MAGIC_OFFSET, MAGIC);	// last, so nobody takes a half written header as valid.
+
+			return new MappedReadingRing(buffer, capacity);
+		}
+	}
+
+	private static long size(int capacity) {
+		return HEADER_SIZE + (long) capacity * SLOT_SIZE;
+	}
+
+	private int slotOffset(long sequence) {
+		return HEADER_SIZE + (int) (sequence % capacity) * SLOT_SIZE;
+	}
+
+	/*
+	 * Producer.
+	 * Returns false if the reading doesn't fit in a slot(sensor id too long).
+	 */
+	public boolean publish(FireSensorData fsd) {
+		byte[] sensorId = fsd.getSensorId().getBytes(StandardCharsets.UTF_8);
+		int frameSize = SensorFrameCodec.frameSize(sensorId.length);
+		if (frameSize > MAX_FRAME_SIZE) {
+			return false;
+		}
+
+		producerLock.lock();
+		try {
+			long sequence = (long) LONGS.getAcquire(buffer, PRODUCED_OFFSET) + 1;
+			waitForRoom(sequence);
+
+			int slot = slotOffset(sequence);
+			LONGS.setRelease(buffer, slot, -sequence);		// being written.
+			VarHandle.storeStoreFence();
+
+			ByteBuffer frame = buffer.duplicate();
+			frame.position(slot + SLOT_HEADER_SIZE);
+			SensorFrameCodec.encode(frame, sensorId, fsd.getTemperature(), fsd.getBatteryPercentage(), fsd.getSmokeLevel(),
+					fsd.getCo2Level(), fsd.getTimestamp(), fsd.getSequence());
+			buffer.putShort(slot + 8, (short) frameSize);
+			buffer.putShort(slot + 10, (short) ((fsd.isUnreported() ? UNREPORTED_FLAG : 0) | (fsd.isAlarm() ? ALARM_FLAG : 0)));
+
+			LONGS.setRelease(buffer, slot, sequence);		// written.
+			LONGS.setRelease(buffer, PRODUCED_OFFSET, sequence);
+		}
+		finally {
+			producerLock.unlock();
+		}
+
+		return true;
+	}
+
+	/*
+	 * Waits a little for the consumer if the ring is full. If the consumer doesn't move at all,
+	 * we stop waiting for it until it does, so a stopped RMI server doesn't slow the socket server down.
+	 */
+	private void waitForRoom(long sequence) {
+		long deadline = System.nanoTime() + FULL_WAIT_NANOS;
+		long consumer;
+
+		while (sequence - (consumer = (long) LONGS.getAcquire(buffer, CONSUMED_OFFSET)) > capacity) {
+			if (consumer == stalledConsumer || System.nanoTime() > deadline) {
+				stalledConsumer = consumer;
+				return;
+			}
+			LockSupport.parkNanos(10000);
+		}
+	}
+
+	/*
+	 * Consumer.
+	 * Moves up to max readings that come after the last acknowledged one into the collection,
+	 * and returns how many it moved. Call acknowledge() once they have been dealt with.
+	 */
+	public int poll(Collection<FireSensorData> readings, int max) {
+		int count = 0;
+		long next = consumed + 1;
+
+		while (count < max) {
+			int slot = slotOffset(next);
+			long stamp = (long) LONGS.getAcquire(buffer, slot);
+
+			if (Math.abs(stamp) < next || stamp == -next) {
+				// not published yet.
+				break;
+			}
+
+			if (stamp == next) {
+				int length = buffer.getShort(slot + 8) & 0xFFFF;
+				int flags = buffer.getShort(slot + 10);
+
+				if (length <= MAX_FRAME_SIZE) {
+					ByteBuffer source = buffer.duplicate();
+					source.position(slot + SLOT_HEADER_SIZE).limit(slot + SLOT_HEADER_SIZE + length);
+					slotCopy.clear();
+					slotCopy.put(source).flip();
+				}
+				VarHandle.loadLoadFence();
+
+				// still the same reading after we copied it, so the copy is good.
+				if ((long) LONGS.getVolatile(buffer, slot) == next && length <= MAX_FRAME_SIZE) {
+					try {
+						FireSensorData fsd = codec.decode(slotCopy);
+						if ((flags & UNREPORTED_FLAG) != 0) {
+							fsd.markUnreported();
+						}
+						// no receivedNanos, the socket server's clock means nothing here and ours would say it was never queued.
+						fsd.setAlarm((flags & ALARM_FLAG) != 0);
+						readings.add(fsd);
+						count++;
+					}
+					catch (StreamCorruptedException e) {
+						lost++;
+					}
+					next++;
+					continue;
+				}
+			}
+
+			// the producer went around the ring and overwrote what we were about to read.
+			long oldest = (long) LONGS.getAcquire(buffer, PRODUCED_OFFSET) - capacity + 1;
+			if (oldest > next) {
+				lost += oldest - next;
+				next = oldest;
+			}
+			else {
+				next++;
+				lost++;
+			}
+		}
+
+		consumed = next - 1;
+		return count;
+	}
+
+	/*
+	 * Records that everything returned by poll so far has been dealt with, a restarted consumer begins after it.
+	 */
+	public void acknowledge() {
+		LONGS.setRelease(buffer, CONSUMED_OFFSET, consumed);
+	}
+
+	public long getLost() {
+		return lost;
+	}
+
+	/*
+	 * Counts shared between the two servers.
+	 */
+	public void setSensorCount(int count) {
+		INTS.setRelease(buffer, SENSOR_COUNT_OFFSET, count);
+	}
+
+	public int getSensorCount() {
+		return (int) INTS.getAcquire(buffer, SENSOR_COUNT_OFFSET);
+	}
+
+	public void setMonitorCount(int count) {
+		INTS.setRelease(buffer, MONITOR_COUNT_OFFSET, count);
+	}
+
+	public int getMonitorCount() {
+		return (int) INTS.getAcquire(buffer, MONITOR_COUNT_OFFSET);
+	}
+}
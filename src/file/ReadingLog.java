@@ -0,0 +1,659 @@
+package file;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+import metrics.LatencyHistogram;
+import metrics.MetricsRegistry;
+
+import socket.FireSensorData;
+import socket.SensorFrameCodec;
+
+/*
+ * Write-ahead log of the readings(and disconnections) the socket server takes in, so they survive a crash,
+ * instead of relying on data.txt and current.txt, which are neither written for every reading nor safe to crash in.
+ *
+ * The log is only ever appended to. Records are checksummed, and on startup the log is read back from the start,
+ * (see open), up to the first record that doesn't check out; that's where a crash cut the last write short,
+ * so the log is cut back to there and carries on.
+ *
+ * The log is split into segments, readings.wal.1, readings.wal.2 and so on(readings.wal itself counts as segment 0).
+ * roll() starts the next segment, so once a snapshot has everything in the earlier ones(see StateSnapshot),
+ * they can be deleted and a restart only has to replay the segments after it.
+ *
+ * Sensor threads don't write the file themselves, they add their record to a buffer and a flusher thread writes,
+ * whatever has built up since its last write in one go, followed by a single fsync for all of it(group commit);
+ * so the cost of an fsync is shared by every sensor that got a reading in while the last one was going on.
+ * When a record counts as written depends on the sync policy;
+ * 		ALWAYS		append waits until the record has been fsynced.
+ * 		INTERVAL	append doesn't wait, the flusher fsyncs every sync interval; a crash loses up to one interval.
+ * 		NEVER		append doesn't wait, the flusher writes but leaves syncing to the OS.
+ * Threads that must never wait(the event loops of NioSocketServer) append with a callback instead, which runs,
+ * once the record counts as written; on the flusher thread for ALWAYS, right away otherwise. Those appends don't wait,
+ * for the flusher to catch up either, the buffer just grows past MAX_PENDING_BYTES.
+ * The flusher runs callbacks in the order their records were appended.
+ *
+ * Layout(big endian);
+ * 		header, HEADER_SIZE bytes
+ * 			0	magic		4 bytes
+ * 			4	version		4 bytes
+ * 		records
+ * 			0	length		4 bytes, of the type and payload.
+ * 			4	checksum	4 bytes, CRC32C of the type and payload.
+ * 			8	type		1 byte, READING or REMOVAL.
+ * 			9	payload		READING; flags(1 byte, see MappedReadingRing) then a frame encoded by SensorFrameCodec.
+ * 							REMOVAL; the UTF-8 bytes of the sensor id.
+ */
+public class ReadingLog {
+
+	public enum SyncPolicy { ALWAYS, INTERVAL, NEVER }
+
+	/*
+	 * Gets the records of the log, oldest first, when it is opened.
+	 */
+	public interface Replay {
+		void reading(FireSensorData fsd);
+		void removal(String sensorId);
+	}
+
+	private static final int MAGIC = 0x4641574C;	// "FAWL"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 8;
+	private static final int RECORD_HEADER_SIZE = 9;
+	private static final int MAX_RECORD_SIZE = 1 + SensorFrameCodec.HEADER_SIZE + SensorFrameCodec.MAX_BODY_SIZE;
+
+	private static final byte READING = 1;
+	private static final byte REMOVAL = 2;
+
+	// appends wait for the flusher when this much is waiting to be written, however they sync.
+	private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+	// a batch written by the flusher, and synced if it was time to.
+	private static final LatencyHistogram flushTime = MetricsRegistry.latency("persist.wal.flush");
+
+	private final File base;
+	private final SyncPolicy policy;
+	private final long syncIntervalNanos;
+	private final Thread flusher;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition pending = lock.newCondition();		// something to write, the flusher waits on it.
+	private final Condition written = lock.newCondition();		// the flusher got further, appends wait on it.
+
+	// guarded by lock.
+	private long segment;
+	private FileChannel channel;		// the flusher writes to it outside the lock, while flushing is set.
+	private boolean flushing = false;
+	private ByteBuffer filling = ByteBuffer.allocate(64 * 1024);	// records appended since the flusher last took them.
+	private ByteBuffer draining = ByteBuffer.allocate(64 * 1024);	// records the flusher is writing.
+	private long appended = 0;		// records appended so far.
+	private long done = 0;			// records written, and synced if the policy says so.
+	private IOException failure;
+	private boolean closed = false;
+	private final ArrayDeque<Long> callbackRecords = new ArrayDeque<>();		// records appended with a callback, in order.
+	private final ArrayDeque<Runnable> callbacks = new ArrayDeque<>();
+
+	private final CRC32C checksum = new CRC32C();		// guarded by lock.
+
+
+	private ReadingLog(File base, long segment, FileChannel channel, SyncPolicy policy, long syncIntervalMillis) {
+		this.base = base;
+		this.segment = segment;
+		this.channel = channel;
+		this.policy = policy;
+		this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, syncIntervalMillis));
+
+		flusher = new Thread(this::flush, "reading-log-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/*
+	 * Opens the log with the given base name, creating it if it isn't there yet. Segments before fromSegment,
+	 * are deleted(a snapshot has them), the rest go to replay, oldest first; appends carry on in the last of them.
+	 * The sync interval only matters for SyncPolicy.INTERVAL.
+	 */
+	public static ReadingLog open(File base, SyncPolicy policy, long syncIntervalMillis, long fromSegment, Replay replay) throws IOException {
+		List<Long> segments = segments(base);
+		long last = Math.max(fromSegment, 1);
+
+		for (long segment: segments) {
+			if (segment < fromSegment) {
+				Files.deleteIfExists(segmentFile(base, segment).toPath());
+			}
+			else if (segment != segments.get(segments.size() - 1) || segment == 0) {
+				// an earlier segment was complete when it was rolled, whatever we can read of it is all there is.
+				try (FileChannel channel = FileChannel.open(segmentFile(base, segment).toPath(), StandardOpenOption.READ)) {
+					recover(channel, replay);
+				}
+			}
+			else {
+				last = segment;
+			}
+		}
+
+		FileChannel channel = FileChannel.open(segmentFile(base, last).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		try {
+			long end = recover(channel, replay);
+			if (end < 0) {
+				end = writeHeader(channel);
+			}
+			channel.truncate(end);
+			channel.position(end);
+		}
+		catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+
+		return new ReadingLog(base, last, channel, policy, syncIntervalMillis);
+	}
+
+	private static File segmentFile(File base, long segment) {
+		return (segment == 0) ? base : new File(base.getPath() + "." + segment);
+	}
+
+	// segments there are, in order.
+	private static List<Long> segments(File base) {
+		ArrayList<Long> segments = new ArrayList<>();
+		if (base.exists()) {
+			segments.add(0L);
+		}
+
+		String prefix = base.getName() + ".";
+		File[] files = base.getAbsoluteFile().getParentFile().listFiles();
+		if (files != null) {
+			for (File file: files) {
+				String name = file.getName();
+				if (name.startsWith(prefix) && name.length() > prefix.length() && name.substring(prefix.length()).chars().allMatch(Character::isDigit)) {
+					segments.add(Long.parseLong(name.substring(prefix.length())));
+				}
+			}
+		}
+
+		Collections.sort(segments);
+		return segments;
+	}
+
+	private static long writeHeader(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).flip();
+
+		channel.truncate(0);
+		while (header.hasRemaining()) {
+			channel.write(header, header.position());
+		}
+		channel.force(true);
+
+		return HEADER_SIZE;
+	}
+
+	/*
+	 * Replays the records of a segment that check out, and returns where the good part of it ends,
+	 * or -1 if it isn't a segment of ours at all.
+	 */
+	private static long recover(FileChannel channel, Replay replay) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		if (channel.size() < HEADER_SIZE || readFully(channel, header, 0) < HEADER_SIZE || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+			// new segment, or something we don't understand.
+			return -1;
+		}
+
+		SensorFrameCodec codec = new SensorFrameCodec();
+		CRC32C crc = new CRC32C();
+		byte[] record = new byte[MAX_RECORD_SIZE];
+		long position = HEADER_SIZE;
+		long size = channel.size();
+		long records = 0;
+
+		// one pass from the start, through a buffer, not a read for every record.
+		channel.position(HEADER_SIZE);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+
+		while (position < size) {
+			int length;
+			int expected;
+			try {
+				length = in.readInt();
+				expected = in.readInt();
+				if (length < 1 || length > MAX_RECORD_SIZE) {
+					break;
+				}
+				in.readFully(record, 0, length);
+			}
+			catch (EOFException e) {
+				break;
+			}
+
+			crc.reset();
+			crc.update(record, 0, length);
+			if ((int) crc.getValue() != expected) {
+				break;
+			}
+
+			Object decoded;
+			try {
+				decoded = decode(record, length, codec);
+			}
+			catch (StreamCorruptedException | RuntimeException e) {
+				// checks out but we can't make sense of it, treat it like a torn record.
+				break;
+			}
+
+			if (decoded instanceof FireSensorData) {
+				replay.reading((FireSensorData) decoded);
+			}
+			else {
+				replay.removal((String) decoded);
+			}
+
+			position += RECORD_HEADER_SIZE - 1 + length;
+			records++;
+		}
+
+		if (position < size) {
+			System.err.println("Reading log: dropped " + (size - position) + " bytes after the last good record, a write was cut short.");
+		}
+		System.out.println("Reading log: replayed " + records + " records.");
+
+		return position;
+	}
+
+	// the reading of a READING record, or the sensor id of a REMOVAL.
+	private static Object decode(byte[] record, int length, SensorFrameCodec codec) throws StreamCorruptedException {
+		switch (record[0]) {
+		case READING:	FireSensorData fsd = codec.decode(ByteBuffer.wrap(record, 2, length - 2));
+						if ((record[1] & MappedReadingRing.UNREPORTED_FLAG) != 0) {
+							fsd.markUnreported();
+						}
+						fsd.setAlarm((record[1] & MappedReadingRing.ALARM_FLAG) != 0);
+						return fsd;
+
+		case REMOVAL:	return new String(record, 1, length - 1, StandardCharsets.UTF_8);
+
+		default:		throw new StreamCorruptedException("Unknown record type " + record[0]);
+		}
+	}
+
+	// reads from the given position until the buffer is full or the file ends, returns how much it read.
+	private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int read = 0;
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position + read);
+			if (n < 0) {
+				break;
+			}
+			read += n;
+		}
+		buffer.flip();
+
+		return read;
+	}
+
+	/*
+	 * Appends a reading, see the sync policy for when it returns.
+	 */
+	public void append(FireSensorData fsd) throws IOException {
+		append(fsd, true, null);
+	}
+
+	/*
+	 * Same, without waiting for anything; whenWritten runs once the record counts as written, if it's not null.
+	 * It doesn't run if this throws.
+	 */
+	public void append(FireSensorData fsd, Runnable whenWritten) throws IOException {
+		append(fsd, false, whenWritten);
+	}
+
+	private void append(FireSensorData fsd, boolean wait, Runnable whenWritten) throws IOException {
+		byte[] sensorId = fsd.getSensorId().getBytes(StandardCharsets.UTF_8);
+		int frameSize = SensorFrameCodec.frameSize(sensorId.length);
+		byte flags = (byte) ((fsd.isUnreported() ? MappedReadingRing.UNREPORTED_FLAG : 0) | (fsd.isAlarm() ? MappedReadingRing.ALARM_FLAG : 0));
+
+		lock.lock();
+		try {
+			ByteBuffer buffer = reserve(RECORD_HEADER_SIZE + 1 + frameSize, wait);
+			int start = buffer.position();
+
+			buffer.position(start + 8);
+			buffer.put(READING);
+			buffer.put(flags);
+			SensorFrameCodec.encode(buffer, sensorId, fsd.getTemperature(), fsd.getBatteryPercentage(), fsd.getSmokeLevel(),
+					fsd.getCo2Level(), fsd.getTimestamp(), fsd.getSequence());
+
+			whenWritten = commit(buffer, start, wait, whenWritten);
+		}
+		finally {
+			lock.unlock();
+		}
+
+		if (whenWritten != null) {
+			whenWritten.run();
+		}
+	}
+
+	/*
+	 * Appends a disconnection, so a replay doesn't bring the sensor back.
+	 */
+	public void appendRemoval(String sensorId) throws IOException {
+		appendRemoval(sensorId, true, null);
+	}
+
+	/*
+	 * Same, without waiting for anything; whenWritten runs once the record counts as written, same as for a reading.
+	 */
+	public void appendRemovalLater(String sensorId, Runnable whenWritten) throws IOException {
+		appendRemoval(sensorId, false, whenWritten);
+	}
+
+	private void appendRemoval(String sensorId, boolean wait, Runnable whenWritten) throws IOException {
+		byte[] id = sensorId.getBytes(StandardCharsets.UTF_8);
+
+		lock.lock();
+		try {
+			ByteBuffer buffer = reserve(RECORD_HEADER_SIZE + id.length, wait);
+			int start = buffer.position();
+
+			buffer.position(start + 8);
+			buffer.put(REMOVAL);
+			buffer.put(id);
+
+			whenWritten = commit(buffer, start, wait, whenWritten);
+		}
+		finally {
+			lock.unlock();
+		}
+
+		if (whenWritten != null) {
+			whenWritten.run();
+		}
+	}
+
+	/*
+	 * Room for a record in the buffer being filled, once the flusher has caught up enough(if we wait).
+	 * Must be called while holding the lock.
+	 */
+	private ByteBuffer reserve(int size, boolean wait) throws IOException {
+		while (wait && filling.position() > 0 && filling.position() + size > MAX_PENDING_BYTES && failure == null && !closed) {
+			written.awaitUninterruptibly();
+		}
+		checkUsable();
+
+		if (filling.remaining() < size) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(filling.capacity() * 2, filling.position() + size));
+			filling.flip();
+			larger.put(filling);
+			filling = larger;
+		}
+
+		return filling;
+	}
+
+	/*
+	 * Fills in the length and checksum of the record that starts at start, and hands it to the flusher.
+	 * Returns whenWritten if it's for the caller to run(once the lock is let go), null if the flusher runs it.
+	 * Must be called while holding the lock.
+	 */
+	private Runnable commit(ByteBuffer buffer, int start, boolean wait, Runnable whenWritten) throws IOException {
+		int length = buffer.position() - start - 8;
+
+		checksum.reset();
+		checksum.update(buffer.array(), start + 8, length);
+		buffer.putInt(start, length);
+		buffer.putInt(start + 4, (int) checksum.getValue());
+
+		long record = ++appended;
+		pending.signal();
+
+		if (policy != SyncPolicy.ALWAYS) {
+			return whenWritten;
+		}
+
+		if (!wait) {
+			if (whenWritten != null) {
+				callbackRecords.addLast(record);
+				callbacks.addLast(whenWritten);
+			}
+			return null;
+		}
+
+		while (done < record && failure == null) {
+			written.awaitUninterruptibly();
+		}
+		if (done < record) {
+			throw new IOException("Reading log can't be written any more.", failure);
+		}
+		return whenWritten;
+	}
+
+	// the callbacks of the records up to the given one, must be called while holding the lock.
+	private ArrayList<Runnable> takeCallbacks(long upTo) {
+		ArrayList<Runnable> due = new ArrayList<>();
+		while (!callbackRecords.isEmpty() && callbackRecords.peekFirst() <= upTo) {
+			callbackRecords.pollFirst();
+			due.add(callbacks.pollFirst());
+		}
+		return due;
+	}
+
+	private static void run(List<Runnable> callbacks) {
+		for (Runnable callback: callbacks) {
+			try {
+				callback.run();
+			}
+			catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// must be called while holding the lock.
+	private void checkUsable() throws IOException {
+		if (failure != null) {
+			throw new IOException("Reading log can't be written any more.", failure);
+		}
+		if (closed) {
+			throw new IOException("Reading log is closed.");
+		}
+	}
+
+	/*
+	 * Runs on the flusher thread, until the log is closed.
+	 */
+	private void flush() {
+		long lastSync = System.nanoTime();
+		boolean unsynced = false;
+
+		while (true) {
+			long batchEnd;
+			FileChannel out;
+
+			lock.lock();
+			try {
+				while (filling.position() == 0 && !closed) {
+					if (unsynced) {
+						// INTERVAL, nothing new but something left to sync once the interval is up.
+						long wait = syncIntervalNanos - (System.nanoTime() - lastSync);
+						if (wait <= 0) {
+							break;
+						}
+						pending.awaitNanos(wait);
+					}
+					else {
+						pending.awaitUninterruptibly();
+					}
+				}
+				if (closed && filling.position() == 0 && !unsynced) {
+					return;
+				}
+
+				ByteBuffer full = filling;
+				filling = draining;
+				draining = full;
+				batchEnd = appended;
+				out = channel;
+				flushing = true;
+			}
+			catch (InterruptedException e) {
+				continue;
+			}
+			finally {
+				lock.unlock();
+			}
+
+			long start = System.nanoTime();
+			try {
+				draining.flip();
+				while (draining.hasRemaining()) {
+					out.write(draining);
+				}
+				draining.clear();
+
+				boolean syncNow = policy == SyncPolicy.ALWAYS ||
+								  (policy == SyncPolicy.INTERVAL && System.nanoTime() - lastSync >= syncIntervalNanos) ||
+								  (policy != SyncPolicy.NEVER && closed);
+				if (syncNow) {
+					out.force(false);
+					lastSync = System.nanoTime();
+					unsynced = false;
+				}
+				else {
+					unsynced = policy == SyncPolicy.INTERVAL;
+				}
+				flushTime.record(System.nanoTime() - start);
+			}
+			catch (IOException e) {
+				ArrayList<Runnable> orphaned;
+				lock.lock();
+				try {
+					failure = e;
+					flushing = false;
+					written.signalAll();
+					orphaned = takeCallbacks(Long.MAX_VALUE);
+				}
+				finally {
+					lock.unlock();
+				}
+				System.err.println("Reading log: write failed, no more readings will be logged; " + e);
+
+				// same as an append that throws, the readings carry on without the log.
+				run(orphaned);
+				return;
+			}
+
+			ArrayList<Runnable> due;
+			lock.lock();
+			try {
+				done = batchEnd;
+				flushing = false;
+				written.signalAll();
+				due = takeCallbacks(done);
+			}
+			finally {
+				lock.unlock();
+			}
+			run(due);
+		}
+	}
+
+	/*
+	 * Finishes the current segment and starts the next, and returns the number of the new one;
+	 * every record appended before this is in an earlier segment, every record appended after it in this one or later.
+	 * Appends wait while the last of the current segment is written and synced.
+	 */
+	public long roll() throws IOException {
+		lock.lock();
+		try {
+			while ((flushing || filling.position() > 0) && failure == null) {
+				pending.signal();
+				written.awaitUninterruptibly();
+			}
+			checkUsable();
+
+			// the flusher isn't touching the channel, and can't start until we let go of the lock.
+			channel.force(false);
+			channel.close();
+
+			segment++;
+			channel = FileChannel.open(segmentFile(base, segment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			channel.position(writeHeader(channel));
+
+			return segment;
+		}
+		catch (IOException e) {
+			failure = e;
+			written.signalAll();
+			throw e;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * A snapshot has everything in the segments before the given one.
+	 */
+	public void deleteSegmentsBefore(long segment) throws IOException {
+		for (long s: segments(base)) {
+			if (s < segment) {
+				Files.deleteIfExists(segmentFile(base, s).toPath());
+			}
+		}
+	}
+
+	/*
+	 * Records appended so far, so we can tell whether anything happened since the last time we asked.
+	 */
+	public long getAppended() {
+		lock.lock();
+		try {
+			return appended;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Writes and syncs what's left, and closes the file.
+	 */
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			closed = true;
+			pending.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+
+		try {
+			flusher.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		channel.force(false);
+		channel.close();
+	}
+}
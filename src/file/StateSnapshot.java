@@ -0,0 +1,166 @@
+package file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.CRC32C;
+
+import history.ReadingHistory;
+import socket.FireSensorData;
+
+/*
+ * The state of the server at some point, the connected sensors with their last reading and the history of readings,
+ * so a restart loads it in one go and only replays the part of the reading log written after it(see ReadingLog.roll),
+ * instead of the whole log since the server first started.
+ *
+ * Layout, big endian:
+ * 		magic		4	"FASN"
+ * 		version		4
+ * 		segment		8	first segment of the reading log that isn't in the snapshot.
+ * 		sensors		4	then for each: id(UTF), temperature, battery, smoke, co2, timestamp, sequence, flags(see MappedReadingRing).
+ * 		history		1	1 if the history follows(see ReadingHistory.writeTo), 0 if the server didn't keep one.
+ * 		checksum	4	CRC32C of everything before it.
+ *
+ * A snapshot is written next to the old one and moved over it once it's on the disk, so there's always a whole one.
+ */
+public class StateSnapshot {
+
+	private static final int MAGIC = 0x4641534E;	// "FASN"
+	private static final int VERSION = 1;
+
+	private final long segment;
+	private final List<FireSensorData> sensors;
+
+
+	private StateSnapshot(long segment, List<FireSensorData> sensors) {
+		this.segment = segment;
+		this.sensors = sensors;
+	}
+
+	/*
+	 * First segment of the reading log to replay after loading the snapshot.
+	 */
+	public long getSegment() {
+		return segment;
+	}
+
+	public List<FireSensorData> getSensors() {
+		return sensors;
+	}
+
+	public static void write(File file, long segment, Collection<FireSensorData> sensors, ReadingHistory history) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+
+		try (FileOutputStream fileOut = new FileOutputStream(temp)) {
+			CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOut, 1 << 16), new CRC32C());
+			DataOutputStream out = new DataOutputStream(checked);
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(segment);
+
+			out.writeInt(sensors.size());
+			for (FireSensorData fsd: sensors) {
+				out.writeUTF(fsd.getSensorId());
+				out.writeDouble(fsd.getTemperature());
+				out.writeInt(fsd.getBatteryPercentage());
+				out.writeInt(fsd.getSmokeLevel());
+				out.writeDouble(fsd.getCo2Level());
+				out.writeLong(fsd.getTimestamp());
+				out.writeLong(fsd.getSequence());
+				out.writeByte((fsd.isUnreported() ? MappedReadingRing.UNREPORTED_FLAG : 0) | (fsd.isAlarm() ? MappedReadingRing.ALARM_FLAG : 0));
+			}
+
+			out.writeBoolean(history != null);
+			if (history != null) {
+				history.writeTo(out);
+			}
+
+			out.writeInt((int) checked.getChecksum().getValue());
+			out.flush();
+			fileOut.getFD().sync();
+		}
+
+		FileIO.moveOver(temp, file);
+	}
+
+	/*
+	 * Reads the snapshot, putting its history into the given one(if there is one).
+	 * Returns null if there's no snapshot, or it doesn't check out; the whole log gets replayed then.
+	 */
+	public static StateSnapshot read(File file, ReadingHistory history) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+
+		// the checksum first, so we don't load half a history out of a snapshot that turns out to be bad.
+		if (!checksumMatches(file)) {
+			System.err.println("Snapshot " + file + " doesn't check out, ignoring it.");
+			return null;
+		}
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				System.err.println("Snapshot " + file + " isn't one we can read, ignoring it.");
+				return null;
+			}
+
+			long segment = in.readLong();
+
+			int count = in.readInt();
+			ArrayList<FireSensorData> sensors = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				FireSensorData fsd = new FireSensorData(in.readUTF(), in.readDouble(), in.readInt(), in.readInt(), in.readDouble(), in.readLong(), in.readLong());
+				byte flags = in.readByte();
+				if ((flags & MappedReadingRing.UNREPORTED_FLAG) != 0) {
+					fsd.markUnreported();
+				}
+				fsd.setAlarm((flags & MappedReadingRing.ALARM_FLAG) != 0);
+				sensors.add(fsd);
+			}
+
+			if (in.readBoolean()) {
+				if (history != null) {
+					history.readFrom(in);
+				}
+			}
+
+			return new StateSnapshot(segment, sensors);
+		}
+	}
+
+	private static boolean checksumMatches(File file) throws IOException {
+		long length = file.length();
+		if (length < 4) {
+			return false;
+		}
+
+		try (InputStream raw = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+			CheckedInputStream checked = new CheckedInputStream(raw, new CRC32C());
+			byte[] buffer = new byte[1 << 16];
+			long remaining = length - 4;
+			while (remaining > 0) {
+				int n = checked.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (n < 0) {
+					throw new EOFException();
+				}
+				remaining -= n;
+			}
+
+			int expected = new DataInputStream(raw).readInt();
+			return (int) checked.getChecksum().getValue() == expected;
+		}
+	}
+}
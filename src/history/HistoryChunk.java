@@ -0,0 +1,195 @@
+package history;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * CHUNK_SIZE readings of one sensor, a primitive array per value instead of an object per reading.
+ *
+ * Timestamps are kept as millis after the first reading of the chunk, in an int, so a chunk covers about 24 days;
+ * a reading later than that(or earlier than the first) starts a new chunk instead.
+ * Temperature and CO2 are kept as floats, sensors give them to two decimal places, which a float keeps closely enough,
+ * that rounding it to two decimal places gives back the double it came as(without a String in between).
+ *
+ * 17 bytes a reading, against a few hundred for a FireSensorData with its strings.
+ * The columns start small and double as the chunk fills, up to CHUNK_SIZE, so a sensor that has sent a single reading,
+ * doesn't cost a full chunk.
+ */
+class HistoryChunk {
+
+	static final int CHUNK_SIZE = 4096;
+	private static final int INITIAL_CAPACITY = 16;
+
+	static final byte UNREPORTED = 1;
+	static final byte ALARM = 2;
+
+	private final long firstIndex;		// index of the first reading in the sensor's history.
+	private final long baseTimestamp;
+	private int[] timestamps = new int[INITIAL_CAPACITY];		// millis after baseTimestamp.
+	private float[] temperatures = new float[INITIAL_CAPACITY];
+	private float[] co2Levels = new float[INITIAL_CAPACITY];
+	private short[] batteryPercentages = new short[INITIAL_CAPACITY];
+	private short[] smokeLevels = new short[INITIAL_CAPACITY];
+	private byte[] flags = new byte[INITIAL_CAPACITY];
+	private int size = 0;
+
+	// so range scans can skip a chunk without looking at its readings.
+	private long minTimestamp = Long.MAX_VALUE;
+	private long maxTimestamp = Long.MIN_VALUE;
+
+
+	HistoryChunk(long firstIndex, long baseTimestamp) {
+		this.firstIndex = firstIndex;
+		this.baseTimestamp = baseTimestamp;
+	}
+
+	long getFirstIndex() {
+		return firstIndex;
+	}
+
+	boolean isFull() {
+		return size == CHUNK_SIZE;
+	}
+
+	boolean fits(long timestamp) {
+		long offset = timestamp - baseTimestamp;
+		return offset >= 0 && offset <= Integer.MAX_VALUE;
+	}
+
+	/*
+	 * Caller makes sure it isn't full and the timestamp fits.
+	 */
+	void append(long timestamp, double temperature, int batteryPercentage, int smokeLevel, double co2Level, byte readingFlags) {
+		if (size == timestamps.length) {
+			grow(size + 1);
+		}
+		timestamps[size] = (int) (timestamp - baseTimestamp);
+		temperatures[size] = (float) temperature;
+		co2Levels[size] = (float) co2Level;
+		batteryPercentages[size] = clamp(batteryPercentage);
+		smokeLevels[size] = clamp(smokeLevel);
+		flags[size] = readingFlags;
+		size++;
+
+		minTimestamp = Math.min(minTimestamp, timestamp);
+		maxTimestamp = Math.max(maxTimestamp, timestamp);
+	}
+
+	// room for at least the given number of readings, doubled each time so appending stays constant time on average.
+	private void grow(int capacity) {
+		int newCapacity = Math.min(CHUNK_SIZE, Math.max(capacity, timestamps.length * 2));
+		timestamps = Arrays.copyOf(timestamps, newCapacity);
+		temperatures = Arrays.copyOf(temperatures, newCapacity);
+		co2Levels = Arrays.copyOf(co2Levels, newCapacity);
+		batteryPercentages = Arrays.copyOf(batteryPercentages, newCapacity);
+		smokeLevels = Arrays.copyOf(smokeLevels, newCapacity);
+		flags = Arrays.copyOf(flags, newCapacity);
+	}
+
+	// a broken sensor can send anything, it still reads as broken at the limits of a short.
+	private static short clamp(int value) {
+		return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean overlaps(long from, long to) {
+		return size > 0 && minTimestamp <= to && maxTimestamp >= from;
+	}
+
+	long getTimestamp(int i) {
+		return baseTimestamp + timestamps[i];
+	}
+
+	double getTemperature(int i) {
+		return twoDecimals(temperatures[i]);
+	}
+
+	int getBatteryPercentage(int i) {
+		return batteryPercentages[i];
+	}
+
+	int getSmokeLevel(int i) {
+		return smokeLevels[i];
+	}
+
+	double getCo2Level(int i) {
+		return twoDecimals(co2Levels[i]);
+	}
+
+	// the double closest to the value at two decimal places, e.g. 43.4f(43.400001..) gives 43.4.
+	// as it is if it's too big for that(or not a number at all), a broken sensor can send anything.
+	private static double twoDecimals(float value) {
+		if (!(Math.abs(value) < 1e13f)) {
+			return value;
+		}
+		return Math.round(value * 100.0) / 100.0;
+	}
+
+	byte getFlags(int i) {
+		return flags[i];
+	}
+
+	/*
+	 * The chunk as it is in memory, a column at a time, for a snapshot(see ReadingHistory.writeTo).
+	 * The scratch buffer takes a full column of ints, so we don't allocate one per chunk.
+	 */
+	void writeTo(DataOutputStream out, ByteBuffer scratch) throws IOException {
+		out.writeLong(firstIndex);
+		out.writeLong(baseTimestamp);
+		out.writeInt(size);
+		out.writeLong(minTimestamp);
+		out.writeLong(maxTimestamp);
+
+		scratch.clear();
+		scratch.asIntBuffer().put(timestamps, 0, size);
+		out.write(scratch.array(), 0, size * 4);
+		scratch.asFloatBuffer().put(temperatures, 0, size);
+		out.write(scratch.array(), 0, size * 4);
+		scratch.asFloatBuffer().put(co2Levels, 0, size);
+		out.write(scratch.array(), 0, size * 4);
+		scratch.asShortBuffer().put(batteryPercentages, 0, size);
+		out.write(scratch.array(), 0, size * 2);
+		scratch.asShortBuffer().put(smokeLevels, 0, size);
+		out.write(scratch.array(), 0, size * 2);
+		out.write(flags, 0, size);
+	}
+
+	static HistoryChunk readFrom(DataInputStream in, ByteBuffer scratch) throws IOException {
+		HistoryChunk chunk = new HistoryChunk(in.readLong(), in.readLong());
+		int size = in.readInt();
+		if (size < 0 || size > CHUNK_SIZE) {
+			throw new IOException("Chunk of " + size + " readings");
+		}
+		if (size > chunk.timestamps.length) {
+			chunk.grow(size);
+		}
+		chunk.size = size;
+		chunk.minTimestamp = in.readLong();
+		chunk.maxTimestamp = in.readLong();
+
+		scratch.clear();
+		in.readFully(scratch.array(), 0, size * 4);
+		scratch.asIntBuffer().get(chunk.timestamps, 0, size);
+		in.readFully(scratch.array(), 0, size * 4);
+		scratch.asFloatBuffer().get(chunk.temperatures, 0, size);
+		in.readFully(scratch.array(), 0, size * 4);
+		scratch.asFloatBuffer().get(chunk.co2Levels, 0, size);
+		in.readFully(scratch.array(), 0, size * 2);
+		scratch.asShortBuffer().get(chunk.batteryPercentages, 0, size);
+		in.readFully(scratch.array(), 0, size * 2);
+		scratch.asShortBuffer().get(chunk.smokeLevels, 0, size);
+		in.readFully(chunk.flags, 0, size);
+
+		return chunk;
+	}
+
+	static ByteBuffer newScratch() {
+		return ByteBuffer.allocate(CHUNK_SIZE * 4);
+	}
+}
@@ -0,0 +1,11 @@
+package history;
+
+/*
+ * Gets the readings of a range scan one at a time, as they are kept; nothing is boxed or allocated for it.
+ * index is where the reading is in the sensor's history, counting from its first reading ever.
+ */
+public interface HistoryVisitor {
+
+	void reading(String sensorId, long index, long timestamp, double temperature, int batteryPercentage, int smokeLevel,
+			double co2Level, boolean unreported, boolean alarm);
+}
@@ -0,0 +1,106 @@
+package history;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import socket.FireSensorData;
+
+/*
+ * Every reading the server has seen, per sensor, kept in columns of primitives(see HistoryChunk),
+ * so it can hold millions of them in the memory a few hundred thousand FireSensorData would take.
+ *
+ * The ingest path appends, the history API scans a sensor's readings between two times, a page at a time.
+ * Indexes of a sensor's readings never change, so the index a scan returns is a cursor that stays good,
+ * however many readings come in meanwhile; unless the sensor has been through more than maxReadingsPerSensor,
+ * since, and the readings it points at are gone, in which case the scan carries on from the oldest it still has.
+ *
+ * Sequence numbers, and the error messages(they're worked out again from the values), aren't kept.
+ */
+public class ReadingHistory {
+
+	public static final int DEFAULT_READINGS_PER_SENSOR = 65536;
+
+	private final int maxReadingsPerSensor;
+	private final ConcurrentHashMap<String, SensorHistory> sensors = new ConcurrentHashMap<>();
+
+
+	public ReadingHistory(int maxReadingsPerSensor) {
+		this.maxReadingsPerSensor = Math.max(HistoryChunk.CHUNK_SIZE, maxReadingsPerSensor);
+	}
+
+	public void append(FireSensorData fsd) {
+		byte flags = (byte) ((fsd.isUnreported() ? HistoryChunk.UNREPORTED : 0) | (fsd.isAlarm() ? HistoryChunk.ALARM : 0));
+
+		sensors.computeIfAbsent(fsd.getSensorId(), sensorId -> new SensorHistory(sensorId, maxReadingsPerSensor))
+			   .append(fsd.getTimestamp(), fsd.getTemperature(), fsd.getBatteryPercentage(), fsd.getSmokeLevel(), fsd.getCo2Level(), flags);
+	}
+
+	/*
+	 * Hands the sensor's readings taken between from and to(inclusive), starting at the given index, to the visitor,
+	 * up to max of them. Returns the index the next page starts at, or -1 if this was the last of them.
+	 */
+	public long scan(String sensorId, long from, long to, long index, int max, HistoryVisitor visitor) {
+		SensorHistory history = sensors.get(sensorId);
+		if (history == null) {
+			return -1;
+		}
+
+		return history.scan(index, from, to, max, visitor);
+	}
+
+	/*
+	 * Readings kept for the sensor.
+	 */
+	public long getReadingCount(String sensorId) {
+		SensorHistory history = sensors.get(sensorId);
+		return (history == null) ? 0 : history.getKept();
+	}
+
+	/*
+	 * Time of the last reading kept for the sensor, Long.MIN_VALUE if there's none.
+	 */
+	public long getLatestTimestamp(String sensorId) {
+		SensorHistory history = sensors.get(sensorId);
+		return (history == null) ? Long.MIN_VALUE : history.getLatestTimestamp();
+	}
+
+	/*
+	 * Writes every sensor's readings, the columns as they are, for a snapshot(see file.StateSnapshot).
+	 * Appends carry on meanwhile, each sensor is written as it was at some point while we're at it.
+	 */
+	public void writeTo(DataOutputStream out) throws IOException {
+		ArrayList<SensorHistory> histories = new ArrayList<>(sensors.values());
+		ByteBuffer scratch = HistoryChunk.newScratch();
+
+		out.writeInt(histories.size());
+		for (SensorHistory history: histories) {
+			history.writeTo(out, scratch);
+		}
+	}
+
+	/*
+	 * Reads back what writeTo wrote, replacing what we have of the sensors in it.
+	 */
+	public void readFrom(DataInputStream in) throws IOException {
+		ByteBuffer scratch = HistoryChunk.newScratch();
+
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			SensorHistory history = SensorHistory.readFrom(in, maxReadingsPerSensor, scratch);
+			sensors.put(history.getSensorId(), history);
+		}
+	}
+
+	public long getReadingCount() {
+		long count = 0;
+		for (SensorHistory history: sensors.values()) {
+			count += history.getKept();
+		}
+
+		return count;
+	}
+}
@@ -0,0 +1,94 @@
+package history;
+
+import java.util.Arrays;
+
+/*
+ * Count, sum, min and max of temperature, smoke and CO2 over a rolling window, in a ring of time buckets.
+ *
+ * A reading only touches the bucket for the time it came in, which starts over when the ring comes back round to it,
+ * so recording is O(1) and the memory is fixed however many readings there are. The window moves a bucket at a time,
+ * it covers the current bucket and the ones before it, so up to a bucket less than its full length.
+ * Guarded by whoever owns it(see Rollups).
+ */
+class RollingAggregate {
+
+	static final int TEMPERATURE = 0;
+	static final int SMOKE = 1;
+	static final int CO2 = 2;
+	static final int METRICS = 3;
+
+	private final long bucketMillis;
+	private final int buckets;
+
+	private final long[] bucketTimes;		// (time / bucketMillis) each bucket is for.
+	private final int[] counts;
+	private final double[] sums;			// METRICS per bucket, same for mins and maxs.
+	private final double[] mins;
+	private final double[] maxs;
+
+
+	RollingAggregate(long bucketMillis, int buckets) {
+		this.bucketMillis = bucketMillis;
+		this.buckets = buckets;
+		this.bucketTimes = new long[buckets];
+		this.counts = new int[buckets];
+		this.sums = new double[buckets * METRICS];
+		this.mins = new double[buckets * METRICS];
+		this.maxs = new double[buckets * METRICS];
+
+		Arrays.fill(bucketTimes, Long.MIN_VALUE);
+	}
+
+	void record(long now, double temperature, double smoke, double co2) {
+		long bucketTime = now / bucketMillis;
+		int bucket = (int) Math.floorMod(bucketTime, (long) buckets);
+
+		if (bucketTimes[bucket] != bucketTime) {
+			// left over from the last time round the ring.
+			bucketTimes[bucket] = bucketTime;
+			counts[bucket] = 0;
+			Arrays.fill(sums, bucket * METRICS, bucket * METRICS + METRICS, 0);
+			Arrays.fill(mins, bucket * METRICS, bucket * METRICS + METRICS, Double.POSITIVE_INFINITY);
+			Arrays.fill(maxs, bucket * METRICS, bucket * METRICS + METRICS, Double.NEGATIVE_INFINITY);
+		}
+
+		counts[bucket]++;
+		add(bucket * METRICS + TEMPERATURE, temperature);
+		add(bucket * METRICS + SMOKE, smoke);
+		add(bucket * METRICS + CO2, co2);
+	}
+
+	private void add(int i, double value) {
+		sums[i] += value;
+		mins[i] = Math.min(mins[i], value);
+		maxs[i] = Math.max(maxs[i], value);
+	}
+
+	/*
+	 * Adds up the buckets still in the window into the rollup.
+	 */
+	void addTo(long now, Rollup rollup) {
+		long current = now / bucketMillis;
+
+		for (int bucket = 0; bucket < buckets; bucket++) {
+			if (counts[bucket] > 0 && bucketTimes[bucket] <= current && bucketTimes[bucket] > current - buckets) {
+				rollup.add(counts[bucket], sums, mins, maxs, bucket * METRICS);
+			}
+		}
+	}
+
+	/*
+	 * Nothing left in the window, the owner can forget about it.
+	 */
+	boolean isEmpty(long now) {
+		long current = now / bucketMillis;
+
+		for (int bucket = 0; bucket < buckets; bucket++) {
+			if (counts[bucket] > 0 && bucketTimes[bucket] > current - buckets) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,103 @@
+package history;
+
+import java.io.Serializable;
+
+/*
+ * Count, min, max and mean of temperature, smoke and CO2 of a sensor or a floor over one of the windows of Rollups,
+ * as the monitors and dashboards get it. Min, max and mean are NaN when there were no readings.
+ */
+public class Rollup implements Serializable {
+
+	private static final long serialVersionUID = -6342093857163203415L;
+
+	private final String key;		// sensor id, or floor.
+	private final Rollups.Window window;
+	private long count = 0;
+	private final double[] sums = new double[RollingAggregate.METRICS];
+	private final double[] mins = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+	private final double[] maxs = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+
+
+	Rollup(String key, Rollups.Window window) {
+		this.key = key;
+		this.window = window;
+	}
+
+	// only while Rollups builds it, before anyone else sees it.
+	void add(int bucketCount, double[] bucketSums, double[] bucketMins, double[] bucketMaxs, int offset) {
+		count += bucketCount;
+		for (int metric = 0; metric < RollingAggregate.METRICS; metric++) {
+			sums[metric] += bucketSums[offset + metric];
+			mins[metric] = Math.min(mins[metric], bucketMins[offset + metric]);
+			maxs[metric] = Math.max(maxs[metric], bucketMaxs[offset + metric]);
+		}
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public Rollups.Window getWindow() {
+		return window;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getTemperatureMin() {
+		return min(RollingAggregate.TEMPERATURE);
+	}
+
+	public double getTemperatureMax() {
+		return max(RollingAggregate.TEMPERATURE);
+	}
+
+	public double getTemperatureMean() {
+		return mean(RollingAggregate.TEMPERATURE);
+	}
+
+	public double getSmokeMin() {
+		return min(RollingAggregate.SMOKE);
+	}
+
+	public double getSmokeMax() {
+		return max(RollingAggregate.SMOKE);
+	}
+
+	public double getSmokeMean() {
+		return mean(RollingAggregate.SMOKE);
+	}
+
+	public double getCo2Min() {
+		return min(RollingAggregate.CO2);
+	}
+
+	public double getCo2Max() {
+		return max(RollingAggregate.CO2);
+	}
+
+	public double getCo2Mean() {
+		return mean(RollingAggregate.CO2);
+	}
+
+	private double min(int metric) {
+		return (count == 0) ? Double.NaN : mins[metric];
+	}
+
+	private double max(int metric) {
+		return (count == 0) ? Double.NaN : maxs[metric];
+	}
+
+	private double mean(int metric) {
+		return (count == 0) ? Double.NaN : sums[metric] / count;
+	}
+
+	public String toString() {
+		return String.format("%s (%s) :   %d readings   Temps: %.2f/%.2f/%.2f   Smoke: %.2f/%.2f/%.2f   CO2: %.2f/%.2f/%.2f   (min/mean/max)%n",
+				key, window, count,
+				getTemperatureMin(), getTemperatureMean(), getTemperatureMax(),
+				getSmokeMin(), getSmokeMean(), getSmokeMax(),
+				getCo2Min(), getCo2Mean(), getCo2Max());
+	}
+}
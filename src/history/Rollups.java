@@ -0,0 +1,148 @@
+package history;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import socket.FireSensorData;
+
+/*
+ * Min, max, mean and count of temperature, smoke and CO2 for every sensor and every floor, over the last minute,
+ * hour and day, kept up to date as readings come in; so dashboards ask for them instead of working them out,
+ * from all the readings there are.
+ *
+ * A reading costs a fixed amount of work, it goes into the current bucket of each window of its sensor and its floor,
+ * (see RollingAggregate). Asking adds up the buckets of a window, however many readings went into them.
+ * Readings count at the time they came in, not the sensor's time, so a sensor with its clock off doesn't skew them.
+ * Floors are the part of the sensor id before the dash; "23-13" is sensor 13 on floor 23.
+ */
+public class Rollups {
+
+	/*
+	 * The windows, and the buckets they move in.
+	 */
+	public enum Window {
+		MINUTE(1000, 60),			// a second at a time.
+		HOUR(60 * 1000, 60),		// a minute at a time.
+		DAY(15 * 60 * 1000, 96);	// 15 minutes at a time.
+
+		private final long bucketMillis;
+		private final int buckets;
+
+		Window(long bucketMillis, int buckets) {
+			this.bucketMillis = bucketMillis;
+			this.buckets = buckets;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Series> sensors = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Series> floors = new ConcurrentHashMap<>();
+
+
+	public void record(FireSensorData fsd) {
+		long now = System.currentTimeMillis();
+
+		record(sensors, fsd.getSensorId(), now, fsd);
+		record(floors, floorOf(fsd.getSensorId()), now, fsd);
+	}
+
+	// inside compute, so a series can't be dropped(see rollups) between us finding it and recording in it.
+	private static void record(ConcurrentHashMap<String, Series> series, String key, long now, FireSensorData fsd) {
+		series.compute(key, (k, s) -> {
+			if (s == null) {
+				s = new Series();
+			}
+			s.record(now, fsd);
+			return s;
+		});
+	}
+
+	public static String floorOf(String sensorId) {
+		int dash = sensorId.indexOf('-');
+		return (dash < 0) ? sensorId : sensorId.substring(0, dash);
+	}
+
+	public Rollup getSensorRollup(String sensorId, Window window) {
+		return rollup(sensors, sensorId, window);
+	}
+
+	public Rollup getFloorRollup(String floor, Window window) {
+		return rollup(floors, floor, window);
+	}
+
+	/*
+	 * Every sensor(or floor) that had a reading in the window, sorted by id.
+	 */
+	public List<Rollup> getSensorRollups(Window window) {
+		return rollups(sensors, window);
+	}
+
+	public List<Rollup> getFloorRollups(Window window) {
+		return rollups(floors, window);
+	}
+
+	private static Rollup rollup(Map<String, Series> series, String key, Window window) {
+		Rollup rollup = new Rollup(key, window);
+
+		Series s = series.get(key);
+		if (s != null) {
+			s.addTo(System.currentTimeMillis(), rollup);
+		}
+
+		return rollup;
+	}
+
+	private static List<Rollup> rollups(ConcurrentHashMap<String, Series> series, Window window) {
+		long now = System.currentTimeMillis();
+		TreeMap<String, Rollup> sorted = new TreeMap<>();
+
+		for (Map.Entry<String, Series> entry: series.entrySet()) {
+			Series s = entry.getValue();
+
+			// gone quiet for a day, a sensor that left. A reading may just have come in, so we check again inside the map.
+			if (s.isEmpty(now)) {
+				series.computeIfPresent(entry.getKey(), (key, current) -> current.isEmpty(now) ? null : current);
+				continue;
+			}
+
+			Rollup rollup = new Rollup(entry.getKey(), window);
+			s.addTo(now, rollup);
+			if (rollup.getCount() > 0) {
+				sorted.put(entry.getKey(), rollup);
+			}
+		}
+
+		return new ArrayList<>(sorted.values());
+	}
+
+
+	/*
+	 * The three windows of one sensor or floor.
+	 */
+	private static class Series {
+
+		private final RollingAggregate[] windows = new RollingAggregate[Window.values().length];		// guarded by this.
+
+		Series() {
+			for (Window window: Window.values()) {
+				windows[window.ordinal()] = new RollingAggregate(window.bucketMillis, window.buckets);
+			}
+		}
+
+		synchronized void record(long now, FireSensorData fsd) {
+			for (RollingAggregate aggregate: windows) {
+				aggregate.record(now, fsd.getTemperature(), fsd.getSmokeLevel(), fsd.getCo2Level());
+			}
+		}
+
+		synchronized void addTo(long now, Rollup rollup) {
+			windows[rollup.getWindow().ordinal()].addTo(now, rollup);
+		}
+
+		synchronized boolean isEmpty(long now) {
+			return windows[Window.DAY.ordinal()].isEmpty(now);
+		}
+	}
+}
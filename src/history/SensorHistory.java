@@ -0,0 +1,146 @@
+package history;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/*
+ * Readings of one sensor in the order they came in, in chunks; the oldest chunk goes once we have enough without it.
+ * Appends and scans of the same sensor take turns, different sensors don't get in each other's way.
+ */
+class SensorHistory {
+
+	private final String sensorId;
+	private final int maxReadings;
+	private final ArrayList<HistoryChunk> chunks = new ArrayList<>();		// oldest first, guarded by this.
+	private long nextIndex = 0;		// index the next reading gets.
+	private long kept = 0;			// readings in the chunks.
+
+
+	SensorHistory(String sensorId, int maxReadings) {
+		this.sensorId = sensorId;
+		this.maxReadings = maxReadings;
+	}
+
+	synchronized void append(long timestamp, double temperature, int batteryPercentage, int smokeLevel, double co2Level, byte flags) {
+		HistoryChunk last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+		if (last == null || last.isFull() || !last.fits(timestamp)) {
+			last = new HistoryChunk(nextIndex, timestamp);
+			chunks.add(last);
+		}
+
+		last.append(timestamp, temperature, batteryPercentage, smokeLevel, co2Level, flags);
+		nextIndex++;
+		kept++;
+
+		dropOldChunks();
+	}
+
+	private void dropOldChunks() {
+		while (!chunks.isEmpty() && kept - chunks.get(0).size() >= maxReadings) {
+			kept -= chunks.remove(0).size();
+		}
+	}
+
+	synchronized long getKept() {
+		return kept;
+	}
+
+	// Long.MIN_VALUE if there's nothing yet.
+	synchronized long getLatestTimestamp() {
+		if (chunks.isEmpty()) {
+			return Long.MIN_VALUE;
+		}
+
+		HistoryChunk last = chunks.get(chunks.size() - 1);
+		return last.getTimestamp(last.size() - 1);
+	}
+
+	/*
+	 * Appends to this sensor wait while its chunks are written, other sensors carry on.
+	 */
+	synchronized void writeTo(DataOutputStream out, ByteBuffer scratch) throws IOException {
+		out.writeUTF(sensorId);
+		out.writeLong(nextIndex);
+		out.writeInt(chunks.size());
+		for (HistoryChunk chunk: chunks) {
+			chunk.writeTo(out, scratch);
+		}
+	}
+
+	// the retention may have changed since the snapshot, so the oldest chunks may go straight away.
+	static SensorHistory readFrom(DataInputStream in, int maxReadings, ByteBuffer scratch) throws IOException {
+		SensorHistory history = new SensorHistory(in.readUTF(), maxReadings);
+		history.nextIndex = in.readLong();
+
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			HistoryChunk chunk = HistoryChunk.readFrom(in, scratch);
+			history.chunks.add(chunk);
+			history.kept += chunk.size();
+		}
+		history.dropOldChunks();
+
+		return history;
+	}
+
+	String getSensorId() {
+		return sensorId;
+	}
+
+	/*
+	 * Hands the readings from index on(or the oldest we still have, if it's gone) that were taken between,
+	 * from and to, to the visitor, up to max of them.
+	 * Returns the index to carry on from, or -1 if there's nothing after the last one.
+	 */
+	synchronized long scan(long index, long from, long to, int max, HistoryVisitor visitor) {
+		int c = chunkOf(index);
+		int visited = 0;
+
+		for (; c < chunks.size(); c++) {
+			HistoryChunk chunk = chunks.get(c);
+
+			if (!chunk.overlaps(from, to)) {
+				continue;
+			}
+
+			int i = (int) Math.max(0, index - chunk.getFirstIndex());
+			for (; i < chunk.size(); i++) {
+				long timestamp = chunk.getTimestamp(i);
+				if (timestamp < from || timestamp > to) {
+					continue;
+				}
+
+				if (visited == max) {
+					return chunk.getFirstIndex() + i;
+				}
+				visitor.reading(sensorId, chunk.getFirstIndex() + i, timestamp, chunk.getTemperature(i), chunk.getBatteryPercentage(i),
+						chunk.getSmokeLevel(i), chunk.getCo2Level(i), (chunk.getFlags(i) & HistoryChunk.UNREPORTED) != 0,
+						(chunk.getFlags(i) & HistoryChunk.ALARM) != 0);
+				visited++;
+			}
+		}
+
+		return -1;
+	}
+
+	// position in chunks of the chunk holding the index, or of the oldest chunk if it's older than that.
+	private int chunkOf(long index) {
+		int low = 0;
+		int high = chunks.size() - 1;
+
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (chunks.get(middle).getFirstIndex() <= index) {
+				low = middle;
+			}
+			else {
+				high = middle - 1;
+			}
+		}
+
+		return low;
+	}
+}
@@ -0,0 +1,50 @@
+package metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Counts something, from any number of threads without them waiting on each other(a LongAdder),
+ * and how fast it's going, per second over the last second(see MetricsRegistry, which ticks it).
+ */
+public class Counter implements CounterMXBean {
+
+	private final String name;
+	private final LongAdder count = new LongAdder();
+
+	// only the registry's ticker writes these.
+	private long lastCount = 0;
+	private long lastTick = System.nanoTime();
+	private volatile double ratePerSecond = 0;
+
+
+	Counter(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void increment() {
+		count.increment();
+	}
+
+	public void add(long amount) {
+		count.add(amount);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public double getRatePerSecond() {
+		return ratePerSecond;
+	}
+
+	void tick(long now) {
+		long current = count.sum();
+		ratePerSecond = (current - lastCount) * 1e9 / Math.max(1, now - lastTick);
+		lastCount = current;
+		lastTick = now;
+	}
+}
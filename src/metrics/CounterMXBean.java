@@ -0,0 +1,7 @@
+package metrics;
+
+public interface CounterMXBean {
+
+	public long getCount();
+	public double getRatePerSecond();
+}
@@ -0,0 +1,25 @@
+package metrics;
+
+import java.util.function.LongSupplier;
+
+/*
+ * A value that's only worked out when someone asks for it, a queue's depth say, so it costs nothing in between.
+ */
+public class Gauge implements GaugeMXBean {
+
+	private final String name;
+	private final LongSupplier value;
+
+	Gauge(String name, LongSupplier value) {
+		this.name = name;
+		this.value = value;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getValue() {
+		return value.getAsLong();
+	}
+}
@@ -0,0 +1,131 @@
+package metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Counts latencies(in nanoseconds) into buckets, so percentiles can be read at any time without keeping every value.
+ *
+ * Buckets are log-linear; every power of two is split into SUB_BUCKETS equal parts, so a percentile,
+ * is never more than 1/SUB_BUCKETS(about 6%) above the real value, from nanoseconds up to minutes.
+ * Recording is a couple of atomic increments, safe from any number of threads.
+ *
+ * Through JMX(see MetricsRegistry) it shows the usual percentiles, in milliseconds.
+ */
+public class LatencyHistogram implements LatencyHistogramMXBean {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final String name;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+
+	public LatencyHistogram(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+
+		counts.incrementAndGet(bucketOf(nanos));
+		count.incrementAndGet();
+		max.accumulateAndGet(nanos, Math::max);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/*
+	 * The latency that the given fraction(0.5 for the median, 0.99 ...) of the recorded latencies are within,
+	 * rounded up to the end of its bucket. 0 when nothing has been recorded.
+	 */
+	public long getPercentile(double fraction) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+
+		long wanted = Math.max(1, (long) Math.ceil(total * fraction));
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += counts.get(bucket);
+			if (seen >= wanted) {
+				return Math.min(upperBoundOf(bucket), max.get());
+			}
+		}
+
+		return max.get();
+	}
+
+	public double getP50Millis() {
+		return toMillis(getPercentile(0.5));
+	}
+
+	public double getP90Millis() {
+		return toMillis(getPercentile(0.9));
+	}
+
+	public double getP99Millis() {
+		return toMillis(getPercentile(0.99));
+	}
+
+	public double getP999Millis() {
+		return toMillis(getPercentile(0.999));
+	}
+
+	public double getMaxMillis() {
+		return toMillis(getMax());
+	}
+
+	private static double toMillis(long nanos) {
+		return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	private static int bucketOf(long nanos) {
+		if (nanos < SUB_BUCKETS) {
+			return (int) nanos;
+		}
+
+		// position of the highest bit picks the power of two, the next SUB_BUCKET_BITS bits the part of it.
+		int magnitude = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS + 1;
+		int subBucket = (int) (nanos >>> (magnitude - 1)) & (SUB_BUCKETS - 1);
+
+		return magnitude * SUB_BUCKETS + subBucket;
+	}
+
+	private static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+
+		int magnitude = bucket / SUB_BUCKETS;
+		long subBucket = (bucket % SUB_BUCKETS) | SUB_BUCKETS;
+
+		return ((subBucket + 1) << (magnitude - 1)) - 1;
+	}
+
+	public String toString() {
+		return name + ": " + getCount() + " recorded, p50 " + format(getPercentile(0.5)) + ", p99 " + format(getPercentile(0.99)) +
+				", p99.9 " + format(getPercentile(0.999)) + ", max " + format(getMax());
+	}
+
+	private static String format(long nanos) {
+		return String.format("%.3fms", toMillis(nanos));
+	}
+}
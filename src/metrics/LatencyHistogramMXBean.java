@@ -0,0 +1,11 @@
+package metrics;
+
+public interface LatencyHistogramMXBean {
+
+	public long getCount();
+	public double getP50Millis();
+	public double getP90Millis();
+	public double getP99Millis();
+	public double getP999Millis();
+	public double getMaxMillis();
+}
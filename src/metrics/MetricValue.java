@@ -0,0 +1,74 @@
+package metrics;
+
+import java.io.Serializable;
+
+/*
+ * A metric as it was when asked for, for the monitors(see FireAlarmDataService.getMetrics).
+ * A counter has its count and rate, a gauge its value, a latency its count and percentiles in milliseconds.
+ */
+public class MetricValue implements Serializable {
+
+	private static final long serialVersionUID = 3305186021384511212L;
+
+	public enum Type { COUNTER, GAUGE, LATENCY }
+
+	private final String name;
+	private final Type type;
+	private final long value;					// the count, or the gauge's value.
+	private final double ratePerSecond;
+	private final double[] percentileMillis;	// p50, p90, p99, p99.9 and max, latencies only.
+
+
+	MetricValue(String name, Type type, long value, double ratePerSecond, double[] percentileMillis) {
+		this.name = name;
+		this.type = type;
+		this.value = value;
+		this.ratePerSecond = ratePerSecond;
+		this.percentileMillis = percentileMillis;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public long getValue() {
+		return value;
+	}
+
+	public double getRatePerSecond() {
+		return ratePerSecond;
+	}
+
+	public double getP50Millis() {
+		return percentileMillis[0];
+	}
+
+	public double getP90Millis() {
+		return percentileMillis[1];
+	}
+
+	public double getP99Millis() {
+		return percentileMillis[2];
+	}
+
+	public double getP999Millis() {
+		return percentileMillis[3];
+	}
+
+	public double getMaxMillis() {
+		return percentileMillis[4];
+	}
+
+	public String toString() {
+		switch (type) {
+		case COUNTER:	return String.format("%s: %d(%.1f/s)", name, value, ratePerSecond);
+		case GAUGE:		return name + ": " + value;
+		default:		return String.format("%s: %d recorded, p50 %.3fms, p90 %.3fms, p99 %.3fms, p99.9 %.3fms, max %.3fms", name, value,
+								percentileMillis[0], percentileMillis[1], percentileMillis[2], percentileMillis[3], percentileMillis[4]);
+		}
+	}
+}
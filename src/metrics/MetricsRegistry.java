@@ -0,0 +1,115 @@
+package metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+ * Every metric of the servers in this JVM, by name, also registered with the platform MBean server,
+ * as firealarm:type=<counter, gauge or latency>,name=<name>, for jconsole and the like.
+ *
+ * Metrics are made once, where they're kept in a field, and recorded into from then on without going through here;
+ * counters and latencies don't lock or allocate when they're recorded into, gauges are only read when asked for.
+ * Asking for the same name twice gets the same metric, a gauge given again replaces the one before.
+ *
+ * Names are dotted, what they're about first; readings.ingested, sensors.connections.accepted ...
+ */
+public class MetricsRegistry {
+
+	private static final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+	// works out the rates of the counters, once a second.
+	private static final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(task -> {
+		Thread t = new Thread(task, "metrics-ticker");
+		t.setDaemon(true);
+		return t;
+	});
+
+	static {
+		ticker.scheduleAtFixedRate(() -> {
+			long now = System.nanoTime();
+			for (Counter counter: counters.values()) {
+				counter.tick(now);
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+	}
+
+
+	public static Counter counter(String name) {
+		return counters.computeIfAbsent(name, key -> register("counter", key, new Counter(key)));
+	}
+
+	public static LatencyHistogram latency(String name) {
+		return latencies.computeIfAbsent(name, key -> register("latency", key, new LatencyHistogram(key)));
+	}
+
+	/*
+	 * A histogram made elsewhere, under its own name.
+	 */
+	public static LatencyHistogram latency(LatencyHistogram histogram) {
+		return latencies.computeIfAbsent(histogram.getName(), key -> register("latency", key, histogram));
+	}
+
+	public static Gauge gauge(String name, LongSupplier value) {
+		Gauge gauge = new Gauge(name, value);
+		gauges.put(name, register("gauge", name, gauge));
+		return gauge;
+	}
+
+	/*
+	 * All of them as they are now, by name.
+	 */
+	public static List<MetricValue> snapshot() {
+		ArrayList<MetricValue> values = new ArrayList<>();
+
+		for (Counter counter: counters.values()) {
+			values.add(new MetricValue(counter.getName(), MetricValue.Type.COUNTER, counter.getCount(), counter.getRatePerSecond(), null));
+		}
+		for (Gauge gauge: gauges.values()) {
+			long value;
+			try {
+				value = gauge.getValue();
+			}
+			catch (RuntimeException e) {
+				value = -1;		// whatever it looks at isn't there(anymore).
+			}
+			values.add(new MetricValue(gauge.getName(), MetricValue.Type.GAUGE, value, 0, null));
+		}
+		for (LatencyHistogram latency: latencies.values()) {
+			double[] percentiles = { latency.getP50Millis(), latency.getP90Millis(), latency.getP99Millis(), latency.getP999Millis(), latency.getMaxMillis() };
+			values.add(new MetricValue(latency.getName(), MetricValue.Type.LATENCY, latency.getCount(), 0, percentiles));
+		}
+
+		values.sort(Comparator.comparing(MetricValue::getName));
+		return values;
+	}
+
+	private static <T> T register(String type, String name, T metric) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName objectName = new ObjectName("firealarm:type=" + type + ",name=" + ObjectName.quote(name));
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(metric, objectName);
+		}
+		catch (JMException e) {
+			// still counts, just not over JMX.
+			System.err.println("Metric " + name + " not registered with JMX; " + e.getMessage());
+		}
+
+		return metric;
+	}
+}
@@ -0,0 +1,24 @@
+package metrics;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+ * The remote call that got a reading to a monitor, onAlarm or onReadings;
+ * every reading of an onReadings call has the call's duration.
+ */
+@Name("firealarm.MonitorCallback")
+@Label("Monitor Callback")
+public class MonitorCallbackEvent extends ReadingEvent {
+
+	@Label("Callback")
+	String callback;
+
+	@Label("Batch Size")
+	int batchSize;
+
+	public MonitorCallbackEvent(String callback, int batchSize) {
+		this.callback = callback;
+		this.batchSize = batchSize;
+	}
+}
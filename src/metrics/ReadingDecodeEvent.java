@@ -0,0 +1,19 @@
+package metrics;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+ * A reading decoded off a sensor's connection, once it has arrived(waiting for the sensor doesn't count).
+ */
+@Name("firealarm.ReadingDecode")
+@Label("Reading Decode")
+public class ReadingDecodeEvent extends ReadingEvent {
+
+	@Label("Format")
+	String format;	// frame or hashmap.
+
+	public ReadingDecodeEvent(String format) {
+		this.format = format;
+	}
+}
@@ -0,0 +1,72 @@
+package metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/*
+ * Flight recorder events for the stages of a reading's way from the sensor to the monitors, one event type a stage;
+ * 		firealarm.ReadingDecode		off the socket, frame or hash map(SocketServer, NioSocketServer).
+ * 		firealarm.ReadingValidate	the parameters checked, and whether it's an alarm(FireSensorData.classifyAlarm).
+ * 		firealarm.ReadingPersist	in the write-ahead log, or the files for the RMI server(SocketServer, SensorDataWriter).
+ * 		firealarm.ReadingPickup		taken by the RMI server, from the bus, the ring or the files.
+ * 		firealarm.MonitorCallback	the call to a monitor that delivered it(MonitorFeed).
+ * Every one of them has the sensor id and the reading's sequence number, so the events of a single reading can be,
+ * picked out of a recording, across the socket server's and the RMI server's recordings if they run apart.
+ *
+ * Nothing is recorded unless a recording is running, e.g.
+ * 		java -XX:StartFlightRecording=filename=readings.jfr FireAlarmServer
+ * 		jfr print --events firealarm.* readings.jfr
+ * and when none is, an event is a check of a flag(see shouldCommit); no stack traces, they'd cost more than the stage.
+ */
+@Category({ "Fire Alarm", "Readings" })
+@StackTrace(false)
+public abstract class ReadingEvent extends Event {
+
+	@Label("Sensor Id")
+	String sensorId;
+
+	@Label("Sequence")
+	@Description("Numbers the readings of a sensor")
+	long sequence;
+
+
+	/*
+	 * Ends the event and records it for the reading, if anyone is recording; begin it first, unless it's an instant.
+	 */
+	public void commit(String sensorId, long sequence) {
+		end();
+		if (shouldCommit()) {
+			this.sensorId = sensorId;
+			this.sequence = sequence;
+			commit();
+		}
+	}
+
+	/*
+	 * For stages that take a whole batch of readings at once; as many events as readings, all begun now,
+	 * to be committed one for each reading when the batch is done. null when nobody's recording, so a batch costs nothing then.
+	 */
+	public static <E extends ReadingEvent> List<E> beginEach(Supplier<E> type, int count) {
+		E first = type.get();
+		if (!first.isEnabled() || count == 0) {
+			return null;
+		}
+
+		ArrayList<E> events = new ArrayList<>(count);
+		events.add(first);
+		while (events.size() < count) {
+			events.add(type.get());
+		}
+		for (E event: events) {
+			event.begin();
+		}
+		return events;
+	}
+}
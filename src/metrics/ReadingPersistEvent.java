@@ -0,0 +1,24 @@
+package metrics;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+ * A reading written down; appended to the write-ahead log, or in a round of writes to the files for the RMI server,
+ * in which case every reading of the round has the round's duration.
+ */
+@Name("firealarm.ReadingPersist")
+@Label("Reading Persist")
+public class ReadingPersistEvent extends ReadingEvent {
+
+	@Label("Store")
+	String store;		// wal or files.
+
+	@Label("Batch Size")
+	int batchSize;
+
+	public ReadingPersistEvent(String store, int batchSize) {
+		this.store = store;
+		this.batchSize = batchSize;
+	}
+}
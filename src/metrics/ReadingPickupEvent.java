@@ -0,0 +1,25 @@
+package metrics;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/*
+ * A reading taken by the RMI server to pass on to the monitors, an instant.
+ */
+@Name("firealarm.ReadingPickup")
+@Label("Reading Pickup")
+public class ReadingPickupEvent extends ReadingEvent {
+
+	@Label("Source")
+	String source;	// bus, ring or files.
+
+	@Label("Queued")
+	@Timespan(Timespan.NANOSECONDS)
+	long queued;		// since the socket server got it, Long.MIN_VALUE(N/A) if it got it in another JVM.
+
+	public ReadingPickupEvent(String source, long queued) {
+		this.source = source;
+		this.queued = queued;
+	}
+}
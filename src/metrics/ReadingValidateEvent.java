@@ -0,0 +1,23 @@
+package metrics;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+ * A reading's parameters checked, as the socket server takes it in.
+ */
+@Name("firealarm.ReadingValidate")
+@Label("Reading Validate")
+public class ReadingValidateEvent extends ReadingEvent {
+
+	@Label("Error Codes")
+	int errorCodes;		// see SensorError.
+
+	@Label("Alarm")
+	boolean alarm;
+
+	public void setOutcome(int errorCodes, boolean alarm) {
+		this.errorCodes = errorCodes;
+		this.alarm = alarm;
+	}
+}
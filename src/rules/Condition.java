@@ -0,0 +1,185 @@
+package rules;
+
+/*
+ * The condition of a rule, compiled from its text(see RuleSet) into a tree of these.
+ *
+ * A condition can be tested on one row, for a reading as it comes in, or evaluated over all the rows at once,
+ * a column at a time into a bit per row, which is how a whole fleet is checked again when the rules change.
+ * Evaluating uses scratch space of the condition, so only one thread evaluates a condition at a time(testing is fine).
+ */
+abstract class Condition {
+
+	abstract boolean test(ReadingColumns columns, int row);
+
+	/*
+	 * Sets the bit of every one of the first rows that satisfies the condition, and clears the others;
+	 * row r is bit (r % 64) of matches[r / 64].
+	 */
+	abstract void evaluate(ReadingColumns columns, int rows, long[] matches);
+
+	static int words(int rows) {
+		return (rows + 63) >>> 6;
+	}
+
+
+	/*
+	 * A column against a number; the operator is picked once, outside the loop.
+	 */
+	static class Comparison extends Condition {
+
+		enum Operator {
+			GREATER(">"), GREATER_OR_EQUAL(">="), LESS("<"), LESS_OR_EQUAL("<="), EQUAL("=="), NOT_EQUAL("!=");
+
+			private final String symbol;
+
+			Operator(String symbol) {
+				this.symbol = symbol;
+			}
+
+			// null if there's no such operator.
+			static Operator of(String symbol) {
+				if (symbol.equals("=")) {
+					return EQUAL;
+				}
+				for (Operator operator: values()) {
+					if (operator.symbol.equals(symbol)) {
+						return operator;
+					}
+				}
+				return null;
+			}
+		}
+
+		private final ReadingColumns.Column column;
+		private final Operator operator;
+		private final double threshold;
+
+		Comparison(ReadingColumns.Column column, Operator operator, double threshold) {
+			this.column = column;
+			this.operator = operator;
+			this.threshold = threshold;
+		}
+
+		boolean test(ReadingColumns columns, int row) {
+			double value = columns.column(column)[row];
+
+			switch (operator) {
+			case GREATER:			return value > threshold;
+			case GREATER_OR_EQUAL:	return value >= threshold;
+			case LESS:				return value < threshold;
+			case LESS_OR_EQUAL:		return value <= threshold;
+			case EQUAL:				return value == threshold;
+			default:				return value != threshold && value == value;	// NaN isn't unequal either.
+			}
+		}
+
+		void evaluate(ReadingColumns columns, int rows, long[] matches) {
+			double[] values = columns.column(column);
+			double t = threshold;
+
+			// a word of rows at a time, without branching on the values; which way a comparison goes is as good as random,
+			// so a branch would be mispredicted half the time. The operator is picked once, outside the loops.
+			for (int w = 0, words = words(rows); w < words; w++) {
+				int start = w << 6;
+				int end = Math.min(rows, start + 64);
+				long bits = 0;
+
+				switch (operator) {
+				case GREATER:			for (int r = start; r < end; r++) { bits |= (values[r] > t ? 1L : 0L) << r; } break;
+				case GREATER_OR_EQUAL:	for (int r = start; r < end; r++) { bits |= (values[r] >= t ? 1L : 0L) << r; } break;
+				case LESS:				for (int r = start; r < end; r++) { bits |= (values[r] < t ? 1L : 0L) << r; } break;
+				case LESS_OR_EQUAL:		for (int r = start; r < end; r++) { bits |= (values[r] <= t ? 1L : 0L) << r; } break;
+				case EQUAL:				for (int r = start; r < end; r++) { bits |= (values[r] == t ? 1L : 0L) << r; } break;
+				default:				for (int r = start; r < end; r++) { bits |= (values[r] != t && values[r] == values[r] ? 1L : 0L) << r; } break;
+				}
+
+				matches[w] = bits;		// a shift by r only takes the low 6 bits of r, the bit of the row in its word.
+			}
+		}
+	}
+
+	static class And extends Condition {
+
+		private final Condition left;
+		private final Condition right;
+		private long[] scratch = new long[0];
+
+		And(Condition left, Condition right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		boolean test(ReadingColumns columns, int row) {
+			return left.test(columns, row) && right.test(columns, row);
+		}
+
+		void evaluate(ReadingColumns columns, int rows, long[] matches) {
+			int words = words(rows);
+			if (scratch.length < words) {
+				scratch = new long[words];
+			}
+
+			left.evaluate(columns, rows, matches);
+			right.evaluate(columns, rows, scratch);
+			for (int w = 0; w < words; w++) {
+				matches[w] &= scratch[w];
+			}
+		}
+	}
+
+	static class Or extends Condition {
+
+		private final Condition left;
+		private final Condition right;
+		private long[] scratch = new long[0];
+
+		Or(Condition left, Condition right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		boolean test(ReadingColumns columns, int row) {
+			return left.test(columns, row) || right.test(columns, row);
+		}
+
+		void evaluate(ReadingColumns columns, int rows, long[] matches) {
+			int words = words(rows);
+			if (scratch.length < words) {
+				scratch = new long[words];
+			}
+
+			left.evaluate(columns, rows, matches);
+			right.evaluate(columns, rows, scratch);
+			for (int w = 0; w < words; w++) {
+				matches[w] |= scratch[w];
+			}
+		}
+	}
+
+	static class Not extends Condition {
+
+		private final Condition condition;
+
+		Not(Condition condition) {
+			this.condition = condition;
+		}
+
+		boolean test(ReadingColumns columns, int row) {
+			return !condition.test(columns, row);
+		}
+
+		void evaluate(ReadingColumns columns, int rows, long[] matches) {
+			int words = words(rows);
+
+			condition.evaluate(columns, rows, matches);
+			for (int w = 0; w < words; w++) {
+				matches[w] = ~matches[w];
+			}
+
+			// not the bits past the last row.
+			if ((rows & 63) != 0) {
+				matches[words - 1] &= (1L << rows) - 1;
+			}
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package rules;
+
+import java.util.Arrays;
+
+/*
+ * Readings column-wise, a primitive array per value, so a condition runs down one array at a time(see Condition);
+ * in RuleEngine a row per sensor, holding its latest reading.
+ *
+ * Besides the values a reading has, a row has how fast they're changing, per minute since the sensor's reading before,
+ * so rules can go by that as well. Values we don't know(a rate before the second reading, a row nobody uses) are NaN,
+ * which no comparison holds for.
+ */
+class ReadingColumns {
+
+	/*
+	 * What a condition can compare, by the name rules use for it.
+	 */
+	enum Column {
+		TEMPERATURE("temperature"),
+		BATTERY("battery"),
+		SMOKE("smoke"),
+		CO2("co2"),
+		TEMPERATURE_RATE("temperature_rate"),	// celcius per minute.
+		SMOKE_RATE("smoke_rate"),
+		CO2_RATE("co2_rate");
+
+		private final String ruleName;
+
+		Column(String ruleName) {
+			this.ruleName = ruleName;
+		}
+
+		String getRuleName() {
+			return ruleName;
+		}
+
+		// null if there's no such column.
+		static Column named(String ruleName) {
+			for (Column column: values()) {
+				if (column.ruleName.equals(ruleName)) {
+					return column;
+				}
+			}
+			return null;
+		}
+	}
+
+	private static final int COLUMNS = Column.values().length;
+
+	private double[][] values = new double[COLUMNS][];
+	private long[] timestamps;
+	private int rows = 0;
+
+
+	ReadingColumns(int capacity) {
+		for (int column = 0; column < COLUMNS; column++) {
+			values[column] = new double[capacity];
+		}
+		timestamps = new long[capacity];
+	}
+
+	int getRows() {
+		return rows;
+	}
+
+	double[] column(Column column) {
+		return values[column.ordinal()];
+	}
+
+	/*
+	 * A new row at the end, with nothing in it yet.
+	 */
+	int addRow() {
+		if (rows == timestamps.length) {
+			int capacity = Math.max(16, rows * 2);
+			for (int column = 0; column < COLUMNS; column++) {
+				values[column] = Arrays.copyOf(values[column], capacity);
+			}
+			timestamps = Arrays.copyOf(timestamps, capacity);
+		}
+
+		clearRow(rows);
+		return rows++;
+	}
+
+	void clearRow(int row) {
+		for (int column = 0; column < COLUMNS; column++) {
+			values[column][row] = Double.NaN;
+		}
+		timestamps[row] = Long.MIN_VALUE;
+	}
+
+	/*
+	 * The row's next reading, the rates are worked out from the one it had.
+	 */
+	void set(int row, double temperature, int battery, int smoke, double co2, long timestamp) {
+		long previous = timestamps[row];
+		double minutes = (previous == Long.MIN_VALUE || timestamp <= previous) ? Double.NaN : (timestamp - previous) / 60000.0;
+
+		values[Column.TEMPERATURE_RATE.ordinal()][row] = (temperature - values[Column.TEMPERATURE.ordinal()][row]) / minutes;
+		values[Column.SMOKE_RATE.ordinal()][row] = (smoke - values[Column.SMOKE.ordinal()][row]) / minutes;
+		values[Column.CO2_RATE.ordinal()][row] = (co2 - values[Column.CO2.ordinal()][row]) / minutes;
+
+		values[Column.TEMPERATURE.ordinal()][row] = temperature;
+		values[Column.BATTERY.ordinal()][row] = battery;
+		values[Column.SMOKE.ordinal()][row] = smoke;
+		values[Column.CO2.ordinal()][row] = co2;
+		timestamps[row] = timestamp;
+	}
+}
@@ -0,0 +1,161 @@
+package rules;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import socket.FireSensorData;
+
+/*
+ * Keeps the latest reading of every sensor in columns(see ReadingColumns), and the rules(see RuleSet) that fire for it.
+ *
+ * A reading as it comes in updates its sensor's row and is tested against the rules, which doesn't allocate anything,
+ * unless a rule fires. New rules are evaluated over the whole fleet at once, a column at a time,
+ * so even a very large fleet is checked again in a few milliseconds.
+ *
+ * Readings take the read lock, every sensor has a row of its own and only its own handler updates it;
+ * the write lock is for what touches the rows of others, adding and removing rows and evaluating new rules.
+ */
+public class RuleEngine {
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final ConcurrentHashMap<String, Integer> rows = new ConcurrentHashMap<>();		// changes under the write lock.
+
+	// guarded by lock, the arrays are only replaced under the write lock.
+	private final ReadingColumns fleet = new ReadingColumns(1024);
+	private String[] sensorIds = new String[1024];		// of each row, null for a row nobody uses.
+	private long[] fired = new long[1024];				// rules that fired for the row, as of its last reading.
+	private final ArrayDeque<Integer> freeRows = new ArrayDeque<>();
+	private RuleSet rules = RuleSet.EMPTY;
+
+
+	/*
+	 * Tests the reading against the rules, and notes the ones that fired on it for the monitors.
+	 * Returns true if an alarm rule fired.
+	 */
+	public boolean apply(FireSensorData fsd) {
+		lock.readLock().lock();
+		try {
+			int row = rows.getOrDefault(fsd.getSensorId(), -1);
+			while (row < 0) {
+				// a new sensor, or one that went while we were looking; the row may only change under the write lock.
+				lock.readLock().unlock();
+				try {
+					addRow(fsd.getSensorId());
+				}
+				finally {
+					lock.readLock().lock();
+				}
+				row = rows.getOrDefault(fsd.getSensorId(), -1);
+			}
+
+			fleet.set(row, fsd.getTemperature(), fsd.getBatteryPercentage(), fsd.getSmokeLevel(), fsd.getCo2Level(), fsd.getTimestamp());
+			long firedNow = rules.test(fleet, row);
+			fired[row] = firedNow;
+
+			if (firedNow == 0) {
+				return false;
+			}
+			fsd.setRuleAlerts(rules.describe(firedNow));
+			return rules.isAlarm(firedNow);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void addRow(String sensorId) {
+		lock.writeLock().lock();
+		try {
+			if (!rows.containsKey(sensorId)) {
+				int row = freeRows.isEmpty() ? fleet.addRow() : freeRows.pop();
+				if (row >= sensorIds.length) {
+					sensorIds = Arrays.copyOf(sensorIds, fleet.column(ReadingColumns.Column.TEMPERATURE).length);
+					fired = Arrays.copyOf(fired, sensorIds.length);
+				}
+				sensorIds[row] = sensorId;
+				rows.put(sensorId, row);
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * The sensor disconnected, its row goes to the next sensor that comes along.
+	 */
+	public void remove(String sensorId) {
+		lock.writeLock().lock();
+		try {
+			Integer row = rows.remove(sensorId);
+			if (row != null) {
+				fleet.clearRow(row);
+				sensorIds[row] = null;
+				fired[row] = 0;
+				freeRows.push(row);
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * Puts the new rules in place of the old, and evaluates them over every sensor's latest reading.
+	 * Returns the sensors an alarm rule now fires for, where none did before.
+	 */
+	public List<String> setRules(RuleSet newRules) {
+		lock.writeLock().lock();
+		try {
+			int count = fleet.getRows();
+			long[] firedNow = new long[count];
+			newRules.evaluate(fleet, count, firedNow);
+
+			ArrayList<String> raised = new ArrayList<>();
+			for (int row = 0; row < count; row++) {
+				if (sensorIds[row] == null) {
+					continue;		// a "not" may hold for an empty row.
+				}
+
+				if (newRules.isAlarm(firedNow[row]) && !rules.isAlarm(fired[row])) {
+					raised.add(sensorIds[row]);
+				}
+				fired[row] = firedNow[row];
+			}
+
+			rules = newRules;
+			return raised;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public RuleSet getRules() {
+		lock.readLock().lock();
+		try {
+			return rules;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * Rules that fired for the sensor's latest reading, a bit each(see RuleSet.getName), 0 if we don't have it.
+	 */
+	public long getFired(String sensorId) {
+		lock.readLock().lock();
+		try {
+			Integer row = rows.get(sensorId);
+			return (row == null) ? 0 : fired[row];
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+}
@@ -0,0 +1,311 @@
+package rules;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/*
+ * Rules on top of the built-in checks of FireSensorData, read from a file and compiled into Conditions once,
+ * instead of being worked out from their text for every reading.
+ *
+ * A rule a line, its name, optionally "alarm" to send the readings it fires for down the alarm lane,
+ * then a colon and the condition;
+ * 		# comments, and blank lines, are skipped.
+ * 		hot alarm : temperature > 45
+ * 		fast_rise alarm : temperature_rate > 5 and smoke > 5
+ * 		flat_battery : battery <= 10 or (battery < 20 and temperature < 0)
+ * Conditions compare temperature, battery, smoke, co2 or their rates(temperature_rate, smoke_rate, co2_rate,
+ * per minute, since the sensor's reading before) against numbers, with > >= < <= == != , and combine them,
+ * with and, or, not(or &&, ||, !) and brackets.
+ *
+ * Up to 64 rules, the rules a reading fires are a bit each in a long(see RuleEngine).
+ */
+public class RuleSet {
+
+	public static final int MAX_RULES = 64;
+
+	public static final RuleSet EMPTY = new RuleSet(new ArrayList<>());
+
+	private final String[] names;
+	private final Condition[] conditions;
+	private final String[] messages;	// what the monitors get to see when the rule fires.
+	private final long alarms;			// bits of the alarm rules.
+
+
+	private RuleSet(ArrayList<Rule> rules) {
+		names = new String[rules.size()];
+		conditions = new Condition[rules.size()];
+		messages = new String[rules.size()];
+
+		long alarmBits = 0;
+		for (int i = 0; i < rules.size(); i++) {
+			Rule rule = rules.get(i);
+			names[i] = rule.name;
+			conditions[i] = rule.condition;
+			messages[i] = " Rule " + rule.name + ": " + rule.text + " ";
+			if (rule.alarm) {
+				alarmBits |= 1L << i;
+			}
+		}
+		alarms = alarmBits;
+	}
+
+	public static RuleSet load(File file) throws IOException {
+		return parse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+	}
+
+	/*
+	 * Throws IllegalArgumentException, with the line, for a rule we can't make sense of.
+	 */
+	public static RuleSet parse(String text) {
+		ArrayList<Rule> rules = new ArrayList<>();
+		HashSet<String> names = new HashSet<>();
+
+		String[] lines = text.split("\r?\n");
+		for (int i = 0; i < lines.length; i++) {
+			String line = lines[i].trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+
+			try {
+				Rule rule = Rule.parse(line);
+				if (!names.add(rule.name)) {
+					throw new IllegalArgumentException("there's another rule called " + rule.name);
+				}
+				rules.add(rule);
+			}
+			catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Line " + (i + 1) + ", " + e.getMessage(), e);
+			}
+		}
+
+		if (rules.size() > MAX_RULES) {
+			throw new IllegalArgumentException(rules.size() + " rules, no more than " + MAX_RULES + " please");
+		}
+
+		return new RuleSet(rules);
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	public String getName(int rule) {
+		return names[rule];
+	}
+
+	public boolean isAlarm(long fired) {
+		return (fired & alarms) != 0;
+	}
+
+	/*
+	 * The rules that hold for the row, a bit each.
+	 */
+	long test(ReadingColumns columns, int row) {
+		long fired = 0;
+		for (int rule = 0; rule < conditions.length; rule++) {
+			if (conditions[rule].test(columns, row)) {
+				fired |= 1L << rule;
+			}
+		}
+
+		return fired;
+	}
+
+	/*
+	 * Same for each of the first rows, into fired. A rule at a time over all the rows, so each runs down its columns
+	 * into a bit per row, and then a row at a time, picking its bit out of each rule.
+	 */
+	void evaluate(ReadingColumns columns, int rows, long[] fired) {
+		long[][] matches = new long[conditions.length][Condition.words(rows)];
+		for (int rule = 0; rule < conditions.length; rule++) {
+			conditions[rule].evaluate(columns, rows, matches[rule]);
+		}
+
+		for (int r = 0; r < rows; r++) {
+			long firedRow = 0;
+			for (int rule = 0; rule < conditions.length; rule++) {
+				firedRow |= ((matches[rule][r >>> 6] >>> r) & 1L) << rule;
+			}
+			fired[r] = firedRow;
+		}
+	}
+
+	/*
+	 * What the monitors get to see for the rules that fired.
+	 */
+	public String describe(long fired) {
+		if (Long.bitCount(fired) == 1) {
+			return messages[Long.numberOfTrailingZeros(fired)];
+		}
+
+		StringBuilder description = new StringBuilder();
+		for (int rule = 0; rule < messages.length; rule++) {
+			if ((fired & (1L << rule)) != 0) {
+				description.append(messages[rule]);
+			}
+		}
+
+		return description.toString();
+	}
+
+
+	/*
+	 * A line of the rules file, compiled.
+	 */
+	private static class Rule {
+
+		private final String name;
+		private final boolean alarm;
+		private final String text;
+		private final Condition condition;
+
+		private Rule(String name, boolean alarm, String text, Condition condition) {
+			this.name = name;
+			this.alarm = alarm;
+			this.text = text;
+			this.condition = condition;
+		}
+
+		static Rule parse(String line) {
+			int colon = line.indexOf(':');
+			if (colon < 0) {
+				throw new IllegalArgumentException("expected <name> [alarm] : <condition>");
+			}
+
+			String[] head = line.substring(0, colon).trim().split("\\s+");
+			if (head.length > 2 || (head.length == 2 && !head[1].equals("alarm")) || !head[0].matches("[A-Za-z_][A-Za-z0-9_]*")) {
+				throw new IllegalArgumentException("expected <name> [alarm] : <condition>");
+			}
+
+			String text = line.substring(colon + 1).trim();
+			return new Rule(head[0], head.length == 2, text, new Parser(text).parse());
+		}
+	}
+
+	/*
+	 * Recursive descent over the condition;
+	 * 		or		:= and ("or" and)*
+	 * 		and		:= unary ("and" unary)*
+	 * 		unary	:= "not" unary | "(" or ")" | column operator number
+	 */
+	private static class Parser {
+
+		private final String text;
+		private int position = 0;
+
+		Parser(String text) {
+			this.text = text;
+		}
+
+		Condition parse() {
+			Condition condition = or();
+			skipSpaces();
+			if (position < text.length()) {
+				throw error("unexpected " + text.substring(position));
+			}
+
+			return condition;
+		}
+
+		private Condition or() {
+			Condition condition = and();
+			while (accept("or") || accept("||")) {
+				condition = new Condition.Or(condition, and());
+			}
+			return condition;
+		}
+
+		private Condition and() {
+			Condition condition = unary();
+			while (accept("and") || accept("&&")) {
+				condition = new Condition.And(condition, unary());
+			}
+			return condition;
+		}
+
+		private Condition unary() {
+			if (accept("not") || accept("!")) {
+				return new Condition.Not(unary());
+			}
+			if (accept("(")) {
+				Condition condition = or();
+				if (!accept(")")) {
+					throw error("missing )");
+				}
+				return condition;
+			}
+
+			String name = word();
+			ReadingColumns.Column column = ReadingColumns.Column.named(name);
+			if (column == null) {
+				throw error("no such value as " + (name.isEmpty() ? "that" : name));
+			}
+
+			skipSpaces();
+			int start = position;
+			while (position < text.length() && "<>=!".indexOf(text.charAt(position)) >= 0) {
+				position++;
+			}
+			Condition.Comparison.Operator operator = Condition.Comparison.Operator.of(text.substring(start, position));
+			if (operator == null) {
+				throw error("expected a comparison after " + name);
+			}
+
+			skipSpaces();
+			start = position;
+			while (position < text.length() && "+-.0123456789eE".indexOf(text.charAt(position)) >= 0) {
+				position++;
+			}
+			try {
+				return new Condition.Comparison(column, operator, Double.parseDouble(text.substring(start, position)));
+			}
+			catch (NumberFormatException e) {
+				throw error("expected a number after " + name + " " + text.substring(start, position).trim());
+			}
+		}
+
+		// the token if it's next, words only if they aren't the start of a longer one.
+		private boolean accept(String token) {
+			skipSpaces();
+			if (!text.startsWith(token, position)) {
+				return false;
+			}
+
+			int end = position + token.length();
+			if (Character.isLetter(token.charAt(0)) && end < text.length() && isWordChar(text.charAt(end))) {
+				return false;
+			}
+
+			position = end;
+			return true;
+		}
+
+		private String word() {
+			skipSpaces();
+			int start = position;
+			while (position < text.length() && isWordChar(text.charAt(position))) {
+				position++;
+			}
+			return text.substring(start, position);
+		}
+
+		private static boolean isWordChar(char c) {
+			return Character.isLetterOrDigit(c) || c == '_';
+		}
+
+		private void skipSpaces() {
+			while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+				position++;
+			}
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " in \"" + text + "\"");
+		}
+	}
+}
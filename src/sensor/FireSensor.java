@@ -1,6 +1,5 @@
 package sensor;
 
-import java.util.HashMap;
 import java.util.Scanner;
 
 
@@ -23,25 +22,23 @@ public class FireSensor extends SocketSensor {
 		
 		// now we need to check if this key matches the hash of the server's key.
 		String serverResponse;
-		sensor.writeText(key);
-		if ((serverResponse = sensor.readText()) != null) {
+		if ((serverResponse = sensor.authenticate(key)) != null) {
 			System.out.println(serverResponse);
+			
+			// use binary frames for our readings if the server supports them.
+			sensor.negotiateWireProtocol(serverResponse);
 		}
 			
 		Randoms random = new Randoms();
 		String sensorId = random.getRandomInt(1, 23) + "-" + random.getRandomInt(1, 13);		// we assume there are 23 floors and 13 sensors per floor.
-		HashMap<String, String> data;
 		
 		
 		while (sensor.isConnected()) {	
-			// always reinitialize the hash map or same data will be sent to the server always.
-			data = new HashMap<>();
-		
-			data.put("sensorId", sensorId);		
-			data.put("temperature", Double.toString((random.getRandomDouble(20.0, 90.0))));
-			data.put("battery", Integer.toString((random.getRandomInt(1, 100))));
-			data.put("co2", "300");
-			data.put("smoke", Integer.toString((random.getRandomInt(0, 10))));
+			// always take new readings or same data will be sent to the server always.
+			double temperature = random.getRandomDouble(20.0, 90.0);
+			int battery = random.getRandomInt(1, 100);
+			double co2 = 300;
+			int smoke = random.getRandomInt(0, 10);
 			
 			// we only send data to the server at 1 hour intervals.
 			// 0 indicates the sensor never wrote to the server, so we have to do an initial write.
@@ -49,7 +46,7 @@ public class FireSensor extends SocketSensor {
 			// write object method will take care of managing the last update time.
 												// to make sure data is sent once only 1 hour (60 mins = 3,600,000 millis).
 			if (sensor.getLastUpdate() == 0 || (System.currentTimeMillis() - sensor.getLastUpdate()) > 3600000) {
-				sensor.writeObject(data);
+				sensor.writeReading(sensorId, temperature, battery, smoke, co2);
 			}
 			
 			// we only have to emulate taking readings once every 5 mins.
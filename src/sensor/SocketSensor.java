@@ -5,11 +5,15 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.SocketException;
 import java.util.HashMap;
 import java.net.Socket;
 
+import authenticate.Authenticator;
+import socket.SensorFrameCodec;
+
 public class SocketSensor {
 	
 	private Socket socket;
@@ -21,6 +25,16 @@ public class SocketSensor {
 	private BufferedReader sensorTextInput;
 	private long lastUpdate = 0;
 	
+	// readings are sent as binary frames instead of hash maps if the server offers them during authentication.
+	private OutputStream sensorFrameOutput;
+	private boolean binaryFrames = false;
+	private long sequence = 0;
+	
+	// the server we connect to, and the token it gave us when we last authenticated(see authenticate).
+	private String host;
+	private int port;
+	private String sessionToken;
+	
 	/*
 	 * check if the sensor has an active connection with the target server.
 	 */
@@ -52,6 +66,8 @@ public class SocketSensor {
 		
 		// attempt connection.
 		try {
+			this.host = host;
+			this.port = port;
 			this.socket = new java.net.Socket(host, port);
 			
 			// initiate I/O streams.
@@ -59,6 +75,7 @@ public class SocketSensor {
 			this.serverDataInput = new ObjectInputStream(socket.getInputStream());
 			this.sensorTextOutput = new PrintWriter(socket.getOutputStream(), true);
 			this.sensorTextInput = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			this.sensorFrameOutput = socket.getOutputStream();
 			
 			connected = true;
 		} catch (IOException e) {
@@ -111,6 +128,89 @@ public class SocketSensor {
 		return wrote;
 	}
 	
+	/*
+	 * Sends our key to the server, or the session token it gave us the last time, if we're reconnecting;
+	 * the server then doesn't have to go through hashing the key again. A token the server no longer has,
+	 * after it restarted say, gets us disconnected, in which case we connect again and send the key.
+	 *
+	 * Returns the server's reply, which also tells if it takes binary frames(see negotiateWireProtocol),
+	 * or null if we didn't get one.
+	 */
+	public String authenticate(String key) {
+		String serverResponse = null;
+		
+		if (sessionToken != null) {
+			writeText(sessionToken);
+			serverResponse = readText();
+			sessionToken = Authenticator.sessionIn(serverResponse);
+			
+			if (sessionToken == null) {
+				disconnectFromServer();
+				connectToServer(host, port);
+			}
+		}
+		
+		if (sessionToken == null) {
+			writeText(key);
+			serverResponse = readText();
+			sessionToken = Authenticator.sessionIn(serverResponse);
+		}
+		
+		return serverResponse;
+	}
+	
+	/*
+	 * Servers that understand binary frames say so in their reply to our key,
+	 * in which case we send our readings as frames from now on.
+	 */
+	public boolean negotiateWireProtocol(String serverResponse) {
+		binaryFrames = serverResponse != null && serverResponse.contains(SensorFrameCodec.PROTOCOL_OFFER);
+		
+		return binaryFrames;
+	}
+	
+	public boolean usesBinaryFrames() {
+		return binaryFrames;
+	}
+	
+	/*
+	 * Sends a single reading, as a binary frame if the server agreed to it or as a hash map otherwise.
+	 */
+	public boolean writeReading(String sensorId, double temperature, int battery, int smoke, double co2) {
+		if (!binaryFrames) {
+			HashMap<String, String> data = new HashMap<>();
+			
+			data.put("sensorId", sensorId);		
+			data.put("temperature", Double.toString(temperature));
+			data.put("battery", Integer.toString(battery));
+			data.put("co2", Double.toString(co2));
+			data.put("smoke", Integer.toString(smoke));
+			
+			return writeObject(data);
+		}
+		
+		boolean wrote = false;
+		try {
+			long now = System.currentTimeMillis();
+			sensorFrameOutput.write(SensorFrameCodec.encode(sensorId, temperature, battery, smoke, co2, now, ++sequence));
+			sensorFrameOutput.flush();
+			setLastUpdate(now);
+			
+			wrote = true;
+		}
+		catch (SocketException e) {
+			disconnectFromServer();
+			// same as writeObject, the server is no longer running.
+			System.err.println("Server down, disconnected and exiting..");
+			System.exit(1);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		return wrote;
+	}
+	
 	public void writeText(String text) {
 		sensorTextOutput.println(text);
 	}
@@ -2,6 +2,9 @@ package socket;
 
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import metrics.ReadingValidateEvent;
 
 
 /*
@@ -20,27 +23,49 @@ public class FireSensorData implements Serializable{
 	/**
 	 * 
 	 */
-	private static final long serialVersionUID = 7017869631053371767L;
+	private static final long serialVersionUID = -4482306131580726927L;
 	private String sensorId;
 	private double temperature;
 	private int batteryPercentage;
 	private int smokeLevel;
 	private double co2Level;
+	private long timestamp;		// millis, when the reading was taken.
+	private long sequence;		// numbers the readings of a sensor.
+	
+	// for error handling, a bit for each error(see SensorError) instead of the messages, which only the monitors need.
+	// set once as the reading comes in(see classifyAlarm), but the heartbeat wheel can mark it unreported any time,
+	// so every change goes through errorCodesUpdater and never loses a bit set by another thread.
+	private volatile int errorCodes = 0;
+	private transient volatile boolean validated = false;	// the parameter bits of errorCodes are there.
 	
-	// for error handling.
-	private String tempErr = "";
-	private String batteryErr = "";
-	private String smokeErr = "";
-	private String co2Err = "";
-	private String unreported = "";
+	private static final AtomicIntegerFieldUpdater<FireSensorData> errorCodesUpdater = AtomicIntegerFieldUpdater.newUpdater(FireSensorData.class, "errorCodes");
 	
 	// for data passing via a file.
 	private boolean alreadyWrittenToFile = false;	// set this to true when the data is written to file.
 	
+	// dangerous readings take the fast lane to the monitors(see classifyAlarm).
+	private transient boolean alarm = false;
+	private transient long receivedNanos = 0;		// System.nanoTime() when the server got the reading, 0 if we don't know.
+	private transient String ruleAlerts;			// the configured rules that fired for the reading(see rules.RuleEngine).
+	
 	
 	public FireSensorData(HashMap<String, String> data) {
 		getFireSensorDataFromHashMap(data);
 		// this method initializes the parameters anyways.
+		
+		// hash maps don't carry a time, so the time we got it is as close as we can get.
+		this.timestamp = System.currentTimeMillis();
+	}
+	
+	// binary frames carry the values as they are, no parsing needed.
+	public FireSensorData(String sensorId, double temperature, int batteryPercentage, int smokeLevel, double co2Level, long timestamp, long sequence) {
+		this.sensorId = sensorId;
+		this.temperature = temperature;
+		this.batteryPercentage = batteryPercentage;
+		this.smokeLevel = smokeLevel;
+		this.co2Level = co2Level;
+		this.timestamp = timestamp;
+		this.sequence = sequence;
 	}
 	
 	// Getters.
@@ -64,28 +89,72 @@ public class FireSensorData implements Serializable{
 		return co2Level;
 	}
 	
+	public long getTimestamp() {
+		return timestamp;
+	}
+	
+	public long getSequence() {
+		return sequence;
+	}
+	
+	public boolean isAlarm() {
+		return alarm;
+	}
+	
+	public void setAlarm(boolean alarm) {
+		this.alarm = alarm;
+	}
+	
+	public String getRuleAlerts() {
+		return (ruleAlerts == null) ? "" : ruleAlerts;
+	}
+	
+	public void setRuleAlerts(String ruleAlerts) {
+		this.ruleAlerts = ruleAlerts;
+	}
+	
+	public long getReceivedNanos() {
+		return receivedNanos;
+	}
+	
+	public void setReceivedNanos(long receivedNanos) {
+		this.receivedNanos = receivedNanos;
+	}
+	
 	public boolean alreadyWrittenToFile() {
 		return this.alreadyWrittenToFile;
 	}
 	
+	/*
+	 * The errors as of the last validation, see validateAllParameters; validated here if it hasn't been yet,
+	 * (a reading that didn't come in through the socket server, read from a file or the ring).
+	 */
+	public int getErrorCodes() {
+		if (!validated) {
+			validateAllParameters();
+		}
+		return errorCodes;
+	}
+	
+	// the messages are put together when asked for, validation only sets the bits.
 	public String getTempErr() {
-		return tempErr;
+		return getSensorErrors()[1];
 	}
 
 	public String getBatteryErr() {
-		return batteryErr;
+		return getSensorErrors()[2];
 	}
 
 	public String getSmokeErr() {
-		return smokeErr;
+		return getSensorErrors()[3];
 	}
 
 	public String getCo2Err() {
-		return co2Err;
+		return getSensorErrors()[4];
 	}
 
 	public String getUnreportedErr() {
-		return unreported;
+		return isUnreported() ? SensorError.UNREPORTED.getMessage(sensorId, temperature, smokeLevel, co2Level) : "";
 	}
 	
 	
@@ -99,42 +168,54 @@ public class FireSensorData implements Serializable{
 	
 	public void setTemperature(double temperature) {
 		this.temperature = temperature;	
+		this.validated = false;
 	}
 	
 	public void setBatteryPercentage(int batteryPercentage) {
 		this.batteryPercentage = batteryPercentage;
+		this.validated = false;
 	}
 	
 	public void setSmokeLevel(int smokeLevel) {
 		this.smokeLevel = smokeLevel;
+		this.validated = false;
 	}
 	
 	public void setCo2Level(double co2Level) {
 		this.co2Level = co2Level;
+		this.validated = false;
 	}
 	
-	public void setAlreadyWrittenToFile(boolean alreadyWrittenToFile) {
-		this.alreadyWrittenToFile = alreadyWrittenToFile;
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
 	}
 	
-	public void setTempErr(String tempErr) {
-		this.tempErr = tempErr;
+	public void setSequence(long sequence) {
+		this.sequence = sequence;
 	}
-
-	public void setBatteryErr(String batteryErr) {
-		this.batteryErr = batteryErr;
+	
+	public void setAlreadyWrittenToFile(boolean alreadyWrittenToFile) {
+		this.alreadyWrittenToFile = alreadyWrittenToFile;
 	}
-
-	public void setSmokeErr(String smokeErr) {
-		this.smokeErr = smokeErr;
+	
+	// the errors of one parameter are replaced by whatever its validation found, the rest are left alone.
+	private void setErrors(int parameterErrors, int found) {
+		int codes;
+		do {
+			codes = this.errorCodes;
+		} while (!errorCodesUpdater.compareAndSet(this, codes, (codes & ~parameterErrors) | found));
 	}
-
-	public void setCo2Err(String co2Err) {
-		this.co2Err = co2Err;
+	
+	// the sensor has not sent anything for an hour since this reading.
+	public void markUnreported() {
+		int codes;
+		do {
+			codes = this.errorCodes;
+		} while (!errorCodesUpdater.compareAndSet(this, codes, codes | SensorError.UNREPORTED.getBit()));
 	}
 	
-	public void setUnreportedErr(String unreported) {
-		this.unreported = unreported;
+	public boolean isUnreported() {
+		return SensorError.UNREPORTED.isIn(this.errorCodes);
 	}
 
 	// Data is sent from the fire sensor as a hashmap, encoded as follows.
@@ -163,14 +244,12 @@ public class FireSensorData implements Serializable{
 		return data;
 	}
 	
+	/*
+	 * Messages of the errors, unreported, temperature, battery, smoke and CO2; an empty string for no error.
+	 * For showing the reading to a person, everything else should go by the error codes.
+	 */
 	public String[] getSensorErrors() {
-		
-		// we must validate before getting the errors since errors will only be assigned after the values are validated.
-		validateAllParameters();
-		
-		String [] errors = {getUnreportedErr(), getTempErr(), getBatteryErr(), getSmokeErr(), getCo2Err()};
-		
-		return errors;
+		return SensorError.messages(getErrorCodes(), this.sensorId, this.temperature, this.smokeLevel, this.co2Level);
 	}
 	
 	/* 
@@ -178,102 +257,105 @@ public class FireSensorData implements Serializable{
 	 * The 4 parameters will be checked for their validity and whether they indicate any sort of danger.
 	 * Always check for invalidity first and then for dangerous values.
 	 * 
-	 * If there's an error, we set the error message to the variable relevant to holding that param's error, and
-	 * no error means the variable getting an empty string.
+	 * If there's an error, we set the bit of that error in the error codes(see SensorError), and
+	 * no error means the bits of that param are cleared.
 	 * We do so to allow the server to check if there's an error(since validation methods returns a boolean), 
 	 * and if there's an error, server can get the relevant error and send to the monitors.
+	 * None of them allocate anything, they run for every reading.
 	 */
 	
 	// Minimum possible temperature is -273.15 degrees celcius.
 	// Anything above 50 degrees is considered dangerous.
 	public boolean isTemperatureInLevel() {
-		boolean validity = true;
-		
-		// always set the error to none at the beginning.
-		setTempErr("");
+		int error = 0;
 		
 		if (this.temperature < -273.15) {
-			validity = false;
-			setTempErr(" Sensor is malfunctioning; A temperature of " + this.temperature + " celcius is below absolute zero. ");
+			error = SensorError.TEMPERATURE_BELOW_ABSOLUTE_ZERO.getBit();
 		}
 		else if (this.temperature > 50.0) {
-			validity = false;
-			setTempErr(" Temperature is reaching a dangerous level at " + this.temperature + " celcius. ");
+			error = SensorError.TEMPERATURE_DANGEROUS.getBit();
 		}
 		
-		return validity;
+		setErrors(SensorError.TEMPERATURE, error);
+		return error == 0;
 	}
 	
 	// Battery level over 100% indicates a malfunction in the battery.
 	// Anything from 30% to 0% indicates low battery level.
 	public boolean isBatteryInLevel() {
-		boolean validity = true;
+		int error = 0;
 		
-		// always set the error to none at the beginning.
-		setBatteryErr("");
 		if (this.batteryPercentage > 100 || this.batteryPercentage < 0) {
-			validity = false;
-			setBatteryErr(" Battery malfunction. ");
+			error = SensorError.BATTERY_MALFUNCTION.getBit();
 		}
 		
 		else if (this.batteryPercentage <= 30) {
-			validity = false;
-			setBatteryErr(" Battery low! ");
+			error = SensorError.BATTERY_LOW.getBit();
 		}
 
-		return validity;
+		setErrors(SensorError.BATTERY, error);
+		return error == 0;
 	}
 	
 	// Smoke level above 7 is dangerous.
 	// From 1 to 6 is considered okay.
 	public boolean isSmokeInLevel() {
-		boolean validity = true;
-		
-		// always set the error to none at the beginning.
-		setSmokeErr("");
+		int error = 0;
 		
 		if (this.smokeLevel < 1 || this.smokeLevel > 10) {
-			setSmokeErr(" Smoke sensor malfunction. ");
-			validity = false;
+			error = SensorError.SMOKE_MALFUNCTION.getBit();
 		}
 		
 		else if (this.smokeLevel > 7) {
-			setSmokeErr(" Smoke level is at a dangerous level of " + this.smokeLevel + " ");
-			validity = false;
+			error = SensorError.SMOKE_DANGEROUS.getBit();
 		}
 		
-		return validity;
+		setErrors(SensorError.SMOKE, error);
+		return error == 0;
 	}
 	
 	// A CO2 level of above or belowe 300.0 is considered dangerous.
 	// At 300.0, CO2 level is considered okay.
 	public boolean isCo2InLevel() {
-		boolean validity = true; 
-		
-		// always set the error to none at the beginning.
-		setCo2Err("");
+		int error = 0;
 		
 		if (this.co2Level != 300.0) {
-			setCo2Err(" CO2 level is at a dangerous level of " + this.co2Level + " ");
-			validity = false;
+			error = SensorError.CO2_DANGEROUS.getBit();
 		}
 		
-		return validity;
+		setErrors(SensorError.CO2, error);
+		return error == 0;
+	}
+	
+	/*
+	 * A reading is an alarm if the temperature, smoke or CO2 level is dangerous(or the sensor for it is broken).
+	 * A low battery isn't, it can wait with the rest of the readings.
+	 * All four are checked, so the error codes are all set whatever the outcome.
+	 */
+	public boolean classifyAlarm() {
+		ReadingValidateEvent event = new ReadingValidateEvent();
+		event.begin();
+		this.alarm = (validateAllParameters() & SensorError.ALARMS) != 0;
+		event.setOutcome(this.errorCodes, this.alarm);
+		event.commit(this.sensorId, this.sequence);
+		return this.alarm;
 	}
 	
 	/*
 	 * This acts as sort of a facade which will call all the isSomethingBlaBla methods,
-	 * and that will result in error messaged being passed to their respective variables,
-	 * if any.
+	 * and that will result in the bits of any errors being set in the error codes.
 	 * 
-	 * This way we can get any relevant error message(s) without having to run each isSomethingBlaBla method,
-	 * individually.
+	 * This way we can get all the error codes(see SensorError) without having to run each isSomethingBlaBla method,
+	 * individually; returns them.
 	 */
-	public void validateAllParameters() {
+	public int validateAllParameters() {
 		isTemperatureInLevel();
 		isBatteryInLevel();
 		isCo2InLevel();
 		isSmokeInLevel();
+		validated = true;
+		
+		return this.errorCodes;
 	}
 	
 	
@@ -287,6 +369,23 @@ public class FireSensorData implements Serializable{
 		System.out.println("CO2     : " + this.co2Level);
 	}
 	
+	/*
+	 * What the monitors get to see for a reading, the parameters followed by whatever is wrong with them.
+	 */
+	public String getReadingString() {
+		String errors = "";
+		for (String error: getSensorErrors()) {
+			errors += error;
+		}
+		
+		return this.sensorId + " :   " +
+			   "Temps: " + this.temperature + "   " +
+			   "Battery: " + this.batteryPercentage + "   " +
+			   "Smoke: " + this.smokeLevel + "   " +
+			   "CO2: " + this.co2Level + "   " +
+			   errors + getRuleAlerts() + "\n";
+	}
+	
 	public String getParamString() {
 		return this.sensorId + ":  " +
 			   "Temps: " + this.temperature + "   " +
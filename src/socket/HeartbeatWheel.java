@@ -0,0 +1,195 @@
+package socket;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * A single timer shared by every connected sensor, to find out when a sensor has not reported in time.
+ *
+ * This is a hashed timer wheel; each timeout sits in the slot of the tick it expires on,
+ * so scheduling, resetting and cancelling a timeout are constant time no matter how many sensors we have,
+ * and a tick only looks at the timeouts in its own slot. Timeouts further away than one turn of the wheel,
+ * simply stay in their slot until the wheel has come around enough times.
+ *
+ * The thread sleeps while there are no timeouts, and otherwise wakes up once per tick.
+ */
+public class HeartbeatWheel implements Runnable {
+
+	private static final long TICK_MILLIS = 1000;
+	private static final int WHEEL_SIZE = 512;		// must be a power of two.
+
+	private final Timeout[] slots = new Timeout[WHEEL_SIZE];	// head of a linked list of timeouts, per slot.
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition scheduled = lock.newCondition();
+	private final long startTime = System.nanoTime();
+	private long lastTick = 0;		// the last tick whose timeouts have been expired.
+	private int pending = 0;
+
+
+	public static HeartbeatWheel start() {
+		HeartbeatWheel wheel = new HeartbeatWheel();
+
+		Thread t = new Thread(wheel, "heartbeat-wheel");
+		t.setDaemon(true);
+		t.start();
+
+		return wheel;
+	}
+
+	/*
+	 * Runs the task on the wheel's thread once the delay has passed, unless it is reset or cancelled before that.
+	 * Tasks should be short, every other timeout of the same tick waits for them.
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		Timeout timeout = new Timeout(task);
+		timeout.reset(delayMillis);
+
+		return timeout;
+	}
+
+	public class Timeout {
+
+		private final Runnable task;
+		private long deadline;		// tick this timeout expires on.
+		private int slot = -1;		// -1 while not in the wheel.
+		private Timeout previous;
+		private Timeout next;
+		private volatile boolean cancelled = false;	// for good, written while holding the lock.
+
+		private Timeout(Runnable task) {
+			this.task = task;
+		}
+
+		/*
+		 * Pushes the timeout back so it expires the given delay from now; does nothing once it's cancelled,
+		 * so a task that's already running can't put a cancelled timeout back in the wheel.
+		 */
+		public void reset(long delayMillis) {
+			lock.lock();
+			try {
+				if (cancelled) {
+					return;
+				}
+				unlink();
+
+				// round up, a timeout must never expire before its delay is over.
+				deadline = currentTick() + Math.max(1, (delayMillis + TICK_MILLIS - 1) / TICK_MILLIS);
+				link();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		public void cancel() {
+			lock.lock();
+			try {
+				cancelled = true;
+				unlink();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		// following two must be called while holding the lock.
+		private void link() {
+			slot = (int) (deadline & (WHEEL_SIZE - 1));
+			next = slots[slot];
+			if (next != null) {
+				next.previous = this;
+			}
+			slots[slot] = this;
+
+			if (pending++ == 0) {
+				scheduled.signal();
+			}
+		}
+
+		private void unlink() {
+			if (slot < 0) {
+				return;
+			}
+
+			if (previous != null) {
+				previous.next = next;
+			}
+			else {
+				slots[slot] = next;
+			}
+			if (next != null) {
+				next.previous = previous;
+			}
+
+			previous = null;
+			next = null;
+			slot = -1;
+			pending--;
+		}
+	}
+
+	private long currentTick() {
+		return (System.nanoTime() - startTime) / TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+	}
+
+	public void run() {
+		ArrayList<Timeout> expired = new ArrayList<>();
+
+		while (true) {
+			lock.lock();
+			try {
+				// nothing to wait for, sleep until something is scheduled.
+				while (pending == 0) {
+					scheduled.awaitUninterruptibly();
+
+					// no timeouts were in the wheel for the ticks we slept through.
+					lastTick = currentTick();
+				}
+
+				// go through every tick that passed since the last round.
+				long now = currentTick();
+				while (lastTick < now) {
+					lastTick++;
+
+					Timeout timeout = slots[(int) (lastTick & (WHEEL_SIZE - 1))];
+					while (timeout != null) {
+						Timeout next = timeout.next;
+
+						if (timeout.deadline <= lastTick) {
+							timeout.unlink();
+							expired.add(timeout);
+						}
+						timeout = next;
+					}
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+
+			// tasks are run outside the lock, so they are free to reschedule themselves.
+			for (Timeout timeout: expired) {
+				if (timeout.cancelled) {
+					continue;	// cancelled since it expired.
+				}
+				try {
+					timeout.task.run();
+				}
+				catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+			expired.clear();
+
+			try {
+				long nextTick = startTime + (lastTick + 1) * TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+				TimeUnit.NANOSECONDS.sleep(Math.max(0, nextTick - System.nanoTime()));
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,446 @@
+package socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import authenticate.Authenticator;
+import metrics.ReadingDecodeEvent;
+
+
+/*
+ * Alternative ingest model for the socket server.
+ *
+ * Instead of a thread per sensor, a fixed number of event loops(one per core by default) serve every,
+ * connected sensor using non-blocking SocketChannels and a Selector each. The wire protocol is exactly,
+ * what SocketSensor speaks;
+ * 		1) both ends send an ObjectOutputStream header.
+ * 		2) the sensor sends its password as a line of text and the server answers with a line of text.
+ * 		3) the sensor sends its readings as serialized hash maps, or as binary frames if it took up the offer,
+ * 		   we made in our reply(see SensorFrameCodec).
+ *
+ * Readings are handed to a SocketServer instance per sensor, so they end up in the same sensorAndData,
+ * map and the same files as in the thread per sensor model. A loop never waits for the write-ahead log,
+ * even with --wal always; the reading is handed over once the log has it(see ReadingLog).
+ */
+public class NioSocketServer {
+
+	// ObjectOutputStream header, STREAM_MAGIC followed by STREAM_VERSION.
+	private static final byte[] STREAM_HEADER = {(byte) 0xAC, (byte) 0xED, 0x00, 0x05};
+
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+	private static final int MAX_BUFFER_SIZE = 1024 * 1024;		// a single reading should never come close to this.
+	private static final int MAX_PASSWORD_LENGTH = 1024;
+
+	private final int port;
+	private final EventLoop[] loops;
+
+	// checking a key takes milliseconds on purpose(see Authenticator), far too long for a loop to wait on,
+	// so it's done here and the loop hears back when it's done.
+	private static final ExecutorService keyCheckers = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), task -> {
+		Thread t = new Thread(task, "nio-key-checker-" + KeyCheckerCount.next.getAndIncrement());
+		t.setDaemon(true);
+		return t;
+	});
+
+	private static class KeyCheckerCount {
+		static final AtomicInteger next = new AtomicInteger();
+	}
+
+
+	public NioSocketServer(int port, int loopCount) throws IOException {
+		this.port = port;
+		this.loops = new EventLoop[Math.max(1, loopCount)];
+
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop();
+		}
+	}
+
+	/*
+	 * Starts the event loops and then accepts sensors on the calling thread,
+	 * handing each new connection to the loops in a round robin fashion.
+	 */
+	public void start() throws IOException {
+		for (int i = 0; i < loops.length; i++) {
+			Thread t = new Thread(loops[i], "nio-ingest-" + i);
+			t.start();
+		}
+
+		ServerSocketChannel portListner = ServerSocketChannel.open();
+
+		try {
+			portListner.bind(new InetSocketAddress(port));
+
+			int next = 0;
+			while (true) {
+				SocketChannel channel = portListner.accept();
+				SocketServer.connectionsAccepted.increment();
+				loops[next].register(channel);
+				next = (next + 1) % loops.length;
+			}
+		}
+		finally {
+			// server is shutting down.
+			portListner.close();
+		}
+	}
+
+
+	/*
+	 * A single selector thread serving many sensors.
+	 */
+	private static class EventLoop implements Runnable {
+
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();	// to run on the loop, from other threads.
+
+		EventLoop() throws IOException {
+			this.selector = Selector.open();
+		}
+
+		// called from the accepting thread.
+		void register(SocketChannel channel) {
+			newChannels.add(channel);
+			selector.wakeup();
+		}
+
+		// called from any thread, the task runs on the loop.
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					// sensors that stop reporting are taken care of by the heartbeat wheel,
+					// so the loop only wakes up when there is something to read or write.
+					selector.select();
+
+					// sensors accepted since the last round.
+					SocketChannel channel;
+					while ((channel = newChannels.poll()) != null) {
+						open(channel);
+					}
+
+					// whatever other threads finished for our connections.
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						task.run();
+					}
+
+					Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+					while (selected.hasNext()) {
+						SelectionKey key = selected.next();
+						selected.remove();
+
+						SensorConnection connection = (SensorConnection) key.attachment();
+						try {
+							if (key.isValid() && key.isReadable()) {
+								connection.read();
+							}
+							if (key.isValid() && key.isWritable()) {
+								connection.write();
+							}
+						}
+						catch (Exception e) {
+							// a broken sensor should never take the loop down with it.
+							connection.close();
+						}
+					}
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		private void open(SocketChannel channel) {
+			try {
+				channel.configureBlocking(false);
+				SensorConnection connection = new SensorConnection(channel, this);
+				connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+
+				// the sensor's ObjectInputStream blocks until it gets our header.
+				connection.send(STREAM_HEADER);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				try {
+					channel.close();
+				}
+				catch (IOException ce) {
+					// nothing more to do.
+				}
+			}
+		}
+	}
+
+
+	/*
+	 * State of a single sensor connection, only ever touched by the loop that owns it.
+	 */
+	private static class SensorConnection {
+
+		private static final int STREAM_HEADER_PHASE = 0;
+		private static final int PASSWORD_PHASE = 1;
+		private static final int AUTHENTICATING_PHASE = 2;		// the key is being checked, we don't read meanwhile.
+		private static final int DATA_PHASE = 3;
+
+		private final SocketChannel channel;
+		private final EventLoop loop;
+		private SelectionKey key;
+		private int phase = STREAM_HEADER_PHASE;
+		private boolean closeAfterWrite = false;
+
+		private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);	// kept in write mode between reads.
+		private ByteBuffer out = ByteBuffer.allocate(0);						// kept in read mode, whatever is left to be sent.
+
+		// readings of older sensors are still decoded by an ObjectInputStream,
+		// but only once the scanner says a whole object is there.
+		private final SerialFrameScanner scanner = new SerialFrameScanner();
+		private ObjectInputStream decoder;
+		
+		// newer sensors send binary frames, which tell us their length up front.
+		private final SensorFrameCodec frameCodec = new SensorFrameCodec();
+		private boolean wireFormatKnown = false;
+		private boolean binaryFrames = false;
+
+		// does the actual work with the readings, exactly like in the thread per sensor model.
+		private final SocketServer server = new SocketServer(true);
+
+		SensorConnection(SocketChannel channel, EventLoop loop) {
+			this.channel = channel;
+			this.loop = loop;
+		}
+
+		void read() throws Exception {
+			if (channel.read(in) < 0) {
+				// sensor disconnected.
+				close();
+				return;
+			}
+
+			process();
+		}
+
+		// whatever is in the buffer, as far as it goes.
+		@SuppressWarnings("unchecked")
+		private void process() throws Exception {
+			in.flip();
+			try {
+				boolean progress = true;
+				while (progress && in.hasRemaining() && channel.isOpen()) {
+					progress = false;
+
+					switch (phase) {
+					case STREAM_HEADER_PHASE:
+						if (in.remaining() >= STREAM_HEADER.length) {
+							// the decoder reads and checks the sensor's stream header itself.
+							decoder = new ObjectInputStream(new BufferInput());
+							phase = PASSWORD_PHASE;
+							progress = true;
+						}
+						break;
+
+					case PASSWORD_PHASE:
+						String password = readLine();
+						if (password != null) {
+							authenticate(password);
+						}
+						break;
+
+					case AUTHENTICATING_PHASE:
+						// anything after the password waits until the key is checked.
+						break;
+
+					case DATA_PHASE:
+						// the first byte of the first reading tells us which kind of sensor this is.
+						if (!wireFormatKnown) {
+							binaryFrames = (in.get(in.position()) == SensorFrameCodec.FRAME_MAGIC);
+							wireFormatKnown = true;
+						}
+						
+						if (binaryFrames) {
+							if (SensorFrameCodec.frameLength(in) > 0) {
+								ReadingDecodeEvent event = new ReadingDecodeEvent("frame");
+								event.begin();
+								FireSensorData fsd = frameCodec.decode(in);
+								event.commit(fsd.getSensorId(), fsd.getSequence());
+								
+								server.onSensorData(fsd);
+								progress = true;
+							}
+						}
+						else if (scanner.scan(in) > 0) {
+							server.onSensorData(server.legacyReading((HashMap<String, String>) decoder.readObject()));
+							progress = true;
+						}
+						break;
+					}
+				}
+			}
+			finally {
+				in.compact();
+			}
+
+			// a reading bigger than our buffer, make room for the rest of it.
+			if (!in.hasRemaining()) {
+				if (in.capacity() >= MAX_BUFFER_SIZE) {
+					throw new IOException("Sensor sent more than " + MAX_BUFFER_SIZE + " bytes without a complete reading.");
+				}
+
+				ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+				in.flip();
+				bigger.put(in);
+				in = bigger;
+			}
+		}
+
+		/*
+		 * Same handshake as SocketServer.run, the first and only text the sensor will send is the password.
+		 * The key is checked on a key checker thread, we stop reading until the loop hears back(see authenticated).
+		 */
+		private void authenticate(String password) {
+			phase = AUTHENTICATING_PHASE;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+			keyCheckers.execute(() -> {
+				String session = new Authenticator().openSensorSession(password);
+				loop.execute(() -> authenticated(session));
+			});
+		}
+
+		// back on the loop.
+		private void authenticated(String session) {
+			if (!channel.isOpen()) {
+				new Authenticator().closeSensorSession(session);
+				return;
+			}
+
+			try {
+				if (session == null) {
+					closeAfterWrite = true;
+					sendLine("Authentication failed, disconnecting....");
+					return;
+				}
+
+				server.setSession(session);
+				sendLine("Authenticated successfully. " + SensorFrameCodec.PROTOCOL_OFFER + " [" + session + "]");
+				phase = DATA_PHASE;
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+
+				// readings the sensor sent right after the password are already here.
+				if (in.position() > 0) {
+					process();
+				}
+			}
+			catch (Exception e) {
+				close();
+			}
+		}
+
+		// a line of text as written by a PrintWriter, or null if the whole line is not there yet.
+		private String readLine() throws IOException {
+			for (int i = in.position(); i < in.limit(); i++) {
+				if (in.get(i) == '\n') {
+					byte[] line = new byte[i - in.position()];
+					in.get(line);
+					in.get();	// new line.
+
+					String text = new String(line, Charset.defaultCharset());
+					return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+				}
+			}
+
+			if (in.remaining() > MAX_PASSWORD_LENGTH) {
+				throw new IOException("Password line too long.");
+			}
+			return null;
+		}
+
+		private void sendLine(String text) throws IOException {
+			send((text + System.lineSeparator()).getBytes(Charset.defaultCharset()));
+		}
+
+		void send(byte[] data) throws IOException {
+			ByteBuffer pending = ByteBuffer.allocate(out.remaining() + data.length);
+			pending.put(out).put(data).flip();
+			out = pending;
+
+			write();
+		}
+
+		void write() throws IOException {
+			channel.write(out);
+
+			if (out.hasRemaining()) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			}
+			else {
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+				if (closeAfterWrite) {
+					close();
+				}
+			}
+		}
+
+		void close() {
+			if (!channel.isOpen()) {
+				return;
+			}
+
+			server.removeSensor();
+			key.cancel();
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		/*
+		 * Lets the ObjectInputStream read straight out of the connection's buffer.
+		 * It is only ever asked for bytes the scanner has already found to be there.
+		 */
+		private class BufferInput extends InputStream {
+
+			public int read() {
+				return in.hasRemaining() ? (in.get() & 0xFF) : -1;
+			}
+
+			public int read(byte[] b, int off, int len) {
+				if (len == 0) {
+					return 0;
+				}
+				if (!in.hasRemaining()) {
+					return -1;
+				}
+
+				int n = Math.min(len, in.remaining());
+				in.get(b, off, n);
+				return n;
+			}
+
+			public int available() {
+				return in.remaining();
+			}
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package socket;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import file.CurrentReadingsLog;
+import file.FileIO;
+import metrics.LatencyHistogram;
+import metrics.MetricsRegistry;
+import metrics.ReadingEvent;
+import metrics.ReadingPersistEvent;
+
+/*
+ * Writes the files the RMI server reads(data.txt, current.txt and s_count.txt) on a thread of its own.
+ *
+ * Sensor handlers only ask for a write and carry on, so they never sit in file I/O while holding,
+ * the sensor data lock(or pin the carrier thread when they run on virtual threads).
+ * Requests that pile up while a write is in progress are served by a single write afterwards,
+ * with only the latest reading of each sensor that changed since the last write.
+ */
+class SensorDataWriter implements Runnable {
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition requested = lock.newCondition();
+	private LinkedHashMap<String, FireSensorData> pendingReadings = new LinkedHashMap<>();	// latest unwritten reading per sensor.
+	private HashSet<String> pendingRemovals = new HashSet<>();
+	private int pendingSensorCount = -1;	// -1 means the count has not changed since the last write.
+
+	// File I/O properties.
+	private FileIO fileManager = new FileIO();
+	private File latestDataFile = new File("./data.txt");
+	private CurrentReadingsLog allCurrentReadings;		// current.txt
+	private File sensorCountFile = new File("./s_count.txt");
+
+	private static final LatencyHistogram writeTime = MetricsRegistry.latency("persist.files.write");
+
+
+	public static SensorDataWriter start() {
+		SensorDataWriter writer = new SensorDataWriter();
+
+		// doesn't keep the JVM up on its own, the socket server's threads do while there's anything to write.
+		Thread t = new Thread(writer, "sensor-data-writer");
+		t.setDaemon(true);
+		t.start();
+
+		MetricsRegistry.gauge("persist.files.queue.depth", writer::getPendingReadings);
+
+		return writer;
+	}
+
+	// readings waiting for the next write.
+	private long getPendingReadings() {
+		lock.lock();
+		try {
+			return pendingReadings.size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * A new reading is in the server's hash map, write it out when we get the chance.
+	 */
+	public void requestDataWrite(FireSensorData fsd) {
+		lock.lock();
+		try {
+			pendingRemovals.remove(fsd.getSensorId());
+			pendingReadings.put(fsd.getSensorId(), fsd);
+			requested.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/*
+	 * The sensor disconnected, take it out of current.txt.
+	 */
+	public void requestRemoval(String sensorId) {
+		lock.lock();
+		try {
+			pendingReadings.remove(sensorId);
+			pendingRemovals.add(sensorId);
+			requested.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Only the latest count matters, so a newer count replaces one that hasn't been written yet.
+	 */
+	public void requestSensorCountWrite(int sensorCount) {
+		lock.lock();
+		try {
+			pendingSensorCount = sensorCount;
+			requested.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public void run() {
+		while (true) {
+			LinkedHashMap<String, FireSensorData> readings;
+			HashSet<String> removals;
+			int sensorCount;
+
+			lock.lock();
+			try {
+				while (pendingReadings.isEmpty() && pendingRemovals.isEmpty() && pendingSensorCount < 0) {
+					requested.awaitUninterruptibly();
+				}
+
+				readings = pendingReadings;
+				removals = pendingRemovals;
+				sensorCount = pendingSensorCount;
+				pendingReadings = new LinkedHashMap<>();
+				pendingRemovals = new HashSet<>();
+				pendingSensorCount = -1;
+			}
+			finally {
+				lock.unlock();
+			}
+
+			int batchSize = readings.size();
+			List<ReadingPersistEvent> events = ReadingEvent.beginEach(() -> new ReadingPersistEvent("files", batchSize), batchSize);
+			long start = System.nanoTime();
+			try {
+				if (sensorCount >= 0) {
+					// we must always overwrite the file so there's only one count.
+					fileManager.writeToFile(Integer.toString(sensorCount), sensorCountFile, false);
+				}
+
+				if (!readings.isEmpty()) {
+					fileManager.writeSensorDataToXml(readings, false, latestDataFile);		// for rmi server to read latest data.
+				}
+				if (!readings.isEmpty() || !removals.isEmpty()) {
+					// if the rmi server wants data of all the connected sensors.
+					if (allCurrentReadings == null) {
+						allCurrentReadings = new CurrentReadingsLog(new File("./current.txt"));
+					}
+					allCurrentReadings.append(new ArrayList<>(readings.values()), removals);
+				}
+			}
+			catch (ParserConfigurationException | IOException e) {
+				e.printStackTrace();
+			}
+			writeTime.record(System.nanoTime() - start);
+			
+			if (events != null) {
+				int i = 0;
+				for (FireSensorData fsd: readings.values()) {
+					events.get(i++).commit(fsd.getSensorId(), fsd.getSequence());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package socket;
+
+/*
+ * What can be wrong with a reading, a bit each in the error codes of a FireSensorData(see validateAllParameters),
+ * so validating a reading is a few comparisons and no strings; the messages are only put together,
+ * for whoever shows them to a person(see messages).
+ *
+ * The bits end up in the files and go to the monitors, so they stay the same; new errors get new bits.
+ */
+public enum SensorError {
+	UNREPORTED(1, 0),
+	TEMPERATURE_BELOW_ABSOLUTE_ZERO(2, 1),
+	TEMPERATURE_DANGEROUS(4, 1),
+	BATTERY_MALFUNCTION(8, 2),
+	BATTERY_LOW(16, 2),
+	SMOKE_MALFUNCTION(32, 3),
+	SMOKE_DANGEROUS(64, 3),
+	CO2_DANGEROUS(128, 4);
+
+	// errors of each parameter, only one of them at a time.
+	public static final int TEMPERATURE = TEMPERATURE_BELOW_ABSOLUTE_ZERO.bit | TEMPERATURE_DANGEROUS.bit;
+	public static final int BATTERY = BATTERY_MALFUNCTION.bit | BATTERY_LOW.bit;
+	public static final int SMOKE = SMOKE_MALFUNCTION.bit | SMOKE_DANGEROUS.bit;
+	public static final int CO2 = CO2_DANGEROUS.bit;
+
+	// a reading with any of these is an alarm(see FireSensorData.classifyAlarm), a low battery can wait.
+	public static final int ALARMS = TEMPERATURE | SMOKE | CO2;
+
+	// messages come in this many slots, one per parameter after the unreported one, "" for no error.
+	public static final int SLOTS = 5;
+
+	private final int bit;
+	private final int slot;
+
+	SensorError(int bit, int slot) {
+		this.bit = bit;
+		this.slot = slot;
+	}
+
+	public int getBit() {
+		return bit;
+	}
+
+	public boolean isIn(int codes) {
+		return (codes & bit) != 0;
+	}
+
+	/*
+	 * The message for this error of the given reading, as the monitors have always had it.
+	 */
+	public String getMessage(String sensorId, double temperature, int smokeLevel, double co2Level) {
+		switch (this) {
+		case UNREPORTED:						return "* * * " + sensorId + " has not reported in 1 hour. * * * ";
+		case TEMPERATURE_BELOW_ABSOLUTE_ZERO:	return " Sensor is malfunctioning; A temperature of " + temperature + " celcius is below absolute zero. ";
+		case TEMPERATURE_DANGEROUS:				return " Temperature is reaching a dangerous level at " + temperature + " celcius. ";
+		case BATTERY_MALFUNCTION:				return " Battery malfunction. ";
+		case BATTERY_LOW:						return " Battery low! ";
+		case SMOKE_MALFUNCTION:					return " Smoke sensor malfunction. ";
+		case SMOKE_DANGEROUS:					return " Smoke level is at a dangerous level of " + smokeLevel + " ";
+		case CO2_DANGEROUS:						return " CO2 level is at a dangerous level of " + co2Level + " ";
+		default:								return "";
+		}
+	}
+
+	/*
+	 * Messages of the errors in the codes, in the order FireSensorData.getSensorErrors has always given them;
+	 * unreported, temperature, battery, smoke and CO2.
+	 */
+	public static String[] messages(int codes, String sensorId, double temperature, int smokeLevel, double co2Level) {
+		String[] messages = new String[SLOTS];
+		for (int slot = 0; slot < SLOTS; slot++) {
+			messages[slot] = "";
+		}
+
+		for (SensorError error: values()) {
+			if (error.isIn(codes)) {
+				messages[error.slot] = error.getMessage(sensorId, temperature, smokeLevel, co2Level);
+			}
+		}
+
+		return messages;
+	}
+}
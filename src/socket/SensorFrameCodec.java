@@ -0,0 +1,198 @@
+package socket;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import metrics.LatencyHistogram;
+import metrics.MetricsRegistry;
+import metrics.ReadingDecodeEvent;
+
+/*
+ * Compact binary frames for sensor readings, the replacement for serialized hash maps.
+ *
+ * A frame is laid out as follows(big endian);
+ * 		magic		1 byte, always FRAME_MAGIC so it can never be mistaken for the start of a serialized object.
+ * 		version		1 byte.
+ * 		length		2 bytes, number of bytes in the body.
+ * 		body(version 1)
+ * 			sensor id		2 byte length followed by the UTF-8 bytes of the id.
+ * 			temperature		8 byte double.
+ * 			battery			4 byte int.
+ * 			smoke			4 byte int.
+ * 			co2				8 byte double.
+ * 			timestamp		8 byte long, millis at the sensor when the reading was taken.
+ * 			sequence		8 byte long, numbers the readings of a sensor starting from 1.
+ *
+ * Later versions may only add fields to the end of the body, a reader skips what it doesn't know using the length.
+ *
+ * Frames are negotiated during the password handshake; a server that understands them adds PROTOCOL_OFFER,
+ * to its reply, and a sensor that wants to use them simply starts sending frames instead of objects.
+ */
+public class SensorFrameCodec {
+
+	public static final byte FRAME_MAGIC = (byte) 0xFA;
+	public static final int VERSION = 1;
+	public static final String PROTOCOL_OFFER = "[frames:1]";
+
+	public static final int HEADER_SIZE = 4;
+	public static final int MAX_BODY_SIZE = 0xFFFF;
+	private static final int FIXED_BODY_SIZE = 2 + 8 + 4 + 4 + 8 + 8 + 8;
+
+	// a sensor keeps its id, so we hold on to the last one instead of creating the same String for every reading.
+	private byte[] lastIdBytes = new byte[0];
+	private String lastId = "";
+
+	// thread per sensor model reads whole frames into this.
+	private byte[] frameBuffer = new byte[128];
+
+	// only loaded by whoever decodes, the sensors don't need it.
+	private static class DecodeMetrics {
+		static final LatencyHistogram decodeTime = MetricsRegistry.latency("readings.decode.frame");
+	}
+
+
+	/*
+	 * Encoding, used by the sensors.
+	 */
+	public static int frameSize(int sensorIdLength) {
+		return HEADER_SIZE + FIXED_BODY_SIZE + sensorIdLength;
+	}
+	
+	public static byte[] encode(String sensorId, double temperature, int battery, int smoke, double co2, long timestamp, long sequence) {
+		byte[] id = sensorId.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = ByteBuffer.allocate(frameSize(id.length));
+
+		encode(frame, id, temperature, battery, smoke, co2, timestamp, sequence);
+		return frame.array();
+	}
+
+	public static void encode(ByteBuffer frame, byte[] sensorId, double temperature, int battery, int smoke, double co2, long timestamp, long sequence) {
+		int bodySize = FIXED_BODY_SIZE + sensorId.length;
+		if (bodySize > MAX_BODY_SIZE) {
+			throw new IllegalArgumentException("Sensor id is too long for a frame.");
+		}
+
+		frame.put(FRAME_MAGIC);
+		frame.put((byte) VERSION);
+		frame.putShort((short) bodySize);
+
+		frame.putShort((short) sensorId.length);
+		frame.put(sensorId);
+		frame.putDouble(temperature);
+		frame.putInt(battery);
+		frame.putInt(smoke);
+		frame.putDouble(co2);
+		frame.putLong(timestamp);
+		frame.putLong(sequence);
+	}
+
+	/*
+	 * Decoding, used by the server.
+	 */
+
+	/*
+	 * Returns the size of the frame starting at the buffer's position if all of it is in the buffer,
+	 * or -1 if we have to wait for more bytes. The buffer itself is left untouched.
+	 */
+	public static int frameLength(ByteBuffer buffer) throws StreamCorruptedException {
+		if (buffer.remaining() < HEADER_SIZE) {
+			return -1;
+		}
+
+		int start = buffer.position();
+		checkHeader(buffer.get(start), buffer.get(start + 1));
+
+		int length = HEADER_SIZE + (buffer.getShort(start + 2) & 0xFFFF);
+		return (buffer.remaining() >= length) ? length : -1;
+	}
+
+	/*
+	 * Decodes a complete frame starting at the buffer's position and moves the position past it.
+	 */
+	public FireSensorData decode(ByteBuffer buffer) throws StreamCorruptedException {
+		long startNanos = System.nanoTime();
+		int start = buffer.position();
+		checkHeader(buffer.get(start), buffer.get(start + 1));
+
+		int bodySize = buffer.getShort(start + 2) & 0xFFFF;
+		int end = start + HEADER_SIZE + bodySize;
+		if (bodySize < FIXED_BODY_SIZE) {
+			throw new StreamCorruptedException("Frame body of " + bodySize + " bytes is too short.");
+		}
+
+		buffer.position(start + HEADER_SIZE);
+		String sensorId = readSensorId(buffer, bodySize);
+		double temperature = buffer.getDouble();
+		int battery = buffer.getInt();
+		int smoke = buffer.getInt();
+		double co2 = buffer.getDouble();
+		long timestamp = buffer.getLong();
+		long sequence = buffer.getLong();
+
+		// skip whatever a newer version added.
+		buffer.position(end);
+
+		FireSensorData fsd = new FireSensorData(sensorId, temperature, battery, smoke, co2, timestamp, sequence);
+		DecodeMetrics.decodeTime.record(System.nanoTime() - startNanos);
+		return fsd;
+	}
+
+	/*
+	 * Blocking version for the thread per sensor model.
+	 */
+	public FireSensorData read(DataInputStream in) throws IOException {
+		in.readFully(frameBuffer, 0, HEADER_SIZE);
+		checkHeader(frameBuffer[0], frameBuffer[1]);
+
+		// the frame has started coming in, from here on it's decoding.
+		ReadingDecodeEvent event = new ReadingDecodeEvent("frame");
+		event.begin();
+
+		int length = HEADER_SIZE + (((frameBuffer[2] & 0xFF) << 8) | (frameBuffer[3] & 0xFF));
+		if (frameBuffer.length < length) {
+			frameBuffer = Arrays.copyOf(frameBuffer, length);
+		}
+		in.readFully(frameBuffer, HEADER_SIZE, length - HEADER_SIZE);
+
+		FireSensorData fsd = decode(ByteBuffer.wrap(frameBuffer, 0, length));
+		event.commit(fsd.getSensorId(), fsd.getSequence());
+		return fsd;
+	}
+
+	private String readSensorId(ByteBuffer buffer, int bodySize) throws StreamCorruptedException {
+		int idLength = buffer.getShort() & 0xFFFF;
+		if (idLength > bodySize - FIXED_BODY_SIZE) {
+			throw new StreamCorruptedException("Sensor id of " + idLength + " bytes does not fit in the frame.");
+		}
+
+		// same sensor as last time, no need to decode the id again.
+		boolean same = (idLength == lastIdBytes.length);
+		for (int i = 0; same && i < idLength; i++) {
+			same = buffer.get(buffer.position() + i) == lastIdBytes[i];
+		}
+
+		if (same) {
+			buffer.position(buffer.position() + idLength);
+		}
+		else {
+			lastIdBytes = new byte[idLength];
+			buffer.get(lastIdBytes);
+			lastId = new String(lastIdBytes, StandardCharsets.UTF_8);
+		}
+
+		return lastId;
+	}
+
+	private static void checkHeader(byte magic, byte version) throws StreamCorruptedException {
+		if (magic != FRAME_MAGIC) {
+			throw new StreamCorruptedException("Not a sensor frame.");
+		}
+		if (version < 1) {
+			throw new StreamCorruptedException("Unknown frame version " + version);
+		}
+	}
+}
@@ -0,0 +1,328 @@
+package socket;
+
+import static java.io.ObjectStreamConstants.*;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/*
+ * Sensors write their readings with an ObjectOutputStream, which does not tell us how long an object is.
+ * The NIO ingest engine can not block inside ObjectInputStream.readObject() waiting for the rest of an object,
+ * so before handing bytes over to the decoder we walk the serialization grammar and find out whether
+ * a complete object has arrived yet.
+ *
+ * We only walk the stream, nothing is deserialized here. Handles are tracked the same way the
+ * ObjectInputStream does so back references to class descriptors written in earlier readings resolve.
+ */
+class SerialFrameScanner {
+
+	// thrown when the buffer runs out in the middle of an object; preallocated since it is not an error.
+	@SuppressWarnings("serial")
+	private static final class Underflow extends Exception {
+		Underflow() {
+			super(null, null, false, false);
+		}
+	}
+	private static final Underflow UNDERFLOW = new Underflow();
+
+	// what we need to remember about a class descriptor to be able to skip the data of its instances.
+	private static final class ClassInfo {
+		byte flags;
+		char[] fieldTypes;
+		char arrayType;		// element type code if this describes an array class.
+		ClassInfo superInfo;
+	}
+
+	// every handle the ObjectInputStream will assign, class descriptors are kept, anything else is null.
+	private final ArrayList<ClassInfo> handles = new ArrayList<>();
+
+	private ByteBuffer buf;
+	private int pos;
+	private int limit;
+
+
+	/*
+	 * Returns the number of bytes, starting at the buffer's position, that make up the next complete object,
+	 * or -1 if more bytes are needed. The buffer itself is left untouched.
+	 */
+	public int scan(ByteBuffer buffer) throws StreamCorruptedException {
+		this.buf = buffer;
+		this.pos = buffer.position();
+		this.limit = buffer.limit();
+
+		int mark = handles.size();
+		try {
+			// ObjectOutputStream.reset() writes these in between objects.
+			while (peek() == TC_RESET) {
+				pos++;
+				handles.clear();
+				mark = 0;
+			}
+
+			// readObject() only accepts an object at this point, not block data.
+			byte tc = peek();
+			if (tc == TC_BLOCKDATA || tc == TC_BLOCKDATALONG || tc == TC_ENDBLOCKDATA) {
+				throw new StreamCorruptedException("Expected an object, found block data.");
+			}
+			readObjectContent();
+
+			return pos - buffer.position();
+		}
+		catch (Underflow u) {
+			// the decoder has not seen these handles yet, we will go through them again once the rest arrives.
+			while (handles.size() > mark) {
+				handles.remove(handles.size() - 1);
+			}
+			return -1;
+		}
+		finally {
+			this.buf = null;
+		}
+	}
+
+	/*
+	 * Grammar.
+	 */
+	private void readObjectContent() throws Underflow, StreamCorruptedException {
+		byte tc = readByte();
+
+		switch (tc) {
+		case TC_NULL:			return;
+		case TC_REFERENCE:		readHandle();
+								return;
+		case TC_STRING:			handles.add(null);
+								skip(readUnsignedShort());
+								return;
+		case TC_LONGSTRING:		handles.add(null);
+								skip(readLong());
+								return;
+		case TC_CLASS:			readClassDesc();
+								handles.add(null);
+								return;
+		case TC_ENUM:			readClassDesc();
+								handles.add(null);
+								readObjectContent();	// name of the constant.
+								return;
+		case TC_ARRAY:			readArray();
+								return;
+		case TC_OBJECT:			readOrdinaryObject();
+								return;
+		case TC_CLASSDESC:
+		case TC_PROXYCLASSDESC:	pos--;
+								readClassDesc();
+								return;
+		default:				throw new StreamCorruptedException("Unsupported type code " + tc);
+		}
+	}
+
+	private ClassInfo readClassDesc() throws Underflow, StreamCorruptedException {
+		byte tc = readByte();
+		ClassInfo info;
+
+		switch (tc) {
+		case TC_NULL:
+			return null;
+
+		case TC_REFERENCE:
+			int handle = readHandle();
+			if ((info = handles.get(handle)) == null) {
+				throw new StreamCorruptedException("Handle " + handle + " is not a class descriptor.");
+			}
+			return info;
+
+		case TC_CLASSDESC:
+			info = new ClassInfo();
+
+			// class name, we only look at it to find the element type of arrays, i.e: "[I".
+			int nameLength = readUnsignedShort();
+			ensure(nameLength);
+			if (nameLength > 1 && buf.get(pos) == '[') {
+				info.arrayType = (char) buf.get(pos + 1);
+			}
+			skip(nameLength);
+			skip(8);	// serialVersionUID.
+
+			handles.add(info);
+			info.flags = readByte();
+			info.fieldTypes = new char[readUnsignedShort()];
+			for (int i = 0; i < info.fieldTypes.length; i++) {
+				info.fieldTypes[i] = (char) readByte();
+				skip(readUnsignedShort());		// field name.
+
+				if (info.fieldTypes[i] == 'L' || info.fieldTypes[i] == '[') {
+					readObjectContent();		// class name of the field, always a string or a reference.
+				}
+			}
+			readAnnotation();
+			info.superInfo = readClassDesc();
+			return info;
+
+		case TC_PROXYCLASSDESC:
+			info = new ClassInfo();
+			info.flags = SC_SERIALIZABLE;
+			info.fieldTypes = new char[0];
+			handles.add(info);
+
+			int interfaces = readInt();
+			for (int i = 0; i < interfaces; i++) {
+				skip(readUnsignedShort());
+			}
+			readAnnotation();
+			info.superInfo = readClassDesc();
+			return info;
+
+		default:
+			throw new StreamCorruptedException("Expected a class descriptor, found type code " + tc);
+		}
+	}
+
+	private void readOrdinaryObject() throws Underflow, StreamCorruptedException {
+		ClassInfo info = readClassDesc();
+		if (info == null) {
+			throw new StreamCorruptedException("Object without a class descriptor.");
+		}
+		handles.add(null);
+
+		// externalizable objects only carry their own data.
+		if ((info.flags & SC_EXTERNALIZABLE) != 0) {
+			if ((info.flags & SC_BLOCK_DATA) == 0) {
+				throw new StreamCorruptedException("Externalizable data written with protocol version 1 is not supported.");
+			}
+			readAnnotation();
+			return;
+		}
+
+		// data of each serializable class in the hierarchy is written starting from the top most super class.
+		ArrayList<ClassInfo> hierarchy = new ArrayList<>();
+		for (ClassInfo c = info; c != null; c = c.superInfo) {
+			hierarchy.add(c);
+		}
+		for (int i = hierarchy.size() - 1; i >= 0; i--) {
+			ClassInfo c = hierarchy.get(i);
+
+			if ((c.flags & SC_SERIALIZABLE) != 0) {
+				for (char type: c.fieldTypes) {
+					readValue(type);
+				}
+				if ((c.flags & SC_WRITE_METHOD) != 0) {
+					readAnnotation();
+				}
+			}
+		}
+	}
+
+	private void readArray() throws Underflow, StreamCorruptedException {
+		ClassInfo info = readClassDesc();
+		if (info == null || info.arrayType == 0) {
+			throw new StreamCorruptedException("Array without an array class descriptor.");
+		}
+		handles.add(null);
+
+		int size = readInt();
+		if (size < 0) {
+			throw new StreamCorruptedException("Negative array size " + size);
+		}
+
+		if (info.arrayType == 'L' || info.arrayType == '[') {
+			for (int i = 0; i < size; i++) {
+				readObjectContent();
+			}
+		}
+		else {
+			skip((long) size * primitiveSize(info.arrayType));
+		}
+	}
+
+	// anything written by writeObject/writeExternal methods, ends with TC_ENDBLOCKDATA.
+	private void readAnnotation() throws Underflow, StreamCorruptedException {
+		while (true) {
+			switch (peek()) {
+			case TC_ENDBLOCKDATA:	pos++;
+									return;
+			case TC_BLOCKDATA:		pos++;
+									skip(readByte() & 0xFF);
+									break;
+			case TC_BLOCKDATALONG:	pos++;
+									skip(readInt() & 0xFFFFFFFFL);
+									break;
+			default:				readObjectContent();
+			}
+		}
+	}
+
+	private void readValue(char type) throws Underflow, StreamCorruptedException {
+		if (type == 'L' || type == '[') {
+			readObjectContent();
+		}
+		else {
+			skip(primitiveSize(type));
+		}
+	}
+
+	private static int primitiveSize(char type) throws StreamCorruptedException {
+		switch (type) {
+		case 'B': case 'Z':	return 1;
+		case 'C': case 'S':	return 2;
+		case 'I': case 'F':	return 4;
+		case 'J': case 'D':	return 8;
+		default:			throw new StreamCorruptedException("Unknown field type " + type);
+		}
+	}
+
+	private int readHandle() throws Underflow, StreamCorruptedException {
+		int handle = readInt() - baseWireHandle;
+		if (handle < 0 || handle >= handles.size()) {
+			throw new StreamCorruptedException("Invalid handle " + handle);
+		}
+		return handle;
+	}
+
+	/*
+	 * Buffer access, all of these give up with UNDERFLOW instead of reading past the limit.
+	 */
+	private void ensure(long n) throws Underflow {
+		if (limit - pos < n) {
+			throw UNDERFLOW;
+		}
+	}
+
+	private byte peek() throws Underflow {
+		ensure(1);
+		return buf.get(pos);
+	}
+
+	private byte readByte() throws Underflow {
+		ensure(1);
+		return buf.get(pos++);
+	}
+
+	private int readUnsignedShort() throws Underflow {
+		ensure(2);
+		int value = buf.getShort(pos) & 0xFFFF;
+		pos += 2;
+		return value;
+	}
+
+	private int readInt() throws Underflow {
+		ensure(4);
+		int value = buf.getInt(pos);
+		pos += 4;
+		return value;
+	}
+
+	private long readLong() throws Underflow {
+		ensure(8);
+		long value = buf.getLong(pos);
+		pos += 8;
+		return value;
+	}
+
+	private void skip(long n) throws Underflow, StreamCorruptedException {
+		if (n < 0) {
+			throw new StreamCorruptedException("Negative length " + n);
+		}
+		ensure(n);
+		pos += (int) n;
+	}
+}
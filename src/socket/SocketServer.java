@@ -1,19 +1,46 @@
 package socket;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
+import java.io.PushbackInputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import authenticate.Authenticator;
-import file.FileIO;
+import bus.ReadingBus;
+import file.MappedReadingRing;
+import file.ReadingLog;
+import file.StateSnapshot;
+import history.ReadingHistory;
+import history.Rollups;
+import metrics.Counter;
+import metrics.LatencyHistogram;
+import metrics.MetricsRegistry;
+import metrics.ReadingDecodeEvent;
+import metrics.ReadingPersistEvent;
+import rules.RuleEngine;
+import rules.RuleSet;
 
 
 /*
@@ -30,6 +57,13 @@ public class SocketServer implements Runnable {
 	// server config.
 	private static final int PORT_TO_LISTEN = 9001;
 	
+	// Monitors should be notified if a sensor does not report back after an hour.
+	// 1 hour = 3.6e+6 millis = 3,600,000 millis.
+	private static final long HEARTBEAT_INTERVAL = 3600000;
+	
+	// a sensor that has sent nothing for two of its intervals is gone, even if its connection never said so.
+	private static final int SENSOR_READ_TIMEOUT = (int) (2 * HEARTBEAT_INTERVAL);
+	
 	/*
 	 *  Recording data given by each sensor.
 	 *  
@@ -41,7 +75,55 @@ public class SocketServer implements Runnable {
 	 *  
 	 *  Use a helper class to validate those parameters and check for dangerous values/levels.
 	 */
-	private static HashMap<String, FireSensorData> sensorAndData = new HashMap<>();
+	// sensors only ever touch their own entry, so they don't wait for each other, and reads don't wait at all.
+	private static final ConcurrentHashMap<String, FireSensorData> sensorAndData = new ConcurrentHashMap<>();
+	private static final AtomicInteger sensorCount = new AtomicInteger();		// entries in sensorAndData, less once a removal is handed over.
+	
+	// all the files are written by this one thread, handlers never do file I/O themselves;
+	// it's started by the first thing to write, so there's none unless we persist to files.
+	private static class DataWriter {
+		static final SensorDataWriter instance = SensorDataWriter.start();
+	}
+	
+	// keeps track of when each sensor is due to report, so nobody has to keep checking the time.
+	private static final HeartbeatWheel heartbeats = HeartbeatWheel.start();
+	
+	// when the RMI server runs in the same JVM, readings are handed over through the bus,
+	// and the files are only written if we want them as a record of the readings.
+	private static volatile ReadingBus readingBus;
+	private static volatile MappedReadingRing readingRing;	// same, for an RMI server in a separate process.
+	private static volatile boolean persistToFiles = true;
+	
+	// per sensor and per floor, over the last minute, hour and day.
+	private static final Rollups rollups = new Rollups();
+	
+	// write-ahead log of the readings, if we keep one(--wal).
+	public static final File READING_LOG_FILE = new File("./readings.wal");
+	private static volatile ReadingLog readingLog;
+	
+	// snapshot of the sensors and the history, so a restart only replays the log written after it(--snapshot).
+	public static final File SNAPSHOT_FILE = new File("./readings.snap");
+	public static final int DEFAULT_SNAPSHOT_SECONDS = 60;
+	private static final Object snapshotLock = new Object();
+	private static long snapshotAppended = 0;		// records the log had at the last snapshot, guarded by snapshotLock.
+	
+	// history of the readings, when the rmi server keeps it in this JVM; restored along with the sensors.
+	private static volatile ReadingHistory readingHistory;
+	
+	// configured rules on top of the built-in checks, if we have any(--rules).
+	private static final int RULES_CHECK_SECONDS = 5;
+	private static volatile RuleEngine ruleEngine;
+	
+	// see MetricsRegistry, same names in NioSocketServer.
+	static final Counter connectionsAccepted = MetricsRegistry.counter("sensors.connections.accepted");
+	static final Counter readingsIngested = MetricsRegistry.counter("readings.ingested");
+	static final LatencyHistogram legacyDecodeTime = MetricsRegistry.latency("readings.decode.hashmap");
+	private static final LatencyHistogram logTime = MetricsRegistry.latency("persist.wal.append");
+	private static final LatencyHistogram snapshotTime = MetricsRegistry.latency("persist.snapshot");
+	
+	static {
+		MetricsRegistry.gauge("sensors.connected", SocketServer::getSensorCount);
+	}
 
 	// Socket Connection properties.
 	private Socket socket;
@@ -52,6 +134,15 @@ public class SocketServer implements Runnable {
 											// and the value relevent to the parameter is the object assigned to the key.
 											// both the key and the object/value are Strings (Parse as needed).
 	
+	// sensors that took up our offer of binary frames send those instead of hash maps.
+	// we look at the first byte of the first reading to know which kind of sensor we have.
+	private PushbackInputStream sensorInput;
+	private DataInputStream sensorFrameInput;
+	private SensorFrameCodec frameCodec = new SensorFrameCodec();
+	private boolean wireFormatKnown = false;
+	private boolean binaryFrames = false;
+	private long legacySequence = 0;	// hash maps don't number their readings, so we do it for them.
+	
 	// while we are not sending any data to the client,
 	// we need this object initialized before the input stream,
 	// in order for everything to work.
@@ -59,12 +150,6 @@ public class SocketServer implements Runnable {
 	@SuppressWarnings("unused")
 	private ObjectOutputStream serverDataOutput;
 
-	// File I/O properties.
-	FileIO fileManager = new FileIO();
-	File latestDataFile = new File("./data.txt");
-	File allCurrentReadingsFile = new File("./current.txt");
-	File sensorCountFile = new File("./s_count.txt");
-	
 	
 	// Socket Connection implementations.
 	/*
@@ -74,9 +159,15 @@ public class SocketServer implements Runnable {
 	public void initSocketConnection(Socket serverSocket) {
 		this.socket = serverSocket;
 		try {
+			// reads block until the sensor sends something, but not forever if the sensor silently disappeared.
+			this.socket.setSoTimeout(SENSOR_READ_TIMEOUT);
+			this.socket.setKeepAlive(true);
+			
 			this.serverDataOutput = new ObjectOutputStream(this.socket.getOutputStream());
-			this.sensorTextInput =  new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
-			this.sensorDataInput = new ObjectInputStream(this.socket.getInputStream());
+			this.sensorInput = new PushbackInputStream(this.socket.getInputStream(), 1);
+			this.sensorTextInput =  new BufferedReader(new InputStreamReader(this.sensorInput));
+			this.sensorDataInput = new ObjectInputStream(this.sensorInput);
+			this.sensorFrameInput = new DataInputStream(this.sensorInput);
 			this.serverTextOutput = new PrintWriter(this.socket.getOutputStream(), true);
 		} 
 		catch (IOException e) {
@@ -87,21 +178,17 @@ public class SocketServer implements Runnable {
 	
 	/*
 	 * Reads the ObjectOutputStream of the connected client socket and returns if any data is read.
-	 * TODO Above stream will always be read to check for data, thus EOFException will be thrown most of the time,
-	 * 		(since data will be available every couple of minutes). Therefore we have to ignore the above exception.
+	 * The read blocks until the sensor sends something, an EOFException means the sensor is gone,
+	 * and a SocketTimeoutException means it has been silent for longer than SENSOR_READ_TIMEOUT.
 	 * 
 	 * (non-Javadoc)
 	 * @see fireAlarmServer.ISocketConnection#readSocketData()
 	 */
-	public Object readSocketData() {
+	public Object readSocketData() throws IOException {
 		Object data = null;
 		try {
 			data = this.sensorDataInput.readObject();
 		} 
-		catch (IOException  ioe) {
-			// do not do a stack trace since most of the time the exception will be,
-			// EOFException, since data will be available in fixed intervals of times.
-		}
 		catch (ClassNotFoundException cnfe) {
 			cnfe.printStackTrace();
 		}
@@ -109,6 +196,48 @@ public class SocketServer implements Runnable {
 		return data;
 	}
 
+	/*
+	 * Reads the next reading of the sensor, whichever format the sensor speaks, and returns null if the sensor,
+	 * disconnected before sending one.
+	 * A sensor that took up our offer starts its first reading with FRAME_MAGIC,
+	 * an older sensor starts it with a serialized object.
+	 */
+	@SuppressWarnings("unchecked")
+	public FireSensorData readSensorData() throws IOException {
+		if (!wireFormatKnown) {
+			int first = sensorInput.read();
+			if (first < 0) {
+				return null;
+			}
+			sensorInput.unread(first);
+			
+			binaryFrames = ((byte) first == SensorFrameCodec.FRAME_MAGIC);
+			wireFormatKnown = true;
+		}
+		
+		if (binaryFrames) {
+			return frameCodec.read(sensorFrameInput);
+		}
+		
+		HashMap<String, String> sensorDataAsHashMap = (HashMap<String, String>) readSocketData();
+		return (sensorDataAsHashMap != null) ? legacyReading(sensorDataAsHashMap) : null;
+	}
+	
+	/*
+	 * Turns a hash map sent by an older sensor into a reading, numbered like the ones sent as binary frames.
+	 */
+	public FireSensorData legacyReading(HashMap<String, String> sensorDataAsHashMap) {
+		ReadingDecodeEvent event = new ReadingDecodeEvent("hashmap");
+		event.begin();
+		long start = System.nanoTime();
+		FireSensorData fsd = new FireSensorData(sensorDataAsHashMap);
+		fsd.setSequence(++legacySequence);
+		legacyDecodeTime.record(System.nanoTime() - start);
+		event.commit(fsd.getSensorId(), fsd.getSequence());
+		
+		return fsd;
+	}
+	
 	/*
 	 * Returns the server socket that is passed to the ServerInstance at the time of the creation of a,
 	 * ServerInstance object. We need this server socket to initialize other parameters such as i/o streams,
@@ -144,6 +273,42 @@ public class SocketServer implements Runnable {
 	
 	public static void main(String[] args) throws IOException {
 		
+		// when the RMI server runs as a separate process, readings can be handed over through a memory mapped ring,
+		// (--ring) instead of data.txt. The files are then only written if asked for as well(--files).
+		// --wal <always|never|millis> keeps a write-ahead log of the readings, see openReadingLog,
+		// and --snapshot <seconds> how often it's snapshotted(0 never). --rules <file> see loadRules.
+		boolean useRing = false;
+		boolean persist = false;
+		String walSync = null;
+		int snapshotSeconds = DEFAULT_SNAPSHOT_SECONDS;
+		String rulesFile = null;
+		ArrayList<String> ingestArgs = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--ring")) {
+				useRing = true;
+			}
+			else if (args[i].equals("--files")) {
+				persist = true;
+			}
+			else if (args[i].equals("--wal") && i + 1 < args.length) {
+				walSync = args[++i];
+			}
+			else if (args[i].equals("--snapshot") && i + 1 < args.length) {
+				snapshotSeconds = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("--rules") && i + 1 < args.length) {
+				rulesFile = args[++i];
+			}
+			else {
+				ingestArgs.add(args[i]);
+			}
+		}
+		
+		if (useRing) {
+			setReadingRing(MappedReadingRing.open(MappedReadingRing.DEFAULT_FILE, MappedReadingRing.DEFAULT_CAPACITY));
+			setPersistToFiles(persist);
+		}
+		
 		// get key for authenticating the sensors.
 		System.out.println("Enter master authentication key(Use this key to authenticate each sensor).");
 		System.out.print("Key:");
@@ -157,6 +322,41 @@ public class SocketServer implements Runnable {
 		authenticator.setSocketServerAuthentication(key);
 		
 		System.out.println("Authentication key set, use the same key when starting sensors.");
+		
+		if (rulesFile != null) {
+			loadRules(new File(rulesFile));
+		}
+		if (walSync != null) {
+			openReadingLog(walSync, snapshotSeconds);
+		}
+		
+		serve(ingestArgs.toArray(new String[0]));
+	}
+	
+	/*
+	 * Accepts sensors until the server shuts down, using the ingest model given in the arguments.
+	 * The ingest model can be picked at startup so we can compare them under the same load.
+	 *		thread	: one platform thread per sensor (default).
+	 *		virtual	: a virtual thread per sensor (needs Java 21, falls back to a cached thread pool).
+	 *		nio		: selector based event loops that serve every sensor without a thread per sensor,
+	 *				  optionally followed by the number of loops (defaults to one per core).
+	 */
+	public static void serve(String[] args) throws IOException {
+		String mode = (args.length > 0) ? args[0] : "thread";
+		
+		if (mode.equals("nio")) {
+			int loops = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+			
+			System.out.println("Fire Alarm Socket Server is up and running (nio, " + loops + " event loops)");
+			new NioSocketServer(PORT_TO_LISTEN, loops).start();
+			return;
+		}
+		
+		ExecutorService executor = null;
+		if (mode.equals("virtual")) {
+			executor = newVirtualThreadExecutor();
+		}
+		
 		System.out.println("Fire Alarm Socket Server is up and running");
 		
 		// initiate socket operations.
@@ -166,14 +366,334 @@ public class SocketServer implements Runnable {
 			// accept as requests come.
 			while (true) {
 				SocketServer server = new SocketServer(portListner.accept());
-				Thread t = new Thread(server);
-				t.start();
+				connectionsAccepted.increment();
+				
+				if (executor != null) {
+					executor.execute(server);
+				}
+				else {
+					Thread t = new Thread(server);
+					t.start();
+				}
 			}
 		}
 		finally {
 			// server is shutting down.
 			portListner.close();
+			
+			if (executor != null) {
+				executor.shutdown();
+			}
+		}
+	}
+	
+	/*
+	 * Executors.newVirtualThreadPerTaskExecutor() only exists from Java 21 onwards, and we still build for older JVMs,
+	 * so we look it up at runtime and fall back to a cached thread pool if it is not there.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (ReflectiveOperationException e) {
+			System.err.println("Virtual threads are not available on this JVM, using a cached thread pool instead.");
+			return Executors.newCachedThreadPool();
+		}
+	}
+	
+	/*
+	 * Co-located deployment, see FireAlarmServer.
+	 */
+	public static void setReadingBus(ReadingBus bus) {
+		readingBus = bus;
+	}
+	
+	public static void setReadingRing(MappedReadingRing ring) {
+		readingRing = ring;
+	}
+	
+	public static void setReadingHistory(ReadingHistory history) {
+		readingHistory = history;
+	}
+	
+	/*
+	 * Tests every reading against the rules in the file as well(see rules.RuleSet), on top of the built-in checks.
+	 * The file is checked for changes every few seconds; new rules are evaluated over every connected sensor at once,
+	 * and the sensors an alarm rule now fires for have their latest reading sent to the monitors again, as an alarm.
+	 * A file we can't make sense of leaves the rules as they were.
+	 */
+	public static void loadRules(File file) {
+		RuleEngine engine = new RuleEngine();
+		ruleEngine = engine;
+		
+		long[] lastModified = { Long.MIN_VALUE };
+		Runnable check = () -> {
+			long modified = file.lastModified();
+			if (modified == lastModified[0]) {
+				return;
+			}
+			lastModified[0] = modified;
+			
+			try {
+				long started = System.nanoTime();
+				List<String> raised = engine.setRules(RuleSet.load(file));
+				System.out.println(engine.getRules().size() + " rules loaded from " + file + ", fleet evaluated in "
+						+ (System.nanoTime() - started) / 1000 + "us, " + raised.size() + " sensors raised.");
+				
+				for (String raisedId: raised) {
+					republishAsAlarm(engine, raisedId);
+				}
+			}
+			catch (IOException | IllegalArgumentException e) {
+				System.err.println("Rules in " + file + " not loaded; " + e.getMessage());
+			}
+		};
+		
+		check.run();
+		ScheduledExecutorService watcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "rules-watcher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		watcher.scheduleWithFixedDelay(check, RULES_CHECK_SECONDS, RULES_CHECK_SECONDS, TimeUnit.SECONDS);
+	}
+	
+	// a copy, the reading itself may be on its way to the monitors already.
+	private static void republishAsAlarm(RuleEngine engine, String sensorId) {
+		FireSensorData latest = sensorAndData.get(sensorId);
+		if (latest == null) {
+			return;
+		}
+		
+		FireSensorData alarm = new FireSensorData(latest.getSensorId(), latest.getTemperature(), latest.getBatteryPercentage(),
+				latest.getSmokeLevel(), latest.getCo2Level(), latest.getTimestamp(), latest.getSequence());
+		if (latest.isUnreported()) {
+			alarm.markUnreported();
 		}
+		alarm.classifyAlarm();
+		alarm.setRuleAlerts(engine.getRules().describe(engine.getFired(sensorId)));
+		alarm.setAlarm(true);
+		alarm.setReceivedNanos(System.nanoTime());
+		
+		publish(alarm);
+	}
+	
+	/*
+	 * Starts logging every reading to readings.wal, synced on every reading("always"), never("never"),
+	 * or every so many millis(see ReadingLog.SyncPolicy).
+	 * Sensors that were connected when the server went down are back with their last reading,
+	 * until they reconnect or miss their heartbeat like any other sensor; and so is the history, if we have it.
+	 * That's the last snapshot, and the part of the log written after it; a snapshot is taken every so many seconds,
+	 * (0 never) if readings came in since the last one, and when the server stops.
+	 */
+	public static void openReadingLog(String sync, int snapshotSeconds) throws IOException {
+		ReadingLog.SyncPolicy policy;
+		long syncInterval = 0;
+		if (sync.equalsIgnoreCase("always")) {
+			policy = ReadingLog.SyncPolicy.ALWAYS;
+		}
+		else if (sync.equalsIgnoreCase("never")) {
+			policy = ReadingLog.SyncPolicy.NEVER;
+		}
+		else {
+			policy = ReadingLog.SyncPolicy.INTERVAL;
+			syncInterval = Long.parseLong(sync);
+		}
+		
+		long started = System.nanoTime();
+		ReadingHistory history = readingHistory;
+		LinkedHashMap<String, FireSensorData> connected = new LinkedHashMap<>();
+		long fromSegment = 0;
+		long[] replayed = { 0 };
+		
+		StateSnapshot snapshot = StateSnapshot.read(SNAPSHOT_FILE, history);
+		if (snapshot != null) {
+			for (FireSensorData fsd: snapshot.getSensors()) {
+				connected.put(fsd.getSensorId(), fsd);
+			}
+			fromSegment = snapshot.getSegment();
+		}
+		
+		ReadingLog log = ReadingLog.open(READING_LOG_FILE, policy, syncInterval, fromSegment, new ReadingLog.Replay() {
+			public void reading(FireSensorData fsd) {
+				connected.put(fsd.getSensorId(), fsd);
+				replayed[0]++;
+				
+				// the history may be a little behind the log when the snapshot is taken, so the log goes back a bit further,
+				// (see takeSnapshot); what it has already we skip.
+				if (history != null && fsd.getTimestamp() > history.getLatestTimestamp(fsd.getSensorId())) {
+					history.append(fsd);
+				}
+			}
+			
+			public void removal(String sensorId) {
+				connected.remove(sensorId);
+				replayed[0]++;
+			}
+		});
+		restoreSensors(connected.values());
+		
+		readingLog = log;
+		synchronized (snapshotLock) {
+			// if we had to replay, the next snapshot saves the next start doing it again.
+			snapshotAppended = (replayed[0] > 0) ? -1 : log.getAppended();
+		}
+		System.out.println("State restored in " + (System.nanoTime() - started) / 1_000_000 + "ms.");
+		
+		if (snapshotSeconds > 0) {
+			ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "reading-snapshot");
+				thread.setDaemon(true);
+				return thread;
+			});
+			snapshots.scheduleWithFixedDelay(SocketServer::takeSnapshot, snapshotSeconds, snapshotSeconds, TimeUnit.SECONDS);
+		}
+		
+		// so the last readings make it to the disk when we're stopped, and the next start doesn't have to replay them.
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				if (snapshotSeconds > 0) {
+					takeSnapshot();
+				}
+				log.close();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}, "reading-log-close"));
+	}
+	
+	/*
+	 * Starts a new segment of the log, and writes the sensors and the history as they are after it.
+	 * Everything in the segments before the new one is in the snapshot then, but the history comes to us through the bus,
+	 * so it may not have the last of them yet; we keep the segment before the new one for that, and delete the rest.
+	 */
+	private static void takeSnapshot() {
+		ReadingLog log = readingLog;
+		
+		synchronized (snapshotLock) {
+			try {
+				long appended = log.getAppended();
+				if (appended == snapshotAppended) {
+					return;		// nothing happened since the last one.
+				}
+				
+				long start = System.nanoTime();
+				long segment = log.roll();
+				StateSnapshot.write(SNAPSHOT_FILE, segment - 1, snapshotSensorData().values(), readingHistory);
+				log.deleteSegmentsBefore(segment - 1);
+				snapshotTime.record(System.nanoTime() - start);
+				
+				snapshotAppended = appended;
+			}
+			catch (IOException | RuntimeException e) {
+				System.err.println("Snapshot not taken; " + e.getMessage());
+			}
+		}
+	}
+	
+	/*
+	 * Puts the sensors back the way they were before a restart. Each gets a handler without a connection,
+	 * that only keeps its heartbeat, until the sensor itself reconnects and replaces its reading.
+	 */
+	private static void restoreSensors(Collection<FireSensorData> readings) {
+		if (readings.isEmpty()) {
+			return;
+		}
+		
+		for (FireSensorData fsd: readings) {
+			SocketServer restored = new SocketServer();
+			restored.restoredFromLog = true;
+			restored.sensorId = fsd.getSensorId();
+			restored.lastReading = fsd;
+			
+			if (sensorAndData.put(fsd.getSensorId(), fsd) == null) {
+				sensorCount.incrementAndGet();
+			}
+			
+			RuleEngine engine = ruleEngine;
+			if (engine != null) {
+				engine.apply(fsd);
+			}
+			
+			restored.heartbeat = heartbeats.schedule(restored::onHeartbeatMissed, HEARTBEAT_INTERVAL);
+			if (persistToFiles) {
+				DataWriter.instance.requestDataWrite(fsd);
+			}
+		}
+		
+		publishSensorCount();
+		System.out.println(readings.size() + " sensors restored.");
+	}
+	
+	/*
+	 * Appends to the write-ahead log if we keep one; depending on its sync policy, waits until it's on the disk.
+	 */
+	private static void log(FireSensorData fsd) {
+		ReadingLog log = readingLog;
+		if (log != null) {
+			try {
+				ReadingPersistEvent event = new ReadingPersistEvent("wal", 1);
+				event.begin();
+				long start = System.nanoTime();
+				log.append(fsd);
+				logTime.record(System.nanoTime() - start);
+				event.commit(fsd.getSensorId(), fsd.getSequence());
+			}
+			catch (IOException e) {
+				System.err.println("Reading of " + fsd.getSensorId() + " not logged; " + e.getMessage());
+			}
+		}
+	}
+	
+	/*
+	 * Same, without waiting for the disk or the flusher; whenLogged runs once the log counts the reading as written,
+	 * on the log's flusher thread with --wal always. It runs right away if we keep no log(or can't log it).
+	 */
+	private static void logLater(FireSensorData fsd, Runnable whenLogged) {
+		ReadingLog log = readingLog;
+		if (log == null) {
+			whenLogged.run();
+			return;
+		}
+		
+		try {
+			ReadingPersistEvent event = new ReadingPersistEvent("wal", 1);
+			event.begin();
+			long start = System.nanoTime();
+			log.append(fsd, whenLogged);
+			logTime.record(System.nanoTime() - start);
+			event.commit(fsd.getSensorId(), fsd.getSequence());
+		}
+		catch (IOException e) {
+			System.err.println("Reading of " + fsd.getSensorId() + " not logged; " + e.getMessage());
+			whenLogged.run();
+		}
+	}
+	
+	public static void setPersistToFiles(boolean persist) {
+		persistToFiles = persist;
+	}
+	
+	public static boolean isPersistingToFiles() {
+		return persistToFiles;
+	}
+	
+	public static int getSensorCount() {
+		return sensorCount.get();
+	}
+	
+	public static Rollups getRollups() {
+		return rollups;
+	}
+	
+	/*
+	 * A copy of sensorAndData to iterate at leisure, the latest reading of every sensor for an RMI server in the same JVM,
+	 * and for snapshots. Sensors carry on meanwhile; every entry is a whole reading the sensor had while we copied,
+	 * a sensor that came or went while we were at it may or may not be in it.
+	 */
+	public static HashMap<String, FireSensorData> snapshotSensorData() {
+		return new HashMap<>(sensorAndData);
 	}
 	
 	/*
@@ -184,29 +704,41 @@ public class SocketServer implements Runnable {
 	 * TODO Always synchronize and avoid duplicates.
 	 */
 	public void insertDataToServerHashMap(String sensorId, FireSensorData fireSensorData) {
-		synchronized (sensorAndData) {
-			// HashMap will automatically replace the value if the sensorId already exists.
-			// set writtenToFile in fireSensorData to false so the writting method may recognize,
-			// new data and write to the file.
-			fireSensorData.setAlreadyWrittenToFile(false);
-			sensorAndData.put(sensorId, fireSensorData);
-			
-			// finally we update the sensor count.
-			updateSensorCount();
+		// The map will automatically replace the value if the sensorId already exists.
+		// set writtenToFile in fireSensorData to false so the writting method may recognize,
+		// new data and write to the file.
+		fireSensorData.setAlreadyWrittenToFile(false);
+		
+		// the count only changes for a sensor we didn't have.
+		if (sensorAndData.put(sensorId, fireSensorData) == null) {
+			sensorCount.incrementAndGet();
+			publishSensorCount();
 		}
+		
+		rollups.record(fireSensorData);
 	}
 
 	/*
-	 * Every time a sensor is connected/disconnected we need to update the sensor count,
-	 * and write to a file so the RMI server can use that data.
+	 * Every time a sensor is connected/disconnected we need to let the RMI server know the sensor count,
+	 * through the ring, or s_count.txt which the data writer writes on its own thread.
+	 * Sensors coming and going at the same time may publish their counts out of order, so we check again after,
+	 * and whoever publishes last has the count as it is.
 	 */
-	public void updateSensorCount() {
-
-		// we must always overwrite the file so there's only one count.
-		synchronized (sensorAndData) {
-			fileManager.writeToFile(Integer.toString(sensorAndData.keySet().size()), sensorCountFile, false);
-			System.out.println(sensorAndData.size());
-		}
+	private static void publishSensorCount() {
+		int count;
+		do {
+			count = sensorCount.get();
+			
+			MappedReadingRing ring = readingRing;
+			if (ring != null) {
+				ring.setSensorCount(count);
+			}
+			if (persistToFiles) {
+				DataWriter.instance.requestSensorCountWrite(count);
+			}
+		} while (count != sensorCount.get());
+		
+		System.out.println(count);
 	}
 	
 	/*
@@ -216,18 +748,211 @@ public class SocketServer implements Runnable {
 	 */
 	
 	/* * * Each ServerInstance is simple an unique instance of FireAlarmServer with a couple of data handling parameters. * * */
-	private String sensorId;
-	private long lastUpdate;	// using Time() we can get the difference easily.
+	// the heartbeat wheel calls back on its own thread, hence volatile.
+	private volatile String sensorId = "Unassigned Sensor Id";
+	private volatile FireSensorData lastReading;
+	private HeartbeatWheel.Timeout heartbeat;
+	private boolean restoredFromLog = false;	// stands in for a sensor that was connected before a restart.
+	private final boolean eventLoop;			// on one of NioSocketServer's loops, which must never wait(see log).
+	private String session;						// the sensor's token, closed when it disconnects(see Authenticator).
 	
 	
 	public SocketServer(Socket sensorSocket) {
 		this.socket = sensorSocket;
+		this.eventLoop = false;
 	}
 	
-	public SocketServer() {}
+	public SocketServer() {
+		this.eventLoop = false;
+	}
+	
+	SocketServer(boolean eventLoop) {
+		this.eventLoop = eventLoop;
+	}
 		
 		
 		
+	/*
+	 * Every reading sent by the sensor ends up here, regardless of which ingest model read it off the wire.
+	 * Record it, let the RMI server know through the files and push the sensor's heartbeat back.
+	 */
+	public void onSensorData(FireSensorData fsd) {
+		fsd.setReceivedNanos(System.nanoTime());
+		readingsIngested.increment();
+		lastReading = fsd;
+		sensorId = fsd.getSensorId();
+		
+		// an alarm goes to the rmi server before anything else, printing and the files can wait.
+		boolean alarm = fsd.classifyAlarm();
+		RuleEngine engine = ruleEngine;
+		if (engine != null && engine.apply(fsd)) {
+			fsd.setAlarm(true);
+			alarm = true;
+		}
+		if (alarm) {
+			publish(fsd);
+		}
+			
+		fsd.printData();	
+		insertDataToServerHashMap(sensorId, fsd);
+		
+		// in the log before it's handed over, so nothing the monitors saw is lost in a crash(alarms aside).
+		// an event loop doesn't wait for the log, the log hands the reading over once it has it.
+		if (eventLoop) {
+			boolean published = alarm;
+			logLater(fsd, () -> handOver(fsd, published));
+		}
+		else {
+			log(fsd);
+			handOver(fsd, alarm);
+		}
+			
+		// coming upto this points indicates that the sensor sent data,
+		// hence the sensor has another hour before it is due again.
+		if (heartbeat == null) {
+			heartbeat = heartbeats.schedule(() -> onHeartbeatMissed(), HEARTBEAT_INTERVAL);
+		}
+		else {
+			heartbeat.reset(HEARTBEAT_INTERVAL);
+		}
+	}
+	
+	/*
+	 * The rest of taking a reading in, once it's in the log.
+	 */
+	private static void handOver(FireSensorData fsd, boolean published) {
+		if (!published) {
+			publish(fsd);
+		}
+		if (persistToFiles) {
+			DataWriter.instance.requestDataWrite(fsd);		// data.txt for the rmi server to read latest data, current.txt for all the connected sensors.
+		}
+	}
+	
+	/*
+	 * Straight to the rmi server, through the bus if it runs in this JVM or the ring if it doesn't.
+	 * Alarms skip the queue of routine readings on the bus, and are flagged as such in the ring.
+	 */
+	private static void publish(FireSensorData fsd) {
+		ReadingBus bus = readingBus;
+		if (bus != null) {
+			if (fsd.isAlarm()) {
+				bus.publishAlarm(fsd);
+			}
+			else {
+				bus.publish(fsd);
+			}
+		}
+		
+		MappedReadingRing ring = readingRing;
+		if (ring != null && !ring.publish(fsd)) {
+			System.err.println(fsd.getSensorId() + " has an id too long for the reading ring, reading not handed over.");
+		}
+	}
+	
+	/*
+	 * Called by the heartbeat wheel when the sensor's last update is more than an hour old,
+	 * in which case the monitors should be notified.
+	 */
+	private void onHeartbeatMissed() {
+		FireSensorData fsd = lastReading;
+		
+		// a restored sensor that reconnected has a handler of its own now, which looks after its heartbeat.
+		if (restoredFromLog && !isCurrentReading(fsd)) {
+			return;
+		}
+
+		fsd.markUnreported();
+			
+		log(fsd);
+		publish(fsd);
+		if (persistToFiles) {
+			fsd.setAlreadyWrittenToFile(false);		// otherwise writting method will ignore the sensor.
+			DataWriter.instance.requestDataWrite(fsd);		// the writer marks the sensor as written once data.txt is done.
+		}
+			
+		// Sending the warning once and then waiting another 1 hour will suffice.
+		heartbeat.reset(HEARTBEAT_INTERVAL);
+	}
+	
+	// NioSocketServer checks the key itself, the session is ours to close all the same.
+	void setSession(String session) {
+		this.session = session;
+	}
+	
+	/*
+	 * sensor disconnecting from the server.
+	 * therefore remove the sensor and its data.
+	 */
+	public void removeSensor() {
+		if (session != null) {
+			new Authenticator().closeSensorSession(session);
+			session = null;
+		}
+		
+		if (heartbeat != null) {
+			heartbeat.cancel();
+		}
+		
+		// only if it's still our reading, a sensor that reconnected with the same id may have replaced it already.
+		// The removal goes in the log before the map lets go of the entry, so it can't come after the reading of a reconnect;
+		// and it's handed over the same way as a reading, so after the hand over of this sensor's last reading(see logLater).
+		FireSensorData reading = lastReading;
+		if (reading != null) {
+			sensorAndData.computeIfPresent(sensorId, (id, current) -> {
+				if (current != reading) {
+					return current;
+				}
+				
+				logRemovalLater(id, () -> handOverRemoval(id, reading));
+				return null;
+			});
+		}
+	}
+	
+	/*
+	 * Same as logLater, for a sensor that left.
+	 */
+	private static void logRemovalLater(String sensorId, Runnable whenLogged) {
+		ReadingLog log = readingLog;
+		if (log == null) {
+			whenLogged.run();
+			return;
+		}
+		
+		try {
+			log.appendRemovalLater(sensorId, whenLogged);
+		}
+		catch (IOException e) {
+			System.err.println("Removal of " + sensorId + " not logged; " + e.getMessage());
+			whenLogged.run();
+		}
+	}
+	
+	/*
+	 * The rest of a sensor leaving, once it's in the log.
+	 */
+	private static void handOverRemoval(String sensorId, FireSensorData lastReading) {
+		if (persistToFiles) {
+			DataWriter.instance.requestRemoval(sensorId);
+		}
+		
+		// we have to update the sensor count since we have removed a sensor.
+		sensorCount.decrementAndGet();
+		publishSensorCount();
+		
+		// unless the sensor is back already, the rule engine has its new readings then.
+		FireSensorData current = sensorAndData.get(sensorId);
+		RuleEngine engine = ruleEngine;
+		if (engine != null && (current == null || current == lastReading)) {
+			engine.remove(sensorId);
+		}
+	}
+	
+	private static boolean isCurrentReading(FireSensorData fsd) {
+		return sensorAndData.get(fsd.getSensorId()) == fsd;
+	}
+	
 	/*
 	* run method of the Thread class.
 	* Listens to the sensor and accepts the hashmap sent.
@@ -237,80 +962,45 @@ public class SocketServer implements Runnable {
 	* 
 	* Monitors should be notified if the sensor does not report back after an hour.
 	*/
-	@SuppressWarnings("unchecked")
 	public void run() {
 		try {
 			initSocketConnection(socket);
 				
-			HashMap<String, String> sensorDataAsHashMap;
-			FireSensorData fsd = null;
-			String sensorId = "Unassigned Sensor Id";
-			lastUpdate = System.currentTimeMillis();
+			FireSensorData fsd;
 			
 			// authenticate the server.
-			// the first and only text the sensor will send is the password.
+			// the first and only text the sensor will send is the password, or the session token it got the last time.
 			String password = sensorTextInput.readLine();
-			Authenticator authenticator = new Authenticator();
+			session = new Authenticator().openSensorSession(password);
 			
-			if (password != null && !authenticator.authenticateSensor(password)) {
+			if (session == null) {
 				serverTextOutput.println("Authentication failed, disconnecting....");
-				closeSocket();
+				return;
 			}
 			else {
-				serverTextOutput.println("Authenticated successfully.");
+				serverTextOutput.println("Authenticated successfully. " + SensorFrameCodec.PROTOCOL_OFFER + " [" + session + "]");
 			}
 			
-			while (socket != null) {
-				// TODO Always get the text input and data input of the sensor into a,
-				// 		local variable to avoid null pointers.
-					
-				// Monitors should be notified if the sensor's last update exceeds one hour.
-				// 1 hour = 3.6e+6 millis = 3,600,000 millis. 
-				if ((System.currentTimeMillis() - lastUpdate) > 3600000 && fsd != null) {
-
-					fsd.setUnreportedErr("* * * " + sensorId + " has not reported in 1 hour. * * * ");
-						
-					fsd.setAlreadyWrittenToFile(false);		// otherwise writting method will ignore the sensor.
-					fileManager.writeSensorDataToXml(sensorAndData, false, new File("./data.txt"));		// for rmi server to read latest data.
-					fileManager.writeSensorDataToXml(sensorAndData, true, new File("./current.txt")); 	// in case the rmi server wants data of all the connected sensors.
-						
-					// Don't remove the following code as it will result in a non-stop loop until data arrives.
-					// Sending the warning once and then waiting another 1 hour will suffice.
-					lastUpdate = System.currentTimeMillis();
-					fsd.setAlreadyWrittenToFile(true);		// since writting is now over, we has to indicate that the data of this sensor is written,				
-																// otherwise the writting method in the below if condition will continenously write this sensor's data.
-				}
-					
-				if ( (sensorDataAsHashMap = (HashMap<String, String>) readSocketData()) != null) {
-					fsd = new FireSensorData(sensorDataAsHashMap);
-					sensorId = fsd.getSensorId();
-						
-					fsd.printData();	
-					insertDataToServerHashMap(sensorId, fsd);
-					fileManager.writeSensorDataToXml(sensorAndData, false, new File("./data.txt"));		// for rmi server to read latest data.
-					fileManager.writeSensorDataToXml(sensorAndData, true, new File("./current.txt")); 	// if the rmi server wants data of all the connected sensors.
-						
-					// coming upto this points indicates that the sensor sent data,
-					// hence we can set the last update to the current time.
-					lastUpdate = System.currentTimeMillis();
-				}	
+			// each read blocks until the sensor sends something, so an idle sensor costs nothing.
+			// the heartbeat wheel takes care of sensors that don't report in time.
+			while ( (fsd = readSensorData()) != null) {
+				onSensorData(fsd);
 			}
 			
 		} 
+		catch (SocketTimeoutException e) {
+			System.out.println(sensorId + " has not sent anything in " + (SENSOR_READ_TIMEOUT / 60000) + " minutes, disconnecting.");
+		}
+		catch (EOFException | SocketException e) {
+			// sensor disconnected.
+		}
 		catch (Exception e) {
 			e.printStackTrace();
 		}	
 		finally {
-			// sensor disconnecting from the server.
-			// therefore remove the sensor and its data.
-			synchronized (sensorAndData) {
-				sensorAndData.remove(sensorId);	
-				
-				// we have to update the sensor count since we have removed a sensor.
-				updateSensorCount();
-				// close the connection.
-				closeSocket();
-			}	
+			removeSensor();
+			// close the connection.
+			closeSocket();
 		}
 	}
 }